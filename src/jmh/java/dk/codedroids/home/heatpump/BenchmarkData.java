@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2017 CodeDroids ApS (http://www.codedroids.dk)
+ *
+ * This file is part of the HeatPump Vert.x example
+ *
+ * The HeatPump Vert.x example is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * The HeatPump Vert.x example is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the HeatPump Vert.x example. If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.codedroids.home.heatpump;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * The input of the benchmarks: two hours of lines from the controller, two-hours-of-serial-data.csv from the test
+ * resources (on the classpath of the benchmarks).
+ *
+ * @author Claus Priisholm.
+ */
+final class BenchmarkData {
+
+  private static final String SERIAL_DATA = "/two-hours-of-serial-data.csv";
+
+  private BenchmarkData() {
+  }
+
+  /** @return the lines as received, with the CRC column */
+  static String[] lines() throws IOException {
+    try(InputStream in = BenchmarkData.class.getResourceAsStream(SERIAL_DATA)) {
+      if(in == null)
+        throw new IOException(SERIAL_DATA + " not found on the classpath");
+      List<String> lines = new BufferedReader(new InputStreamReader(in, StandardCharsets.ISO_8859_1)).lines()
+        .filter(line -> !line.isEmpty())
+        .collect(Collectors.toList());
+      return lines.toArray(new String[lines.size()]);
+    }
+  }
+
+  /** @return the lines decoded, stamped 10 seconds apart like the controller sends them */
+  static Reading[] readings() throws IOException {
+    SerialVerticle verticle = new SerialVerticle();
+    String[] lines = lines();
+    Reading[] readings = new Reading[lines.length];
+    long timestamp = IngestClock.now();
+    for(int i = 0; i < lines.length; i++) {
+      readings[i] = new Reading();
+      if(!verticle.decodeCsv(verticle.verifiedInput(lines[i]), readings[i]))
+        throw new IOException("Line " + (i + 1) + " of " + SERIAL_DATA + " is not valid: " + lines[i]);
+      readings[i].setTimestamp(timestamp + i * 10000L);
+    }
+    return readings;
+  }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2017 CodeDroids ApS (http://www.codedroids.dk)
+ *
+ * This file is part of the HeatPump Vert.x example
+ *
+ * The HeatPump Vert.x example is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * The HeatPump Vert.x example is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the HeatPump Vert.x example. If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.codedroids.home.heatpump;
+
+import io.vertx.core.json.JsonArray;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The persistence side, a data set at a time: the insert parameters the LoggerVerticle builds from a reading and
+ * from the JSON form of it (as sent by the MqttVerticle and ReplayVerticle), and the data set the ReplayVerticle
+ * maps the queried rows to. No database is involved.
+ *
+ * @author Claus Priisholm.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class RowsBenchmark {
+
+  private final LoggerVerticle logger = new LoggerVerticle();
+  private final ReplayVerticle replay = new ReplayVerticle();
+  private Reading[] readings;
+  private JsonArray[] dataSets;
+  private List<List<JsonArray>> tempRows;
+  private List<List<JsonArray>> powrRows;
+  private int next = 0;
+
+  @Setup
+  public void load() throws IOException {
+    readings = BenchmarkData.readings();
+    dataSets = new JsonArray[readings.length];
+    tempRows = new ArrayList<>();
+    powrRows = new ArrayList<>();
+    for(int i = 0; i < readings.length; i++) {
+      dataSets[i] = readings[i].toJson();
+      // The rows as queried by the ReplayVerticle, sensor and data
+      List<JsonArray> temps = new ArrayList<>();
+      List<JsonArray> powrs = new ArrayList<>();
+      SensorSchema schema = readings[i].schema();
+      for(int col = 0; col < schema.size(); col++) {
+        JsonArray row = new JsonArray().add(schema.column(col).name).add(readings[i].get(col));
+        ("temp".equals(schema.column(col).type) ? temps : powrs).add(row);
+      }
+      tempRows.add(temps);
+      powrRows.add(powrs);
+    }
+  }
+
+  private int next() {
+    int i = next;
+    next = i + 1 == readings.length ? 0 : i + 1;
+    return i;
+  }
+
+  @Benchmark
+  public void loggerRowsFromReading(Blackhole blackhole) {
+    List<JsonArray> temp = new ArrayList<>();
+    List<JsonArray> powr = new ArrayList<>();
+    logger.addRows(readings[next()], temp, powr);
+    blackhole.consume(temp);
+    blackhole.consume(powr);
+  }
+
+  @Benchmark
+  public void loggerRowsFromJson(Blackhole blackhole) {
+    List<JsonArray> temp = new ArrayList<>();
+    List<JsonArray> powr = new ArrayList<>();
+    logger.addRows(dataSets[next()], temp, powr);
+    blackhole.consume(temp);
+    blackhole.consume(powr);
+  }
+
+  @Benchmark
+  public JsonArray replayDataSet() {
+    int i = next();
+    return replay.dataSet(tempRows.get(i), powrRows.get(i));
+  }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2017 CodeDroids ApS (http://www.codedroids.dk)
+ *
+ * This file is part of the HeatPump Vert.x example
+ *
+ * The HeatPump Vert.x example is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * The HeatPump Vert.x example is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the HeatPump Vert.x example. If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.codedroids.home.heatpump;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The ingest path of the SerialVerticle, a line at a time: CRC check, on the string and on the raw bytes, and
+ * decoding the values into a reused reading. Each invocation takes the next line of the input.
+ *
+ * @author Claus Priisholm.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SerialBenchmark {
+
+  private final SerialVerticle verticle = new SerialVerticle();
+  private final Reading reading = new Reading();
+  private String[] lines;
+  private byte[][] lineBytes;
+  private byte[][] dataBytes; // without the CRC column
+  private String[] data;
+  private int next = 0;
+
+  @Setup
+  public void load() throws IOException {
+    lines = BenchmarkData.lines();
+    lineBytes = new byte[lines.length][];
+    dataBytes = new byte[lines.length][];
+    data = new String[lines.length];
+    for(int i = 0; i < lines.length; i++) {
+      lineBytes[i] = lines[i].getBytes(StandardCharsets.ISO_8859_1);
+      data[i] = verticle.verifiedInput(lines[i]);
+      dataBytes[i] = data[i].getBytes(StandardCharsets.ISO_8859_1);
+    }
+  }
+
+  private int next() {
+    int i = next;
+    next = i + 1 == lines.length ? 0 : i + 1;
+    return i;
+  }
+
+  @Benchmark
+  public String verifiedInput() {
+    return verticle.verifiedInput(lines[next()]);
+  }
+
+  @Benchmark
+  public int verifiedLength() {
+    byte[] line = lineBytes[next()];
+    return verticle.verifiedLength(line, 0, line.length);
+  }
+
+  @Benchmark
+  public int crc8() {
+    byte[] line = dataBytes[next()];
+    return SerialVerticle.crc8(line, 0, line.length);
+  }
+
+  @Benchmark
+  public boolean decodeCsv() {
+    return verticle.decodeCsv(data[next()], reading);
+  }
+}
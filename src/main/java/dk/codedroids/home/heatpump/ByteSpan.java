@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2017 CodeDroids ApS (http://www.codedroids.dk)
+ *
+ * This file is part of the HeatPump Vert.x example
+ *
+ * The HeatPump Vert.x example is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * The HeatPump Vert.x example is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the HeatPump Vert.x example. If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.codedroids.home.heatpump;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A window onto a range of a byte array holding single byte (ASCII) characters, so the serial data can be
+ * read as a CharSequence without copying it into a String. The span can be re-pointed to new data.
+ *
+ * @author Claus Priisholm.
+ */
+final class ByteSpan implements CharSequence {
+
+  private byte[] bytes;
+  private int offset;
+  private int length;
+
+  ByteSpan() {
+    this(new byte[0], 0, 0);
+  }
+
+  ByteSpan(byte[] bytes, int offset, int length) {
+    set(bytes, offset, length);
+  }
+
+  /** Points the span at a new range, returns this span */
+  ByteSpan set(byte[] bytes, int offset, int length) {
+    assert offset >= 0 && length >= 0 && offset + length <= bytes.length;
+    this.bytes = bytes;
+    this.offset = offset;
+    this.length = length;
+    return this;
+  }
+
+  byte[] bytes() { return bytes; }
+  int offset() { return offset; }
+
+  @Override
+  public int length() {
+    return length;
+  }
+
+  @Override
+  public char charAt(int index) {
+    if(index < 0 || index >= length)
+      throw new IndexOutOfBoundsException("index " + index + ", length " + length);
+    return (char) (bytes[offset + index] & 0xff);
+  }
+
+  @Override
+  public CharSequence subSequence(int start, int end) {
+    if(start < 0 || end > length || start > end)
+      throw new IndexOutOfBoundsException("start " + start + ", end " + end + ", length " + length);
+    return new ByteSpan(bytes, offset + start, end - start);
+  }
+
+  @Override
+  public String toString() {
+    return new String(bytes, offset, length, StandardCharsets.ISO_8859_1);
+  }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2017 CodeDroids ApS (http://www.codedroids.dk)
+ *
+ * This file is part of the HeatPump Vert.x example
+ *
+ * The HeatPump Vert.x example is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * The HeatPump Vert.x example is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the HeatPump Vert.x example. If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.codedroids.home.heatpump;
+
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+import io.vertx.core.parsetools.RecordParser;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Reads the serial port (or any other character device or FIFO) through a plain file channel instead of RXTX,
+ * so no native library is needed.
+ *
+ * <p>The JDK offers no selectable channel for a tty, so a single daemon thread does the reads. It reads
+ * as much as is available and hands each chunk over to the Vert.x context that built the input (i.e. the
+ * verticle's own context), where a {@link RecordParser} frames it into lines. The handler is therefore only
+ * ever invoked on that context. A line is timestamped when the chunk that completes it is read.</p>
+ *
+ * <p>Port settings are applied with {@code stty} (Linux), unless the data rate is set to zero in which
+ * case the device is used as is - that is how it is tested against a FIFO.</p>
+ *
+ * @author Claus Priisholm.
+ */
+public class ChannelSerialInput implements SerialInput {
+
+  /**
+   * Like the SerialWrapper, all but the vertx instance and the device path have defaults.
+   */
+  public static class Builder {
+    private final Vertx vertx;
+    private final String devicePath;
+    private int dataRate;
+    private String delimiter;
+    private int readBufferSize;
+
+    /** Constructor with required parameters, should be called from the context the handler must run on */
+    public Builder(Vertx vertx, String devicePath) {
+      this.vertx = vertx;
+      this.devicePath = devicePath;
+      this.dataRate = 9600;
+      this.delimiter = "\n";
+      this.readBufferSize = 256;
+    }
+    /** Serial port data rate, defaults to 9600 baud - if zero the port settings are not touched */
+    public Builder dataRate(int value) { this.dataRate = value; return this; }
+    /** Delimiter between records, defaults to newline */
+    public Builder delimiter(String value) { this.delimiter = value; return this; }
+    /** Max. number of bytes read in one go, defaults to 256 */
+    public Builder readBufferSize(int value) { this.readBufferSize = value; return this; }
+    /** Build ChannelSerialInput */
+    public ChannelSerialInput build() { return new ChannelSerialInput(this); }
+  }
+
+  private static final Logger LOG = LoggerFactory.getLogger(ChannelSerialInput.class);
+
+  private final String devicePath;
+  private final int dataRate;
+  private final int readBufferSize;
+  private final Context context;
+  private final RecordParser parser;
+  private final Thread reader;
+
+  private volatile boolean closed = false;
+  private volatile FileChannel channel;
+  private LineHandler handler;
+  private long chunkTimestamp; // arrival of the chunk being parsed, only used on the context
+
+  public ChannelSerialInput(Builder builder) {
+    super();
+    devicePath = builder.devicePath;
+    dataRate = builder.dataRate;
+    readBufferSize = builder.readBufferSize;
+    context = builder.vertx.getOrCreateContext();
+    parser = RecordParser.newDelimited(builder.delimiter, this::acceptInput);
+
+    reader = new Thread(this::readLoop, "serial-reader-" + devicePath);
+    reader.setDaemon(true); // opening a FIFO blocks until there is a writer, so don't hold up the JVM
+    reader.start();
+  }
+
+  /**
+   * Sets the handler that gets invoked with each line, converted to a string without the line terminator
+   */
+  @Override
+  public void setHandler(Consumer<String> handler) {
+    setBufferHandler(line -> {
+      String str = line.toString(StandardCharsets.ISO_8859_1);
+      if(str.endsWith("\r"))
+        str = str.substring(0, str.length() - 1);
+      handler.accept(str);
+    });
+  }
+
+  /**
+   * Sets the handler that gets invoked with the raw bytes of each line (without the delimiter)
+   */
+  @Override
+  public void setBufferHandler(Consumer<Buffer> handler) {
+    setLineHandler((line, timestamp) -> handler.accept(line));
+  }
+
+  /**
+   * Sets the handler that gets invoked with the raw bytes of each line and the time it was read
+   */
+  @Override
+  public void setLineHandler(LineHandler handler) {
+    this.handler = handler;
+  }
+
+  /**
+   * Pass input on to the handler (if any), runs on the context
+   * @param input
+   */
+  void acceptInput(Buffer input) {
+    if(LOG.isTraceEnabled())
+      LOG.trace("Serial data:" + input);
+    if(handler != null)
+      handler.handle(input, chunkTimestamp);
+  }
+
+  private void readLoop() {
+    try {
+      if(dataRate > 0)
+        configurePort();
+      channel = FileChannel.open(FileSystems.getDefault().getPath(devicePath), StandardOpenOption.READ);
+      if(closed) {
+        channel.close();
+        return;
+      }
+      LOG.info("Reading serial data from " + devicePath);
+      ByteBuffer byteBuffer = ByteBuffer.allocate(readBufferSize);
+      while(!closed) {
+        byteBuffer.clear();
+        int read = channel.read(byteBuffer);
+        if(read < 0) {
+          LOG.info("End of serial data from " + devicePath);
+          break;
+        }
+        if(read > 0) {
+          long timestamp = IngestClock.now();
+          Buffer chunk = Buffer.buffer(Arrays.copyOf(byteBuffer.array(), read));
+          context.runOnContext(v -> {
+            chunkTimestamp = timestamp;
+            parser.handle(chunk);
+          });
+        }
+      }
+    } catch (ClosedChannelException e) {
+      // Expected when closed while blocked in read
+    } catch (IOException|InterruptedException e) {
+      if(!closed)
+        LOG.error("Serial data error on " + devicePath + ":", e);
+    }
+  }
+
+  /**
+   * Raw mode, no echo, 8N1. A read returns when the buffer is full or the line has been idle for 0.1 second,
+   * which at the rate the controller sends is typically one complete line per read.
+   */
+  private void configurePort() throws IOException, InterruptedException {
+    Process stty = new ProcessBuilder("stty", "-F", devicePath, Integer.toString(dataRate),
+      "raw", "-echo", "cs8", "-cstopb", "-parenb", "min", Integer.toString(Math.min(readBufferSize, 255)), "time", "1")
+      .redirectErrorStream(true)
+      .start();
+    if(stty.waitFor() != 0)
+      throw new IOException("stty failed to configure " + devicePath + " (exit code " + stty.exitValue() + ")");
+  }
+
+  /**
+   * Stops the reader and closes the device.
+   */
+  @Override
+  public synchronized void close() {
+    closed = true;
+    FileChannel ch = channel;
+    if(ch != null) {
+      try {
+        ch.close();
+      } catch (IOException e) {
+        LOG.error("Failed to close " + devicePath + ":", e);
+      }
+    }
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2017 CodeDroids ApS (http://www.codedroids.dk)
+ *
+ * This file is part of the HeatPump Vert.x example
+ *
+ * The HeatPump Vert.x example is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * The HeatPump Vert.x example is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the HeatPump Vert.x example. If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.codedroids.home.heatpump;
+
+/**
+ * Consistent Overhead Byte Stuffing: removes all zero bytes from a frame so zero can be used as frame delimiter
+ * on the serial line. Each run of non-zero bytes is preceded by a code byte giving the distance to the next
+ * (removed) zero, at most 254 bytes apart. The overhead is one byte per 254 bytes.
+ *
+ * <p>Matches the {@code cobsEncode()} function in ControllerBinaryExample.ino.</p>
+ *
+ * @author Claus Priisholm.
+ */
+public final class Cobs {
+
+  private Cobs() {
+  }
+
+  /** @return the max. length of <b>length</b> bytes once encoded (without the zero delimiter) */
+  public static int maxEncodedLength(int length) {
+    return length + length / 254 + 1;
+  }
+
+  /**
+   * Encodes the bytes, the destination must have room for {@link #maxEncodedLength(int)} bytes.
+   * The zero delimiter is not added.
+   *
+   * @return the encoded length
+   */
+  public static int encode(byte[] src, int offset, int length, byte[] dst, int dstOffset) {
+    int codeIndex = dstOffset;
+    int write = dstOffset + 1;
+    int code = 1;
+    for(int i = offset, end = offset + length; i < end; i++) {
+      if(src[i] == 0) {
+        dst[codeIndex] = (byte) code;
+        codeIndex = write++;
+        code = 1;
+      } else {
+        dst[write++] = src[i];
+        if(++code == 0xff) {
+          dst[codeIndex] = (byte) code;
+          codeIndex = write++;
+          code = 1;
+        }
+      }
+    }
+    dst[codeIndex] = (byte) code;
+    return write - dstOffset;
+  }
+
+  /**
+   * Decodes the bytes of one frame (without the zero delimiter). The decoded frame is never longer than the
+   * encoded, so the destination may be the source array at the same offset, i.e. decoding in place.
+   *
+   * @return the decoded length, or -1 if the frame is malformed
+   */
+  public static int decode(byte[] src, int offset, int length, byte[] dst, int dstOffset) {
+    int read = offset;
+    int end = offset + length;
+    int write = dstOffset;
+    while(read < end) {
+      int code = src[read++] & 0xff;
+      if(code == 0 || read + code - 1 > end)
+        return -1;
+      for(int i = 1; i < code; i++)
+        dst[write++] = src[read++];
+      if(code < 0xff && read < end)
+        dst[write++] = 0;
+    }
+    return write - dstOffset;
+  }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright (c) 2017 CodeDroids ApS (http://www.codedroids.dk)
+ *
+ * This file is part of the HeatPump Vert.x example
+ *
+ * The HeatPump Vert.x example is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * The HeatPump Vert.x example is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the HeatPump Vert.x example. If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.codedroids.home.heatpump;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+import io.vertx.ext.jdbc.JDBCClient;
+import io.vertx.ext.sql.SQLConnection;
+
+import java.sql.Connection;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * A long-lived database connection shared by the work done by a verticle, instead of checking out a pooled
+ * connection for every statement.
+ *
+ * <p>As the connection stays open, the statements prepared on it are kept in the statement cache of the pool
+ * (see <b>max_statements</b>), so the same statements are only parsed once. The work is run one piece at a
+ * time in the order given.</p>
+ *
+ * <p>The connection is validated when it is opened, when it has been idle for a while and when a piece of work
+ * fails. If it is broken, it is replaced and the work is run once more. If a new connection can't be had, the work
+ * fails and new connections are tried in the background with increasing delay, so the connection is ready when
+ * the database is back.</p>
+ *
+ * <p>Configuration (the "database" entry of the verticles using it):</p>
+ *
+ * <ul>
+ * <li><b>url, user, password, driver_class</b> -- see the verticles</li>
+ * <li><b>pool_size : 10</b> -- Max. size of the connection pool, defaults to 10</li>
+ * <li><b>max_statements : 20</b> -- Number of prepared statements cached per connection, defaults to 20</li>
+ * <li><b>validation_query : "select 1"</b> -- Query used to validate the connection, if not given the JDBC driver's
+ *        own check is used</li>
+ * <li><b>validate_after : 60</b> -- Seconds a connection may be idle before it is validated again</li>
+ * <li><b>reconnect_delay : 500</b> -- Milliseconds before the first reconnect attempt, doubled for each failed attempt</li>
+ * <li><b>max_reconnect_delay : 30000</b> -- Max. milliseconds between reconnect attempts</li>
+ * </ul>
+ *
+ * <p>Must be used from a single context, i.e. the verticle's.</p>
+ *
+ * @author Claus Priisholm.
+ */
+public class DbSession {
+
+  private static final Logger LOG = LoggerFactory.getLogger(DbSession.class);
+
+  private final Vertx vertx;
+  private final JDBCClient client;
+  private final String validationQuery;
+  private final long validateAfterNanos;
+  private final long reconnectDelay;
+  private final long maxReconnectDelay;
+
+  private SQLConnection connection;
+  private long lastUsed; // System.nanoTime()
+  private long backoff; // current delay between reconnect attempts, zero when connected
+  private long reconnectTimer = -1;
+  private boolean closed = false;
+
+  private final Queue<Runnable> queue = new ArrayDeque<>();
+  private boolean running = false;
+
+  /**
+   * @param databaseConfig The "database" entry of the verticle configuration, see class description
+   */
+  public DbSession(Vertx vertx, JsonObject databaseConfig) {
+    this.vertx = vertx;
+    // Shared by the sessions on the same database, a pool per database
+    this.client = JDBCClient.createShared(vertx, clientConfig(databaseConfig),
+      databaseConfig.getString("url") + "|" + databaseConfig.getString("user"));
+    this.validationQuery = databaseConfig.getString("validation_query");
+    this.validateAfterNanos = TimeUnit.SECONDS.toNanos(databaseConfig.getInteger("validate_after", 60));
+    this.reconnectDelay = databaseConfig.getLong("reconnect_delay", 500L);
+    this.maxReconnectDelay = databaseConfig.getLong("max_reconnect_delay", 30000L);
+    if(reconnectDelay < 1 || maxReconnectDelay < reconnectDelay)
+      throw new IllegalArgumentException("Invalid configuration, reconnect_delay must be positive and not larger than max_reconnect_delay");
+  }
+
+  /** @return the configuration of the JDBC client (the C3P0 pool) */
+  static JsonObject clientConfig(JsonObject databaseConfig) {
+    return new JsonObject()
+      .put("url", databaseConfig.getString("url"))
+      .put("user", databaseConfig.getString("user"))
+      .put("password", databaseConfig.getString("password"))
+      .put("driver_class", databaseConfig.getString("driver_class"))
+      .put("max_pool_size", databaseConfig.getInteger("pool_size", 10))
+      .put("max_statements", databaseConfig.getInteger("max_statements", 20))
+      .put("max_statements_per_connection", databaseConfig.getInteger("max_statements", 20));
+  }
+
+  /** The underlying client, e.g. for work that needs a connection of its own */
+  public JDBCClient client() {
+    return client;
+  }
+
+  /**
+   * Runs the work on the session's connection once the work given before it is done.
+   * The work must not close the connection.
+   *
+   * @return the result of the work, failed right away if the session is closed
+   */
+  public <T> Future<T> execute(Function<SQLConnection, Future<T>> work) {
+    if(closed)
+      return Future.failedFuture("Database session closed");
+    Future<T> result = Future.future();
+    queue.add(() -> run(work, true).setHandler(ar -> {
+      result.handle(ar);
+      running = false;
+      next();
+    }));
+    next();
+    return result;
+  }
+
+  private void next() {
+    if(!running && !queue.isEmpty()) {
+      running = true;
+      queue.poll().run();
+    }
+  }
+
+  private <T> Future<T> run(Function<SQLConnection, Future<T>> work, boolean retry) {
+    return connection().compose(conn -> {
+      Future<T> done = Future.future();
+      apply(work, conn).setHandler(ar -> {
+        lastUsed = System.nanoTime();
+        if(ar.succeeded()) {
+          done.complete(ar.result());
+          return;
+        }
+        // The work may have failed on its own account (e.g. a constraint), or because the connection is broken
+        validate(conn).setHandler(valid -> {
+          if(valid.succeeded()) {
+            done.fail(ar.cause());
+            return;
+          }
+          LOG.warn("Database connection lost (" + ar.cause().getMessage() + ")" + (retry ? ", reconnecting" : ""));
+          drop(conn);
+          if(retry)
+            run(work, false).setHandler(done);
+          else
+            done.fail(ar.cause());
+        });
+      });
+      return done;
+    });
+  }
+
+  private static <T> Future<T> apply(Function<SQLConnection, Future<T>> work, SQLConnection conn) {
+    try {
+      return work.apply(conn);
+    } catch(RuntimeException e) {
+      return Future.failedFuture(e);
+    }
+  }
+
+  /** @return the connection, validated if it has been idle, or a new one */
+  private Future<SQLConnection> connection() {
+    if(closed)
+      return Future.failedFuture("Database session closed");
+    SQLConnection conn = connection;
+    if(conn != null) {
+      if(System.nanoTime() - lastUsed < validateAfterNanos)
+        return Future.succeededFuture(conn);
+      return validate(conn).map(v -> conn).recover(e -> {
+        LOG.info("Idle database connection no longer valid (" + e.getMessage() + "), reconnecting");
+        drop(conn);
+        return connect();
+      });
+    }
+    if(backoff > 0) // reconnecting in the background, don't hold up the work
+      return Future.failedFuture("Database unavailable, reconnecting");
+    return connect();
+  }
+
+  private Future<SQLConnection> connect() {
+    Future<SQLConnection> connected = Future.future();
+    client.getConnection(ar -> {
+      if(ar.failed()) {
+        connected.fail(ar.cause());
+        scheduleReconnect(ar.cause());
+        return;
+      }
+      SQLConnection conn = ar.result();
+      validate(conn).setHandler(valid -> {
+        if(valid.failed()) {
+          conn.close();
+          connected.fail(valid.cause());
+          scheduleReconnect(valid.cause());
+        } else if(closed) {
+          conn.close();
+          connected.fail("Database session closed");
+        } else {
+          if(backoff > 0)
+            LOG.info("Database connection re-established");
+          backoff = 0;
+          connection = conn;
+          lastUsed = System.nanoTime();
+          connected.complete(conn);
+        }
+      });
+    });
+    return connected;
+  }
+
+  private void scheduleReconnect(Throwable cause) {
+    if(closed || reconnectTimer >= 0)
+      return;
+    backoff = backoff == 0 ? reconnectDelay : Math.min(2 * backoff, maxReconnectDelay);
+    LOG.error("Database connection failed (" + cause.getMessage() + "), next attempt in " + backoff + " ms");
+    reconnectTimer = vertx.setTimer(backoff, tid -> {
+      reconnectTimer = -1;
+      if(connection == null)
+        connect();
+    });
+  }
+
+  private Future<Void> validate(SQLConnection conn) {
+    Future<Void> valid = Future.future();
+    if(validationQuery != null) {
+      conn.query(validationQuery, ar -> {
+        if(ar.succeeded())
+          valid.complete();
+        else
+          valid.fail(ar.cause());
+      });
+    } else {
+      vertx.<Boolean>executeBlocking(f -> {
+        try {
+          f.complete(((Connection) conn.unwrap()).isValid(5));
+        } catch(Exception e) {
+          f.fail(e);
+        }
+      }, false, ar -> {
+        if(ar.succeeded() && ar.result())
+          valid.complete();
+        else
+          valid.fail(ar.failed() ? ar.cause().getMessage() : "connection not valid");
+      });
+    }
+    return valid;
+  }
+
+  private void drop(SQLConnection conn) {
+    if(connection == conn)
+      connection = null;
+    conn.close(ar -> {
+      // Most likely broken anyway
+    });
+  }
+
+  /**
+   * Closes the connection, once the work given has been done. Work given after it fails. The client is closed by
+   * Vert.x when the verticle is undeployed (closing it here as well would close it for the other verticles sharing
+   * it).
+   */
+  public Future<Void> close() {
+    Future<Void> done = Future.future();
+    queue.add(() -> {
+      closed = true;
+      if(reconnectTimer >= 0)
+        vertx.cancelTimer(reconnectTimer);
+      SQLConnection conn = connection;
+      connection = null;
+      Future<Void> connectionClosed = Future.future();
+      if(conn != null)
+        conn.close(v -> connectionClosed.complete());
+      else
+        connectionClosed.complete();
+      connectionClosed.setHandler(v -> {
+        done.complete();
+        running = false;
+        next(); // the work given after close() fails, see connection()
+      });
+    });
+    next();
+    return done;
+  }
+}
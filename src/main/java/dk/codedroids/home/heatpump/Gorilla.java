@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2017 CodeDroids ApS (http://www.codedroids.dk)
+ *
+ * This file is part of the HeatPump Vert.x example
+ *
+ * The HeatPump Vert.x example is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * The HeatPump Vert.x example is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the HeatPump Vert.x example. If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.codedroids.home.heatpump;
+
+import java.util.Arrays;
+
+/**
+ * Compression of a block of (timestamp, value) points as in Facebook's Gorilla paper. Sensor values sampled at a
+ * fixed interval and changing slowly take a couple of bits per point rather than the 16 bytes raw.
+ *
+ * <p>The first point is stored as is, 64 bits each. After that the timestamps are stored as the difference between
+ * two consecutive deltas (delta-of-delta), which is zero for a fixed interval:</p>
+ *
+ * <pre>{@code
+ * '0'                     delta-of-delta is 0
+ * '10'   + 7 bits         -63..64
+ * '110'  + 9 bits         -255..256
+ * '1110' + 12 bits        -2047..2048
+ * '1111' + 32 bits        anything else
+ * }</pre>
+ *
+ * <p>The values are stored as the XOR of the bits with the previous value, which is zero for the same value and
+ * otherwise has a run of meaningful bits in the middle:</p>
+ *
+ * <pre>{@code
+ * '0'                     same value
+ * '10' + meaningful bits  the meaningful bits fit within the leading and trailing zeros of the previous XOR
+ * '11' + 5 bits leading zeros + 6 bits number of meaningful bits (0 meaning 64) + meaningful bits
+ * }</pre>
+ *
+ * <p>The timestamps must be increasing, their unit is up to the user.</p>
+ *
+ * @author Claus Priisholm.
+ */
+public final class Gorilla {
+
+  private Gorilla() {
+  }
+
+  /**
+   * Compresses the points added to it, the encoded bytes can be had at any time.
+   */
+  public static class Encoder {
+    private byte[] bytes = new byte[64];
+    private long bitCount = 0;
+    private int count = 0;
+
+    private long prevTimestamp;
+    private long prevDelta;
+    private long prevBits;
+    private int prevLeading = -1; // no previous XOR window
+    private int prevTrailing;
+
+    /** Adds the point, the timestamp must be larger than that of the previous point */
+    public void add(long timestamp, double value) {
+      long bits = Double.doubleToRawLongBits(value);
+      if(count == 0) {
+        writeBits(timestamp, 64);
+        writeBits(bits, 64);
+      } else {
+        long delta = timestamp - prevTimestamp;
+        if(delta <= 0)
+          throw new IllegalArgumentException("Timestamps must be increasing, got " + timestamp + " after " + prevTimestamp);
+        writeTimestamp(delta - prevDelta);
+        writeValue(bits ^ prevBits);
+        prevDelta = delta;
+      }
+      prevTimestamp = timestamp;
+      prevBits = bits;
+      count++;
+    }
+
+    private void writeTimestamp(long deltaOfDelta) {
+      if(deltaOfDelta == 0) {
+        writeBits(0, 1);
+      } else if(deltaOfDelta >= -63 && deltaOfDelta <= 64) {
+        writeBits(0b10, 2);
+        writeBits(deltaOfDelta, 7);
+      } else if(deltaOfDelta >= -255 && deltaOfDelta <= 256) {
+        writeBits(0b110, 3);
+        writeBits(deltaOfDelta, 9);
+      } else if(deltaOfDelta >= -2047 && deltaOfDelta <= 2048) {
+        writeBits(0b1110, 4);
+        writeBits(deltaOfDelta, 12);
+      } else {
+        if(deltaOfDelta <= Integer.MIN_VALUE || deltaOfDelta > Integer.MAX_VALUE)
+          throw new IllegalArgumentException("Timestamp gap too large: " + deltaOfDelta);
+        writeBits(0b1111, 4);
+        writeBits(deltaOfDelta, 32);
+      }
+    }
+
+    private void writeValue(long xor) {
+      if(xor == 0) {
+        writeBits(0, 1);
+        return;
+      }
+      int leading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+      int trailing = Long.numberOfTrailingZeros(xor);
+      if(prevLeading >= 0 && leading >= prevLeading && trailing >= prevTrailing) {
+        writeBits(0b10, 2);
+        writeBits(xor >>> prevTrailing, 64 - prevLeading - prevTrailing);
+      } else {
+        int meaningful = 64 - leading - trailing;
+        writeBits(0b11, 2);
+        writeBits(leading, 5);
+        writeBits(meaningful, 6); // 64 wraps to 0
+        writeBits(xor >>> trailing, meaningful);
+        prevLeading = leading;
+        prevTrailing = trailing;
+      }
+    }
+
+    /** Writes the lowest n bits of the value, most significant first */
+    private void writeBits(long value, int n) {
+      if(bitCount + n > (long) bytes.length * 8)
+        bytes = Arrays.copyOf(bytes, bytes.length * 2);
+      for(int i = n - 1; i >= 0; i--) {
+        if(((value >>> i) & 1) != 0)
+          bytes[(int) (bitCount >>> 3)] |= 0x80 >>> (bitCount & 7);
+        bitCount++;
+      }
+    }
+
+    /** @return number of points added */
+    public int count() {
+      return count;
+    }
+
+    /** @return timestamp of the last point added */
+    public long lastTimestamp() {
+      return prevTimestamp;
+    }
+
+    /** @return the encoded bytes, the array is shared, only the first {@link #length()} bytes are used */
+    public byte[] bytes() {
+      return bytes;
+    }
+
+    /** @return number of encoded bytes */
+    public int length() {
+      return (int) ((bitCount + 7) >>> 3);
+    }
+  }
+
+  /**
+   * Reads back the points of an encoded block, the number of points must be known.
+   */
+  public static class Decoder {
+    private final byte[] bytes;
+    private final int count;
+    private long bitPos;
+    private int read = 0;
+
+    private long timestamp;
+    private long delta;
+    private long valueBits;
+    private int leading;
+    private int trailing;
+
+    public Decoder(byte[] bytes, int offset, int count) {
+      this.bytes = bytes;
+      this.bitPos = (long) offset * 8;
+      this.count = count;
+    }
+
+    /** Moves to the next point, if there is one */
+    public boolean next() {
+      if(read >= count)
+        return false;
+      if(read == 0) {
+        timestamp = readBits(64);
+        valueBits = readBits(64);
+      } else {
+        delta += readTimestamp();
+        timestamp += delta;
+        readValue();
+      }
+      read++;
+      return true;
+    }
+
+    private long readTimestamp() {
+      if(readBits(1) == 0)
+        return 0;
+      if(readBits(1) == 0)
+        return signed(readBits(7), 7);
+      if(readBits(1) == 0)
+        return signed(readBits(9), 9);
+      if(readBits(1) == 0)
+        return signed(readBits(12), 12);
+      return signed(readBits(32), 32);
+    }
+
+    /** Values above the positive range of the bucket are negative, e.g. 7 bits cover -63..64 */
+    private static long signed(long value, int n) {
+      return value > (1L << (n - 1)) ? value - (1L << n) : value;
+    }
+
+    private void readValue() {
+      if(readBits(1) == 0)
+        return;
+      if(readBits(1) != 0) {
+        leading = (int) readBits(5);
+        int meaningful = (int) readBits(6);
+        if(meaningful == 0)
+          meaningful = 64;
+        trailing = 64 - leading - meaningful;
+      }
+      valueBits ^= readBits(64 - leading - trailing) << trailing;
+    }
+
+    private long readBits(int n) {
+      long value = 0;
+      for(int i = 0; i < n; i++) {
+        value = (value << 1) | ((bytes[(int) (bitPos >>> 3)] >>> (7 - (bitPos & 7))) & 1);
+        bitPos++;
+      }
+      return value;
+    }
+
+    public long timestamp() {
+      return timestamp;
+    }
+
+    public double value() {
+      return Double.longBitsToDouble(valueBits);
+    }
+  }
+}
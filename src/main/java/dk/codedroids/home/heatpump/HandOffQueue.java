@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2017 CodeDroids ApS (http://www.codedroids.dk)
+ *
+ * This file is part of the HeatPump Vert.x example
+ *
+ * The HeatPump Vert.x example is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * The HeatPump Vert.x example is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the HeatPump Vert.x example. If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.codedroids.home.heatpump;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded, lock-free ring buffer for handing elements from one producer thread to one consumer thread.
+ *
+ * <p>What happens when the producer finds the buffer full is decided by the {@link Overflow} policy.
+ * Dropping is done by the producer moving the consumer index forward, so the consumer claims elements
+ * with a compare-and-set - that is the only contended operation, and only when the buffer overflows.</p>
+ *
+ * <p>Each element may carry a timestamp (or any other long), kept in a primitive array next to the elements
+ * so it does not need an object per element.</p>
+ *
+ * <p>Consumed slots are not cleared, so up to capacity elements may be kept reachable after being consumed.</p>
+ *
+ * @author Claus Priisholm.
+ */
+public class HandOffQueue<T> {
+
+  /** What the producer does when the buffer is full */
+  public enum Overflow {
+    /** Wait until the consumer makes room */
+    block,
+    /** Drop the oldest element to make room */
+    drop_oldest,
+    /** Drop everything queued, only the latest element is kept */
+    conflate
+  }
+
+  private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+  private final AtomicReferenceArray<T> slots;
+  private final long[] stamps; // written before the slot is published, read before it is claimed
+  private final int mask;
+  private final Overflow overflow;
+  private final AtomicLong head = new AtomicLong(); // next to consume
+  private final AtomicLong tail = new AtomicLong(); // next to produce, only written by the producer
+  private final AtomicLong dropped = new AtomicLong();
+  private volatile boolean closed = false;
+  private long polledStamp; // only used by the consumer
+
+  /**
+   * @param capacity Max. number of queued elements, rounded up to a power of two
+   * @param overflow Policy when the buffer is full
+   */
+  public HandOffQueue(int capacity, Overflow overflow) {
+    if(capacity < 1 || capacity > (1 << 30))
+      throw new IllegalArgumentException("Capacity must be between 1 and 2^30, got " + capacity);
+    int size = Integer.highestOneBit(capacity);
+    if(size < capacity)
+      size <<= 1;
+    slots = new AtomicReferenceArray<>(size);
+    stamps = new long[size];
+    mask = size - 1;
+    this.overflow = overflow;
+  }
+
+  /**
+   * Producer side, adds the element applying the overflow policy if the buffer is full.
+   *
+   * @return false if the queue was closed (while blocked), true otherwise
+   */
+  public boolean offer(T element) {
+    return offer(element, 0L);
+  }
+
+  /**
+   * Like {@link #offer(Object)}, with a stamp that the consumer gets from {@link #stamp()} after polling the element.
+   */
+  public boolean offer(T element, long stamp) {
+    long t = tail.get();
+    long h;
+    while(t - (h = head.get()) > mask) {
+      switch(overflow) {
+        case block:
+          if(closed)
+            return false;
+          LockSupport.parkNanos(PARK_NANOS);
+          break;
+        case drop_oldest:
+          if(head.compareAndSet(h, h + 1))
+            dropped.incrementAndGet();
+          break;
+        case conflate:
+          if(head.compareAndSet(h, t))
+            dropped.addAndGet(t - h);
+          break;
+      }
+    }
+    stamps[(int) t & mask] = stamp;
+    slots.lazySet((int) t & mask, element);
+    tail.lazySet(t + 1); // publishes the slot to the consumer
+    return true;
+  }
+
+  /**
+   * Consumer side.
+   *
+   * @return the oldest element, or null if empty
+   */
+  public T poll() {
+    while(true) {
+      long h = head.get();
+      if(h >= tail.get())
+        return null;
+      T element = slots.get((int) h & mask);
+      long stamp = stamps[(int) h & mask];
+      // Fails if the producer dropped the element meanwhile (and possibly reused the slot), then try again
+      if(head.compareAndSet(h, h + 1)) {
+        polledStamp = stamp;
+        return element;
+      }
+    }
+  }
+
+  /** Consumer side, @return the stamp of the element last returned by {@link #poll()} */
+  public long stamp() {
+    return polledStamp;
+  }
+
+  /** Releases a producer blocked on a full buffer, the queue should not be used after this */
+  public void close() {
+    closed = true;
+  }
+
+  /** @return number of queued elements */
+  public int size() {
+    return (int) Math.max(0, tail.get() - head.get());
+  }
+
+  /** @return max. number of queued elements */
+  public int capacity() {
+    return mask + 1;
+  }
+
+  /** @return number of elements dropped due to overflow */
+  public long dropped() {
+    return dropped.get();
+  }
+
+  public Overflow overflow() {
+    return overflow;
+  }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2017 CodeDroids ApS (http://www.codedroids.dk)
+ *
+ * This file is part of the HeatPump Vert.x example
+ *
+ * The HeatPump Vert.x example is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * The HeatPump Vert.x example is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the HeatPump Vert.x example. If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.codedroids.home.heatpump;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The time readings are stamped with when the serial data arrives, in milliseconds since the epoch.
+ *
+ * <p>The wall clock may jump (NTP adjusting it, which is common on a Raspberry without RTC that sets the time
+ * some time after boot), so the time is taken from the monotonic {@code System.nanoTime()} anchored to the wall
+ * clock. Once a minute the anchor is moved forward to the wall clock if that is ahead, but never backwards: if the
+ * wall clock has been set back the monotonic time is kept.</p>
+ *
+ * @author Claus Priisholm.
+ */
+public final class IngestClock {
+
+  private static final long RESYNC_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+  private static final class Anchor {
+    final long epochMillis;
+    final long nanos;
+
+    Anchor(long epochMillis, long nanos) {
+      this.epochMillis = epochMillis;
+      this.nanos = nanos;
+    }
+  }
+
+  private static volatile Anchor anchor = new Anchor(System.currentTimeMillis(), System.nanoTime());
+
+  private IngestClock() {
+  }
+
+  /** @return the current time in milliseconds since the epoch, never less than a previously returned time */
+  public static long now() {
+    long nanos = System.nanoTime();
+    Anchor a = anchor;
+    long elapsed = nanos - a.nanos;
+    if(elapsed >= RESYNC_NANOS)
+      return resync(nanos);
+    return a.epochMillis + TimeUnit.NANOSECONDS.toMillis(elapsed);
+  }
+
+  private static synchronized long resync(long nanos) {
+    Anchor a = anchor;
+    long time = a.epochMillis + TimeUnit.NANOSECONDS.toMillis(nanos - a.nanos);
+    if(nanos - a.nanos >= RESYNC_NANOS) { // another thread may just have done it
+      time = Math.max(time, System.currentTimeMillis());
+      anchor = new Anchor(time, nanos);
+    }
+    return time;
+  }
+}
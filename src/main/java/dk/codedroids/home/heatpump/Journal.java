@@ -0,0 +1,295 @@
+/*
+ * Copyright (c) 2017 CodeDroids ApS (http://www.codedroids.dk)
+ *
+ * This file is part of the HeatPump Vert.x example
+ *
+ * The HeatPump Vert.x example is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * The HeatPump Vert.x example is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the HeatPump Vert.x example. If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.codedroids.home.heatpump;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.TreeMap;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead journal of records on local disk, so data sets survive the database (or the JVM) being down until
+ * they have been stored.
+ *
+ * <p>The journal is a directory of fixed size segment files, {@code 00000001.seg}, {@code 00000002.seg} and so on,
+ * each memory-mapped while in use, so an append is a copy into memory and the backlog is kept by the OS rather than
+ * on the heap. A record is:</p>
+ *
+ * <pre>{@code
+ * int      length of type and payload (n + 1), zero marks the end of the records in the segment
+ * int      CRC32 of type and payload
+ * byte     type, up to the user
+ * byte*n   payload
+ * }</pre>
+ *
+ * <p>Records are read from the checkpoint, which is the position up to which the records have been dealt with
+ * (stored). The checkpoint is moved by {@link #commit(int)} and kept in the file {@code checkpoint}, segments before
+ * it are deleted. On opening, the records after the checkpoint are checked, a torn record at the end (from a crash
+ * in the middle of an append) is dropped along with anything after it.</p>
+ *
+ * <p>Not thread-safe, it is meant to be used from a verticle's context. Opening and rotating segments does file
+ * I/O, appending and reading is memory access only (unless sync is on).</p>
+ *
+ * @author Claus Priisholm.
+ */
+public class Journal implements Closeable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(Journal.class);
+
+  private static final int HEADER = 8; // length and CRC
+  private static final String SUFFIX = ".seg";
+
+  private final Path directory;
+  private final int segmentSize;
+  private final boolean sync;
+  private final FileChannel checkpointChannel;
+  private final ByteBuffer checkpointBuffer = ByteBuffer.allocate(16);
+  private final CRC32 crc = new CRC32();
+
+  // Mapped segments by number, from the checkpoint segment to the write segment
+  private final TreeMap<Long, MappedByteBuffer> segments = new TreeMap<>();
+
+  private long writeSegment;
+  private int writeOffset;
+  private long readSegment; // next record to read
+  private int readOffset;
+  private long checkpointSegment; // next record not yet committed
+  private int checkpointOffset;
+  private long uncommitted; // number of records after the checkpoint
+
+  /**
+   * Opens the journal in the directory, creating it if needed, and recovers the records after the checkpoint.
+   *
+   * @param segmentSize Size of each segment file in bytes, a record must fit in one
+   * @param sync If true each append and commit is forced to disk, otherwise it is up to the OS
+   */
+  public Journal(Path directory, int segmentSize, boolean sync) throws IOException {
+    if(segmentSize < 1024)
+      throw new IllegalArgumentException("Journal segment size must be at least 1024 bytes, got " + segmentSize);
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    this.sync = sync;
+    Files.createDirectories(directory);
+    checkpointChannel = FileChannel.open(directory.resolve("checkpoint"),
+      StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    readCheckpoint();
+    recover();
+  }
+
+  private void readCheckpoint() throws IOException {
+    checkpointBuffer.clear();
+    while(checkpointBuffer.hasRemaining() && checkpointChannel.read(checkpointBuffer) > 0);
+    checkpointBuffer.flip();
+    if(checkpointBuffer.remaining() == 16) {
+      checkpointSegment = checkpointBuffer.getLong();
+      checkpointOffset = checkpointBuffer.getInt();
+      if(checkpointBuffer.getInt() != (int) (checkpointSegment * 31 + checkpointOffset)) // written half way
+        checkpointSegment = 0;
+    }
+  }
+
+  private void recover() throws IOException {
+    TreeMap<Long, Path> files = new TreeMap<>();
+    try(DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+      for(Path file : stream) {
+        String name = file.getFileName().toString();
+        try {
+          files.put(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())), file);
+        } catch(NumberFormatException e) {
+          // not one of ours
+        }
+      }
+    }
+    if(checkpointSegment == 0 || !files.containsKey(checkpointSegment)) {
+      // No checkpoint (yet), start from the first segment there is
+      checkpointSegment = files.isEmpty() ? 1 : files.firstKey();
+      checkpointOffset = 0;
+    }
+    for(Long number : files.headMap(checkpointSegment).keySet())
+      Files.delete(files.get(number));
+
+    // Find the end of the records after the checkpoint
+    writeSegment = checkpointSegment;
+    writeOffset = checkpointOffset;
+    for(Long number : files.tailMap(checkpointSegment).keySet()) {
+      MappedByteBuffer segment = map(number);
+      int offset = number == checkpointSegment ? checkpointOffset : 0;
+      int length;
+      while((length = validRecordLength(segment, offset)) > 0) {
+        offset += HEADER + length;
+        uncommitted++;
+      }
+      writeSegment = number;
+      writeOffset = offset;
+      if(length < 0) {
+        LOG.warn("Journal segment " + files.get(number) + " has a torn record at " + offset + ", dropping it and any later segments");
+        for(int i = offset; i < segmentSize; i++) // so nothing of it is taken for a record later on
+          segment.put(i, (byte) 0);
+        for(Long later : files.tailMap(number, false).keySet())
+          Files.delete(files.get(later));
+        break;
+      }
+    }
+    if(segments.isEmpty())
+      map(writeSegment);
+    readSegment = checkpointSegment;
+    readOffset = checkpointOffset;
+    if(uncommitted > 0)
+      LOG.info("Journal in " + directory + " has " + uncommitted + " record(s) not yet stored");
+  }
+
+  /** @return length of the record at offset, zero if there is none, or -1 if it is not valid */
+  private int validRecordLength(ByteBuffer segment, int offset) {
+    if(offset + HEADER > segmentSize)
+      return 0;
+    int length = segment.getInt(offset);
+    if(length == 0)
+      return 0;
+    if(length < 0 || offset + HEADER + length > segmentSize)
+      return -1;
+    return (int) checksum(segment, offset + HEADER, length) == segment.getInt(offset + 4) ? length : -1;
+  }
+
+  private long checksum(ByteBuffer segment, int offset, int length) {
+    ByteBuffer record = segment.duplicate();
+    record.limit(offset + length).position(offset);
+    crc.reset();
+    crc.update(record);
+    return crc.getValue();
+  }
+
+  private MappedByteBuffer map(long number) throws IOException {
+    MappedByteBuffer segment = segments.get(number);
+    if(segment == null) {
+      try(FileChannel channel = FileChannel.open(directory.resolve(String.format("%08d%s", number, SUFFIX)),
+        StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize); // stays valid after the channel is closed
+      }
+      segments.put(number, segment);
+    }
+    return segment;
+  }
+
+  /**
+   * Appends a record, rotating to a new segment if there is no room in the current one.
+   */
+  public void append(byte type, Buffer payload) throws IOException {
+    int length = payload.length() + 1;
+    if(HEADER + length > segmentSize)
+      throw new IOException("Journal record of " + length + " bytes does not fit in a segment of " + segmentSize + " bytes");
+    if(writeOffset + HEADER + length > segmentSize) {
+      writeSegment++;
+      writeOffset = 0;
+    }
+    MappedByteBuffer segment = map(writeSegment);
+    int offset = writeOffset + HEADER;
+    segment.put(offset, type);
+    for(int i = 0; i < payload.length(); i++)
+      segment.put(offset + 1 + i, payload.getByte(i));
+    segment.putInt(writeOffset + 4, (int) checksum(segment, offset, length));
+    segment.putInt(writeOffset, length); // last, a zero length means the record is not there
+    if(sync)
+      segment.force();
+    writeOffset += HEADER + length;
+    uncommitted++;
+  }
+
+  /**
+   * Reads records from where the last read stopped (or from the checkpoint after {@link #rewind()}).
+   *
+   * @param maxRecords Max. number of records to read
+   * @param consumer Gets the type and payload of each record
+   * @return number of records read, zero if there are no more
+   */
+  public int read(int maxRecords, BiConsumer<Byte, Buffer> consumer) throws IOException {
+    int count = 0;
+    while(count < maxRecords) {
+      if(readSegment == writeSegment && readOffset >= writeOffset)
+        break;
+      MappedByteBuffer segment = map(readSegment);
+      int length = readOffset + HEADER > segmentSize ? 0 : segment.getInt(readOffset);
+      if(length == 0) {
+        readSegment++; // rest of the segment was too small for the next record
+        readOffset = 0;
+        continue;
+      }
+      byte[] payload = new byte[length - 1];
+      ByteBuffer record = segment.duplicate();
+      record.position(readOffset + HEADER + 1);
+      record.get(payload);
+      consumer.accept(segment.get(readOffset + HEADER), Buffer.buffer(payload));
+      readOffset += HEADER + length;
+      count++;
+    }
+    return count;
+  }
+
+  /** Moves the read position back to the checkpoint, i.e. the records read since are read again */
+  public void rewind() {
+    readSegment = checkpointSegment;
+    readOffset = checkpointOffset;
+  }
+
+  /**
+   * Moves the checkpoint to the read position, i.e. the records read have been dealt with.
+   * Segments that are done with are deleted.
+   *
+   * @param records Number of records read since the checkpoint, for {@link #uncommitted()}
+   */
+  public void commit(int records) throws IOException {
+    checkpointSegment = readSegment;
+    checkpointOffset = readOffset;
+    uncommitted -= records;
+    checkpointBuffer.clear();
+    checkpointBuffer.putLong(checkpointSegment).putInt(checkpointOffset).putInt((int) (checkpointSegment * 31 + checkpointOffset));
+    checkpointBuffer.flip();
+    checkpointChannel.write(checkpointBuffer, 0);
+    if(sync)
+      checkpointChannel.force(false);
+    while(segments.firstKey() < checkpointSegment) {
+      long number = segments.pollFirstEntry().getKey();
+      Files.deleteIfExists(directory.resolve(String.format("%08d%s", number, SUFFIX)));
+    }
+  }
+
+  /** @return number of records not yet committed */
+  public long uncommitted() {
+    return uncommitted;
+  }
+
+  @Override
+  public void close() throws IOException {
+    for(MappedByteBuffer segment : segments.values())
+      segment.force();
+    segments.clear();
+    checkpointChannel.close();
+  }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright (c) 2017 CodeDroids ApS (http://www.codedroids.dk)
+ *
+ * This file is part of the HeatPump Vert.x example
+ *
+ * The HeatPump Vert.x example is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * The HeatPump Vert.x example is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the HeatPump Vert.x example. If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.codedroids.home.heatpump;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * A sparse index of the timestamps of a recording with one message per line (see the text_file of the
+ * ReplayVerticle), so a replay can start at a given time without reading the lines before it. The timestamp of a
+ * line is the first "ts" in it (the data sets of the ReplayVerticle with pace "max" and Reading.encode(true) have
+ * one), lines without it are not indexed. The lines are assumed to be in time order.
+ * <p>
+ *     The index is a file next to the recording with ".idx" appended to its name:
+ * </p>
+ * <pre>
+ * int      magic "HPIX"
+ * int      interval, timestamped lines per entry
+ * long     bytes of the recording indexed, always whole lines
+ * int      number of entries
+ * int      timestamped lines since the last entry
+ * long     (unused)
+ * entries  long timestamp (milliseconds since the epoch) and long offset of the line, in timestamp order
+ * </pre>
+ * <p>
+ *     {@link #update(Path, int)} only reads the lines added since the index was last updated, so it can be called
+ *     now and then while a recording is written, and {@link #seek(Path, long, int)} calls it first. The index is
+ *     rebuilt if it is for another interval or the recording no longer matches it. The lookup is a binary search
+ *     of the memory-mapped entries and a scan of at most an interval of lines of the memory-mapped recording.
+ * </p>
+ * <p>Does blocking file I/O, and the recording must not be compressed.</p>
+ *
+ * @author Claus Priisholm.
+ */
+final class LineIndex {
+
+  static final int DEFAULT_INTERVAL = 1000;
+  /** The timestamp of a line without one */
+  static final long NONE = Long.MIN_VALUE;
+
+  private static final int MAGIC = 0x48504958; // "HPIX"
+  private static final int HEADER = 32;
+  private static final int ENTRY = 16;
+  private static final int WINDOW = 8 * 1024 * 1024; // of the recording mapped at a time
+  private static final byte[] TS = "\"ts\":".getBytes(StandardCharsets.US_ASCII);
+
+  private LineIndex() {
+  }
+
+  static Path indexPath(Path recording) {
+    return recording.resolveSibling(recording.getFileName() + ".idx");
+  }
+
+  /**
+   * Indexes the lines added to the recording since the last update, the last line is left for later if it does
+   * not end with a newline yet.
+   *
+   * @param interval number of timestamped lines per index entry
+   * @return number of entries in the index
+   */
+  static int update(Path recording, int interval) throws IOException {
+    if(interval < 1)
+      throw new IllegalArgumentException("Index interval must be positive, got " + interval);
+    try(FileChannel data = FileChannel.open(recording, READ);
+        FileChannel index = FileChannel.open(indexPath(recording), READ, WRITE, CREATE)) {
+      ByteBuffer header = ByteBuffer.allocate(HEADER);
+      while(header.hasRemaining() && index.read(header, header.position()) > 0);
+      long indexed = 0;
+      int entries = 0;
+      int pending = 0;
+      long lastTimestamp = NONE;
+      if(!header.hasRemaining() && header.getInt(0) == MAGIC && header.getInt(4) == interval) {
+        indexed = header.getLong(8);
+        entries = header.getInt(16);
+        pending = header.getInt(20);
+        boolean valid = indexed <= data.size() && entries >= 0 && index.size() >= HEADER + (long) entries * ENTRY;
+        if(valid && entries > 0) { // still the recording indexed, if the last entry is right
+          ByteBuffer entry = ByteBuffer.allocate(ENTRY);
+          while(entry.hasRemaining() && index.read(entry, HEADER + (long) (entries - 1) * ENTRY + entry.position()) > 0);
+          lastTimestamp = entry.getLong(0);
+          Lines lines = new Lines(data, entry.getLong(8), false);
+          valid = entry.getLong(8) < indexed && lines.next() && lines.timestamp == lastTimestamp;
+        }
+        if(!valid) {
+          indexed = 0;
+          entries = 0;
+          pending = 0;
+          lastTimestamp = NONE;
+        }
+      }
+      index.truncate(HEADER + (long) entries * ENTRY);
+
+      long position = HEADER + (long) entries * ENTRY;
+      ByteBuffer batch = ByteBuffer.allocate(ENTRY * 1024);
+      Lines lines = new Lines(data, indexed, false);
+      while(lines.next()) {
+        if(lines.timestamp == NONE)
+          continue;
+        if((entries == 0 || pending >= interval) && lines.timestamp >= lastTimestamp) {
+          batch.putLong(lines.timestamp).putLong(lines.offset);
+          entries++;
+          pending = 0;
+          lastTimestamp = lines.timestamp;
+          if(!batch.hasRemaining())
+            position = write(index, batch, position);
+        }
+        pending++;
+      }
+      write(index, batch, position);
+
+      header.clear();
+      header.putInt(MAGIC).putInt(interval).putLong(lines.end).putInt(entries).putInt(pending).putLong(0L);
+      write(index, header, 0);
+      return entries;
+    }
+  }
+
+  /**
+   * Finds the first line with a timestamp at or after the given, updating the index first.
+   *
+   * @param timestamp milliseconds since the epoch
+   * @return offset of the line, the size of the recording if all lines are before the timestamp, or -1 if no line
+   *         has a timestamp
+   */
+  static long seek(Path recording, long timestamp, int interval) throws IOException {
+    int entries = update(recording, interval);
+    if(entries == 0)
+      return -1;
+    try(FileChannel data = FileChannel.open(recording, READ);
+        FileChannel index = FileChannel.open(indexPath(recording), READ)) {
+      MappedByteBuffer entry = index.map(FileChannel.MapMode.READ_ONLY, HEADER, (long) entries * ENTRY);
+      int low = 0;
+      int high = entries - 1;
+      int before = -1; // the last entry before the timestamp
+      while(low <= high) {
+        int middle = (low + high) >>> 1;
+        if(entry.getLong(middle * ENTRY) < timestamp) {
+          before = middle;
+          low = middle + 1;
+        } else
+          high = middle - 1;
+      }
+      if(before < 0)
+        return 0;
+      Lines lines = new Lines(data, entry.getLong(before * ENTRY + 8), true);
+      while(lines.next()) {
+        if(lines.timestamp != NONE && lines.timestamp >= timestamp)
+          return lines.offset;
+      }
+      return lines.end;
+    }
+  }
+
+  /** The first "ts" of the line from 'from' (inclusive) to 'to' (exclusive), or NONE */
+  static long timestamp(ByteBuffer line, int from, int to) {
+    search:
+    for(int i = from; i <= to - TS.length; i++) {
+      for(int j = 0; j < TS.length; j++) {
+        if(line.get(i + j) != TS[j])
+          continue search;
+      }
+      int k = i + TS.length;
+      boolean negative = k < to && line.get(k) == '-';
+      if(negative)
+        k++;
+      long value = 0;
+      int digits = 0;
+      for(; k < to && line.get(k) >= '0' && line.get(k) <= '9'; k++, digits++)
+        value = value * 10 + (line.get(k) - '0');
+      return digits == 0 ? NONE : negative ? -value : value;
+    }
+    return NONE;
+  }
+
+  private static long write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+    buffer.flip();
+    while(buffer.hasRemaining())
+      position += channel.write(buffer, position);
+    buffer.clear();
+    return position;
+  }
+
+  /** Steps through the lines of the recording from an offset, mapping a window of it at a time */
+  private static final class Lines {
+    private final FileChannel channel;
+    private final long size;
+    private final boolean includeLast;
+    private MappedByteBuffer window = null;
+    private long windowStart;
+
+    long offset; // of the current line
+    long end; // after the current line and its newline, where the next begins
+    long timestamp; // of the current line
+
+    /** @param includeLast whether a last line without a newline is included */
+    Lines(FileChannel channel, long from, boolean includeLast) throws IOException {
+      this.channel = channel;
+      this.size = channel.size();
+      this.includeLast = includeLast;
+      this.end = from;
+    }
+
+    boolean next() throws IOException {
+      if(end >= size)
+        return false;
+      offset = end;
+      if(window == null || offset >= windowStart + window.limit())
+        map(offset);
+      while(true) {
+        int from = (int) (offset - windowStart);
+        int to = from;
+        while(to < window.limit() && window.get(to) != '\n')
+          to++;
+        if(to < window.limit()) {
+          end = windowStart + to + 1;
+          timestamp = timestamp(window, from, to);
+          return true;
+        }
+        if(windowStart + window.limit() >= size) {
+          if(!includeLast)
+            return false; // end stays at the start of the line
+          end = size;
+          timestamp = timestamp(window, from, to);
+          return true;
+        }
+        if(offset == windowStart)
+          throw new IOException("Line at " + offset + " is longer than " + WINDOW + " bytes");
+        map(offset);
+      }
+    }
+
+    private void map(long position) throws IOException {
+      windowStart = position;
+      window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW, size - position));
+    }
+  }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (c) 2017 CodeDroids ApS (http://www.codedroids.dk)
+ *
+ * This file is part of the HeatPump Vert.x example
+ *
+ * The HeatPump Vert.x example is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * The HeatPump Vert.x example is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the HeatPump Vert.x example. If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.codedroids.home.heatpump;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.file.AsyncFile;
+import io.vertx.core.file.OpenOptions;
+import io.vertx.core.parsetools.RecordParser;
+
+import java.util.ArrayDeque;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Reads the lines of a text file when asked for them, without blocking the event loop. The file is opened as a
+ * paused AsyncFile which is only resumed while a line is wanted and none is parsed yet, so no more than about a
+ * read buffer of lines is held however big the file is. A file ending in ".gz" is inflated as it is read
+ * (concatenated gzip members are read one after the other).
+ * <p>
+ *     Lines end with "\n" or "\r\n" and are decoded as UTF-8 like Files.newBufferedReader(), the last one need
+ *     not end with a newline. Must be used on the context that created it.
+ * </p>
+ *
+ * @author Claus Priisholm.
+ */
+final class LineReader {
+
+  private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+  private enum GzipState { header, inflate, trailer }
+
+  private final AsyncFile file;
+  private final RecordParser parser = RecordParser.newDelimited("\n", this::parsed);
+  private final ArrayDeque<String> lines = new ArrayDeque<>();
+  private final ArrayDeque<Handler<AsyncResult<String>>> waiting = new ArrayDeque<>();
+  private boolean newline = true; // the last byte given to the parser ended a line (or there was none)
+  private boolean ended = false;
+  private Throwable failure = null;
+
+  // Only for gzip
+  private final Inflater inflater;
+  private final CRC32 crc = new CRC32();
+  private final byte[] inflated;
+  private GzipState gzipState = GzipState.header;
+  private Buffer pending = Buffer.buffer(); // header or trailer read so far
+  private long size = 0; // bytes inflated in the current member
+  private int members = 0;
+
+  /**
+   * Opens the file, which is blocking but only takes a moment, so intended for setting up e.g. a verticle.
+   *
+   * @throws io.vertx.core.file.FileSystemException if the file cannot be opened
+   */
+  LineReader(Vertx vertx, String path) {
+    this(vertx, path, 0L);
+  }
+
+  /**
+   * Opens the file for reading from the offset, which must be the start of a line (e.g. found by LineIndex).
+   *
+   * @throws io.vertx.core.file.FileSystemException if the file cannot be opened
+   */
+  LineReader(Vertx vertx, String path, long offset) {
+    boolean gzip = path.endsWith(".gz");
+    if(gzip && offset != 0)
+      throw new IllegalArgumentException("A gzip file can only be read from the start, got offset " + offset);
+    file = vertx.fileSystem().openBlocking(path, new OpenOptions().setRead(true).setWrite(false).setCreate(false));
+    file.setReadBufferSize(READ_BUFFER_SIZE);
+    file.setReadPos(offset);
+    inflater = gzip ? new Inflater(true) : null;
+    inflated = gzip ? new byte[READ_BUFFER_SIZE] : null;
+    file.pause();
+    file.exceptionHandler(this::fail);
+    file.endHandler(v -> end());
+    file.handler(this::read);
+  }
+
+  /**
+   * Gets the next line, or null at the end of the file. The handler is called right away when the line is parsed
+   * already.
+   */
+  void readLine(Handler<AsyncResult<String>> handler) {
+    waiting.add(handler);
+    deliver();
+    if(!waiting.isEmpty() && !ended && failure == null)
+      file.resume();
+  }
+
+  void close() {
+    file.close();
+    if(inflater != null)
+      inflater.end();
+  }
+
+  private void deliver() {
+    while(!waiting.isEmpty()) {
+      if(!lines.isEmpty())
+        waiting.poll().handle(Future.succeededFuture(lines.poll()));
+      else if(failure != null)
+        waiting.poll().handle(Future.failedFuture(failure));
+      else if(ended)
+        waiting.poll().handle(Future.succeededFuture(null));
+      else
+        return;
+    }
+  }
+
+  private void read(Buffer buffer) {
+    if(failure != null)
+      return;
+    if(inflater == null)
+      parse(buffer);
+    else {
+      try {
+        gunzip(buffer.getBytes());
+      } catch(ZipException e) {
+        fail(e);
+        return;
+      }
+    }
+    if(!lines.isEmpty()) {
+      if(waiting.size() <= lines.size())
+        file.pause();
+      deliver();
+    }
+  }
+
+  private void parse(Buffer buffer) {
+    if(buffer.length() == 0)
+      return;
+    newline = buffer.getByte(buffer.length() - 1) == '\n';
+    parser.handle(buffer);
+  }
+
+  private void parsed(Buffer line) {
+    int length = line.length();
+    if(length > 0 && line.getByte(length - 1) == '\r')
+      length--;
+    lines.add(line.getString(0, length, "UTF-8"));
+  }
+
+  private void end() {
+    if(failure != null)
+      return;
+    if(inflater != null && (gzipState != GzipState.header || pending.length() > 0 || members == 0)) {
+      fail(new ZipException("Unexpected end of gzip file"));
+      return;
+    }
+    if(!newline)
+      parse(Buffer.buffer("\n"));
+    ended = true;
+    deliver();
+  }
+
+  private void fail(Throwable cause) {
+    failure = cause;
+    file.pause();
+    deliver();
+  }
+
+  private void gunzip(byte[] input) throws ZipException {
+    int position = 0;
+    while(position < input.length) {
+      if(gzipState == GzipState.inflate) {
+        inflater.setInput(input, position, input.length - position);
+        try {
+          int length;
+          while((length = inflater.inflate(inflated)) > 0) {
+            crc.update(inflated, 0, length);
+            size += length;
+            parse(Buffer.buffer(length).appendBytes(inflated, 0, length));
+          }
+        } catch(DataFormatException e) {
+          throw new ZipException("Invalid gzip data: " + e.getMessage());
+        }
+        if(!inflater.finished())
+          return; // all of the input is used
+        position = input.length - inflater.getRemaining();
+        gzipState = GzipState.trailer;
+        pending = Buffer.buffer();
+      } else {
+        pending.appendByte(input[position++]);
+        if(gzipState == GzipState.header) {
+          if(headerLength(pending) == pending.length()) {
+            gzipState = GzipState.inflate;
+            inflater.reset();
+            crc.reset();
+            size = 0;
+          }
+        } else if(pending.length() == 8) {
+          if(pending.getIntLE(0) != (int) crc.getValue() || pending.getIntLE(4) != (int) size)
+            throw new ZipException("Corrupt gzip member, CRC or size does not match");
+          members++;
+          gzipState = GzipState.header;
+          pending = Buffer.buffer();
+        }
+      }
+    }
+  }
+
+  /** Length of the gzip member header at the start of the buffer, -1 if the buffer does not hold all of it yet */
+  static int headerLength(Buffer header) throws ZipException {
+    if(header.length() >= 2 && (header.getUnsignedByte(0) != 0x1f || header.getUnsignedByte(1) != 0x8b))
+      throw new ZipException("Not in gzip format");
+    if(header.length() < 10)
+      return -1;
+    if(header.getByte(2) != 8)
+      throw new ZipException("Unsupported gzip compression method " + header.getByte(2));
+    int flags = header.getUnsignedByte(3);
+    int length = 10;
+    if((flags & 4) != 0) { // FEXTRA, two bytes of length and the extra field
+      if(header.length() < length + 2)
+        return -1;
+      length += 2 + (header.getUnsignedByte(length) | header.getUnsignedByte(length + 1) << 8);
+    }
+    for(int zeroTerminated : new int[] { 8, 16 }) { // FNAME and FCOMMENT
+      if((flags & zeroTerminated) != 0) {
+        do {
+          if(header.length() <= length)
+            return -1;
+        } while(header.getByte(length++) != 0);
+      }
+    }
+    if((flags & 2) != 0) // FHCRC
+      length += 2;
+    return header.length() >= length ? length : -1;
+  }
+}
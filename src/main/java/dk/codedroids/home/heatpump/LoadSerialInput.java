@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2017 CodeDroids ApS (http://www.codedroids.dk)
+ *
+ * This file is part of the HeatPump Vert.x example
+ *
+ * The HeatPump Vert.x example is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * The HeatPump Vert.x example is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the HeatPump Vert.x example. If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.codedroids.home.heatpump;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Consumer;
+
+/**
+ * A virtual device for load testing: emits lines at a fixed rate, either recorded lines (with their CRC, e.g.
+ * two-hours-of-serial-data.csv) over and over, or synthetic lines with slowly changing values and a valid CRC.
+ * Use it with the "load" driver of the SerialVerticle, one per serial_ports entry, to drive the pipeline with
+ * many devices without any hardware.
+ *
+ * <p>The lines are emitted on a timer on the Vert.x context that built the input, as many as are due since the
+ * start at the rate given, so a rate above what the timer can do is emitted in bursts. If the context is too busy
+ * to keep up the lines are emitted late rather than dropped, and stamped with the time they were emitted.</p>
+ *
+ * <p>The lines are prepared up front and the handler gets the same buffers over and over, so it must not keep
+ * them (the SerialVerticle copies the bytes).</p>
+ *
+ * @author Claus Priisholm.
+ */
+public class LoadSerialInput implements SerialInput {
+
+  private static final Logger LOG = LoggerFactory.getLogger(LoadSerialInput.class);
+
+  private static final int SYNTHETIC_LINES = 360; // an hour at 10 second samples
+  private static final double[] SYNTHETIC_BASE = { -0.7, 37.2, 28.6, 8.8, 33.7, 1.2, 1.2, 1.2 };
+
+  /**
+   * Like the other inputs, all but the vertx instance and the device name have defaults.
+   */
+  public static class Builder {
+    private final Vertx vertx;
+    private final String devicePath;
+    private double rate;
+    private String linesFile;
+    private int columns;
+
+    /** Constructor with required parameters, should be called from the context the handler must run on */
+    public Builder(Vertx vertx, String devicePath) {
+      this.vertx = vertx;
+      this.devicePath = devicePath;
+      this.rate = 0.1;
+      this.linesFile = null;
+      this.columns = SYNTHETIC_BASE.length;
+    }
+    /** Lines per second, defaults to 0.1 like the controller */
+    public Builder rate(double value) { this.rate = value; return this; }
+    /** File with the lines to emit, defaults to synthetic lines */
+    public Builder linesFile(String value) { this.linesFile = value; return this; }
+    /** Number of values in the synthetic lines, defaults to the 8 of the default sensors */
+    public Builder columns(int value) { this.columns = value; return this; }
+    /** Build LoadSerialInput, reads the lines file if given */
+    public LoadSerialInput build() { return new LoadSerialInput(this); }
+  }
+
+  private final Vertx vertx;
+  private final String devicePath;
+  private final double rate;
+  private final Buffer[] lines;
+  private LineHandler handler;
+  private long timerId = -1;
+  private long start; // System.nanoTime()
+  private long emitted = 0;
+  private boolean warned = false;
+
+  private LoadSerialInput(Builder builder) {
+    if(!(builder.rate > 0))
+      throw new IllegalArgumentException("Invalid configuration, rate must be positive for the load driver");
+    this.vertx = builder.vertx;
+    this.devicePath = builder.devicePath;
+    this.rate = builder.rate;
+    this.lines = builder.linesFile != null ? recorded(builder.linesFile) : synthetic(builder.columns, devicePath.hashCode());
+  }
+
+  private static Buffer[] recorded(String linesFile) {
+    try {
+      // Since it is kind of setup we take a chance and read the file even though it is blocking
+      List<Buffer> lines = new ArrayList<>();
+      for(String line : Files.readAllLines(Paths.get(linesFile), StandardCharsets.ISO_8859_1))
+        if(!line.isEmpty())
+          lines.add(Buffer.buffer(line, "ISO-8859-1"));
+      if(lines.isEmpty())
+        throw new IllegalArgumentException("Invalid configuration, no lines in " + linesFile + " for the load driver");
+      return lines.toArray(new Buffer[lines.size()]);
+    } catch(IOException e) {
+      throw new IllegalArgumentException("Invalid configuration, unable to read " + linesFile + " for the load driver: " + e.getMessage(), e);
+    }
+  }
+
+  /** A cycle of lines with the values moving up and down a bit, each device out of phase with the others */
+  private static Buffer[] synthetic(int columns, int phase) {
+    Buffer[] lines = new Buffer[SYNTHETIC_LINES];
+    for(int i = 0; i < SYNTHETIC_LINES; i++) {
+      StringBuilder line = new StringBuilder();
+      for(int col = 0; col < columns; col++) {
+        double angle = 2 * Math.PI * (i + phase + col * 17) / SYNTHETIC_LINES;
+        double value = SYNTHETIC_BASE[col % SYNTHETIC_BASE.length] + 2.0 * Math.sin(angle);
+        line.append(col == 0 ? "" : ",").append(String.format(Locale.ROOT, "%.1f", value));
+      }
+      byte[] data = line.toString().getBytes(StandardCharsets.ISO_8859_1);
+      lines[i] = Buffer.buffer(line.append(',').append(SerialVerticle.crc8(data, 0, data.length)).toString(), "ISO-8859-1");
+    }
+    return lines;
+  }
+
+  @Override
+  public void setHandler(Consumer<String> handler) {
+    setLineHandler((line, timestamp) -> handler.accept(line.toString(StandardCharsets.ISO_8859_1)));
+  }
+
+  @Override
+  public void setBufferHandler(Consumer<Buffer> handler) {
+    setLineHandler((line, timestamp) -> handler.accept(line));
+  }
+
+  /** Starts emitting the lines */
+  @Override
+  public void setLineHandler(LineHandler handler) {
+    this.handler = handler;
+    if(timerId >= 0)
+      return;
+    start = System.nanoTime();
+    long tick = Math.max(1L, Math.min(1000L, (long) (1000 / rate)));
+    timerId = vertx.setPeriodic(tick, tid -> emit());
+    emit();
+  }
+
+  private void emit() {
+    long due = (long) ((System.nanoTime() - start) / 1e9 * rate) + 1; // the first line right away
+    if(!warned && due - emitted > Math.max(rate, 1.0)) {
+      LOG.warn("Load input " + devicePath + " is more than a second behind, the lines are emitted late");
+      warned = true;
+    }
+    for(; emitted < due; emitted++)
+      handler.handle(lines[(int) (emitted % lines.length)], IngestClock.now());
+  }
+
+  /** @return number of lines emitted */
+  public long emitted() {
+    return emitted;
+  }
+
+  @Override
+  public void close() {
+    if(timerId >= 0) {
+      vertx.cancelTimer(timerId);
+      timerId = -1;
+    }
+  }
+}
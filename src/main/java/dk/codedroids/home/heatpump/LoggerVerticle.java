@@ -22,20 +22,73 @@ import io.vertx.core.AbstractVerticle;
 import io.vertx.core.AsyncResult;
 import io.vertx.core.Future;
 import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
 import io.vertx.core.eventbus.EventBus;
+import io.vertx.core.eventbus.Message;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import io.vertx.core.logging.Logger;
 import io.vertx.core.logging.LoggerFactory;
-import io.vertx.ext.jdbc.JDBCClient;
+import io.vertx.core.shareddata.LocalMap;
 import io.vertx.ext.sql.SQLConnection;
-import java.text.SimpleDateFormat;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 /**
- * Configuration (the database entry is omitted it will run but not do any persistence of data):
+ * Stores the data sets received on the event bus in the database, or in a local time series store.
+ *
+ * <p>Writes are done behind: the rows of the data sets are collected until <b>batch_size</b> data sets have
+ * arrived or <b>batch_delay</b> has passed since the first of them, whichever comes first, and then written with
+ * one batch insert per table on a single connection. The rows keep the time the data arrived (see IngestClock),
+ * so the delay does not show in the data. The batch sizes and the latency from the first data set arriving to
+ * the batch being written are logged once a minute.</p>
+ *
+ * <p>With a <b>journal</b> the data sets are appended to a write-ahead journal on local disk (see Journal) as they
+ * arrive, and the batches are read from the journal rather than kept in memory. A batch is only checkpointed in the
+ * journal once it has been written, so if the database is unavailable the data sets stay in the journal and are
+ * written, <b>drain_batch</b> data sets at a time, when the database is back. The same goes for data sets that
+ * were not yet written when the verticle stopped. A data set the database will not take (e.g. a row already there
+ * with the plain dialect) is logged as lost and skipped, so it does not hold up the rest.</p>
+ *
+ * <p>With <b>rollups</b> the min/max/sum/count of the values of each sensor are kept per minute, hour and day in the
+ * tables pump_rollup_1m, pump_rollup_1h and pump_rollup_1d (see create-tables.sql), so long periods can be queried
+ * from a few rows (the average being sum_data / cnt). The aggregates are accumulated in memory (see Rollup) from the
+ * rows inserted (not from those ignored as already there), and each is written when its period is over, merged with what may be there already. The rollups of
+ * whole days can be rebuilt from the rows by sending <code>{"from":"2017-01-01","to":"2017-02-01"}</code> (days,
+ * "to" not included and at most today) to the event bus address with ".backfill" appended, the reply tells the
+ * number of days and rollups written.</p>
+ *
+ * <p>With <b>storage</b> set to "tsdb" the values are stored in compressed time series files (see TimeSeriesStore)
+ * rather than the database, which takes a few bytes per value instead of a row. The batches are written the same
+ * way, but off the event loop.</p>
+ *
+ * <p>Deploying more than one instance with <b>ingest</b> "each" has every instance write every data set. With
+ * "shared" the data sets are shared between the instances instead: the first instance forwards each data set
+ * published on the event bus address to one of the instances (point-to-point, round-robin), so the writes are
+ * spread over the instances and their connections. Each instance numbers itself, so with a journal each has its
+ * own in a sub directory by number. Set the <b>dialect</b> of the database so rows written twice (e.g. from the
+ * journal after a failed checkpoint) are ignored and rollups of the same period from more than one instance are
+ * merged, see SqlDialect.</p>
+ *
+ * <p>A data set sent with a reply handler (e.g. by the ReplayVerticle with pace "max") is acknowledged once it is
+ * written, or appended to the journal if there is one, and failed if it could not be. So the sender can keep a
+ * number of data sets in flight and go no faster than they are written.</p>
+ *
+ * Configuration (if neither a database nor a tsdb is given it will run but not do any persistence of data):
  *
  * <ul>
  * <li><b>event_bus : "home.heatpump.data"</b> -- Eventbus address</li>
@@ -46,21 +99,108 @@ import java.util.stream.Collectors;
  *        <li><b>password : "password"</b></li>
  *        <li><b>driver_class : "org.mariadb.jdbc.Driver"</b> -- or other jdbc drives such as com.mysql.jdbc.Driver</li>
  *        <li><b>max_pool_size : 10</b> -- max. size of the connection pool, defaults to 10</li>
+ *        <li><b>dialect : "plain"</b> -- "plain", "mysql", "postgresql" or "merge", see SqlDialect. Other than plain
+ *               rows with a timestamp already there are ignored and rollups are merged in one statement</li>
+ *        <li><b>max_statements, validation_query, ... </b> -- see DbSession, the rows are written on one long-lived
+ *               connection</li>
+ *    </ul>
+ * </li>
+ * <li><b>schema : "narrow"</b> -- "narrow" (default) stores a row per value in pump_temperature and pump_current,
+ *        "wide" stores a row per data set in pump_sample with a column per sensor (see SampleTable), values of
+ *        sensors without a column are not stored</li>
+ * <li><b>rollups : false</b> -- If true keep the rollup tables up to date (database storage only, needs a dialect
+ *        other than plain with ingest "shared")</li>
+ * <li><b>ingest : "each"</b> -- "each" (default) every instance writes every data set, "shared" each data set is
+ *        written by one of the instances, the first of them forwarding the data sets</li>
+ * <li><b>storage : "database"</b> -- Either "database" (default) or "tsdb"</li>
+ * <li><b>tsdb :</b> -- Used with storage "tsdb"
+ *    <ul>
+ *        <li><b>directory : "/var/lib/heatpump/tsdb"</b> -- Directory of the time series files, one set per sensor</li>
+ *        <li><b>block_points : 360</b> -- Number of values per compressed block, i.e. an hour at 10 second samples</li>
+ *    </ul>
+ * </li>
+ * <li><b>batch_size : 50</b> -- Max. number of data sets written in one go, 1 writes each data set as it arrives</li>
+ * <li><b>batch_delay : 1000</b> -- Max. number of milliseconds a data set waits to be written</li>
+ * <li><b>journal :</b> -- Optional, keep the data sets in a journal until written
+ *    <ul>
+ *        <li><b>directory : "/var/lib/heatpump/journal"</b> -- Directory of the journal files, one per verticle
+ *               (with ingest "shared" one sub directory per instance number)</li>
+ *        <li><b>segment_size : 4194304</b> -- Size of each journal file in bytes</li>
+ *        <li><b>sync : false</b> -- If true each data set is forced to disk, otherwise the OS takes care of it
+ *               (survives the JVM crashing, but not necessarily a power cut)</li>
+ *        <li><b>drain_batch : 1000</b> -- Max. number of data sets written in one go when catching up</li>
+ *        <li><b>retry_delay : 5000</b> -- Milliseconds between attempts to write when the database is unavailable</li>
  *    </ul>
  * </li>
+ * </ul>
  *
  * @author Claus Priisholm.
  */
 public class LoggerVerticle extends AbstractVerticle {
 
-  private final SimpleDateFormat timestampFormatter = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+  // Thread-safe, unlike SimpleDateFormat
+  private final DateTimeFormatter timestampFormatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
   private final Logger LOG = LoggerFactory.getLogger(this.getClass());
 
   private String eventBusAddress;
-  private JDBCClient client = null;
+  private DbSession session = null;
+  private SqlDialect dialect = SqlDialect.plain;
+  private String instanceKey = null; // with ingest "shared", the instance number claimed in the INSTANCES map
+  private TimeSeriesStore store = null; // used on a worker, one batch at a time
 
-  private static final String SQL_TEMP = "insert into pump_temperature (ts, sensor, data) values (?, ?, ?)";
-  private static final String SQL_POWR = "insert into pump_current (ts, sensor, data) values (?, ?, ?)";
+  // Write-behind buffer, only used on the verticle's context
+  private int batchSize;
+  private long batchDelay;
+  private List<JsonArray> pendingTemp = new ArrayList<>();
+  private List<JsonArray> pendingPowr = new ArrayList<>();
+  private int pendingDataSets = 0;
+  private List<int[]> pendingEnds = new ArrayList<>(); // of the rows of each data set in pendingTemp and pendingPowr
+  private long[] pendingTimestamps; // of the rows of each data set, for the rollups
+  private List<Message<Object>> pendingReplies = new ArrayList<>(); // of each data set, null if not sent
+  private long pendingSince; // System.nanoTime() when the first pending data set arrived
+  private long flushTimer = -1;
+
+  // Write-ahead journal, if configured the pending data sets are read from it rather than buffered
+  private static final byte RECORD_READING = 1;
+  private static final byte RECORD_JSON = 2;
+  private Journal journal = null;
+  private final ReadingCodec codec = new ReadingCodec();
+  private int drainBatch;
+  private long retryDelay;
+  private Future<Void> draining = null; // until the journal is drained
+  private long retryTimer = -1;
+  private boolean stopping = false;
+
+  // Rollups, accumulated from the rows once written
+  private Rollup rollup = null;
+
+  private boolean wide = false; // one row per data set in pump_sample, see SampleTable
+  private List<Rollup.Bucket> unwrittenBuckets = new ArrayList<>();
+
+  // Reported and reset once per STATS_INTERVAL
+  private int flushes = 0;
+  private int flushedDataSets = 0;
+  private int flushedRows = 0;
+  private int failedFlushes = 0;
+  private long totalLatency = 0; // milliseconds
+  private long maxLatency = 0;
+  private static final long STATS_INTERVAL = 60000L;
+
+  // Of all instances, served by the PanelVerticle
+  private static final Metrics.Counter DATA_SETS = Metrics.counter("heatpump_logger_data_sets_total", "Data sets received to be written");
+  private static final Metrics.Counter ROWS = Metrics.counter("heatpump_logger_rows_total", "Rows (or time series values) written");
+  private static final Metrics.Counter FAILED_BATCHES = Metrics.counter("heatpump_logger_failed_batches_total", "Batches that failed to be written");
+  private static final Metrics.Histogram BATCH_LATENCY = Metrics.histogram("heatpump_logger_batch_latency_seconds", "Time from the first data set of a batch arriving to the batch being written");
+  private static final Metrics.Histogram WRITE_TIME = Metrics.histogram("heatpump_logger_write_seconds", "Time to write a batch");
+
+  private static final String INSTANCES = LoggerVerticle.class.getName(); // local map of the instance numbers
+  private static final String[] ROLLUP_COLUMNS = {
+    "ts timestamp", "sensor varchar(4)", "min_data float", "max_data float", "sum_data double", "cnt int" };
+
+  // Of the dialect of the database
+  private String sqlTemp;
+  private String sqlPowr;
+  private String sqlSample;
 
   @Override
   public void start() {
@@ -71,149 +211,905 @@ public class LoggerVerticle extends AbstractVerticle {
     eventBusAddress = config().getString("event_bus","home.heatpump.playback");
 
     // if no database config, this simply print events to stdout
+    String storage = config().getString("storage", "database");
     JsonObject databaseConfig = config().getJsonObject("database");
-    if(databaseConfig != null) {
-      client = JDBCClient.createShared(vertx, new JsonObject()
-        .put("url", databaseConfig.getString("url"))
-        .put("user", databaseConfig.getString("user"))
-        .put("password", databaseConfig.getString("password"))
-        .put("driver_class", databaseConfig.getString("driver_class"))
-        .put("max_pool_size", databaseConfig.getInteger("pool_size", 10))
-      );
+    if("tsdb".equals(storage)) {
+      JsonObject tsdbConfig = config().getJsonObject("tsdb", new JsonObject());
+      String directory = tsdbConfig.getString("directory");
+      if(directory == null)
+        throw new IllegalArgumentException("Invalid configuration, storage 'tsdb' needs a tsdb directory for LoggerVerticle");
+      try {
+        // Since it is kind of setup we take a chance and open the files even though it is blocking
+        store = new TimeSeriesStore(Paths.get(directory), tsdbConfig.getInteger("block_points", 360), false);
+      } catch(IOException e) {
+        throw new IllegalStateException("Unable to open time series in " + directory + ": " + e.getMessage(), e);
+      }
+    } else if(!"database".equals(storage)) {
+      throw new IllegalArgumentException("Invalid configuration, storage must be 'database' or 'tsdb' for LoggerVerticle, got '" + storage + "'");
+    } else if(databaseConfig != null) {
+      session = new DbSession(vertx, databaseConfig);
+      dialect = SqlDialect.of(databaseConfig.getString("dialect", "plain"));
+    }
+    sqlTemp = dialect.insertIgnore("pump_temperature", 2, "ts timestamp", "sensor varchar(4)", "data float");
+    sqlPowr = dialect.insertIgnore("pump_current", 2, "ts timestamp", "sensor varchar(4)", "data float");
+    sqlSample = SampleTable.insert(dialect);
+
+    String schema = config().getString("schema", "narrow");
+    if(!"narrow".equals(schema) && !"wide".equals(schema))
+      throw new IllegalArgumentException("Invalid configuration, schema must be 'narrow' or 'wide' for LoggerVerticle, got '" + schema + "'");
+    wide = "wide".equals(schema) && session != null;
+
+    batchSize = config().getInteger("batch_size", 50);
+    batchDelay = config().getLong("batch_delay", 1000L);
+    if(batchSize < 1 || batchDelay < 1)
+      throw new IllegalArgumentException("Invalid configuration, batch_size and batch_delay must be positive for LoggerVerticle");
+    pendingTimestamps = new long[batchSize];
+
+    String ingest = config().getString("ingest", "each");
+    if(!"each".equals(ingest) && !"shared".equals(ingest))
+      throw new IllegalArgumentException("Invalid configuration, ingest must be 'each' or 'shared' for LoggerVerticle, got '" + ingest + "'");
+    int instance = "shared".equals(ingest) ? claimInstance() : -1;
+
+    JsonObject journalConfig = config().getJsonObject("journal");
+    if(journalConfig != null && persistent()) {
+      String directory = journalConfig.getString("directory");
+      drainBatch = journalConfig.getInteger("drain_batch", 1000);
+      retryDelay = journalConfig.getLong("retry_delay", 5000L);
+      if(directory == null || drainBatch < 1 || retryDelay < 1)
+        throw new IllegalArgumentException("Invalid configuration, journal needs a directory and positive drain_batch and retry_delay for LoggerVerticle");
+      try {
+        journal = new Journal(instance < 0 ? Paths.get(directory) : Paths.get(directory, Integer.toString(instance)), journalConfig.getInteger("segment_size", 4194304), journalConfig.getBoolean("sync", false));
+      } catch(IOException e) {
+        throw new IllegalStateException("Unable to open journal in " + directory + ": " + e.getMessage(), e);
+      }
     }
 
+    ReadingCodec.register(vertx);
     EventBus eventBus = vertx.eventBus();
 
-    eventBus.consumer(eventBusAddress, message -> {
-      // If there is a database client store the values, otherwise just print the message
-      if(client != null) {
-        if(LOG.isDebugEnabled())
-          LOG.debug("Event bus message @" + new Date() + ": " + message.body());
+    if(config().getBoolean("rollups", false)) {
+      if(session == null)
+        throw new IllegalArgumentException("Invalid configuration, rollups need a database for LoggerVerticle");
+      if(instance >= 0 && dialect == SqlDialect.plain) // the instances would race to insert the same rollups
+        throw new IllegalArgumentException("Invalid configuration, rollups with ingest 'shared' need a database dialect other than plain for LoggerVerticle");
+      rollup = new Rollup(ZoneId.systemDefault());
+      eventBus.consumer(eventBusAddress + ".backfill", this::backfill);
+    }
+
+    if(instance < 0) {
+      eventBus.consumer(eventBusAddress, this::receive);
+    } else {
+      String ingestAddress = eventBusAddress + ".ingest";
+      if(instance == 0) // sent rather than published, so each data set goes to one of the instances
+        eventBus.consumer(eventBusAddress, message -> {
+          if(message.replyAddress() == null)
+            eventBus.send(ingestAddress, message.body());
+          else // passing on the acknowledgement
+            eventBus.send(ingestAddress, message.body(), ar -> {
+              if(ar.succeeded())
+                message.reply(ar.result().body());
+              else
+                message.fail(500, ar.cause().getMessage());
+            });
+        });
+      eventBus.consumer(ingestAddress, this::receive);
+    }
+
+    if(persistent())
+      vertx.setPeriodic(STATS_INTERVAL, tid -> reportStats());
+    if(journal != null && journal.uncommitted() > 0) // left over from last time
+      vertx.runOnContext(v -> flush());
+
+    LOG.info("LoggerVerticle started - " + (store != null ? "with time series storage" : session == null ? "just logging" : "with persistence")
+      + ", listens on " + eventBusAddress + (instance < 0 ? "" : " as instance #" + instance + " sharing the data sets"));
+  }
+
+  /**
+   * @return the lowest instance number not taken by another instance on the same event bus address
+   */
+  private int claimInstance() {
+    LocalMap<String, String> instances = vertx.sharedData().getLocalMap(INSTANCES);
+    for(int i = 0; ; i++) {
+      String key = eventBusAddress + "#" + i;
+      if(instances.putIfAbsent(key, deploymentID()) == null) {
+        instanceKey = key;
+        return i;
+      }
+    }
+  }
 
-        JsonArray dataSet = new JsonArray(message.body().toString());
+  private void receive(Message<Object> message) {
+    // If there is a database client store the values, otherwise just print the message
+    if(persistent()) {
+      if(LOG.isDebugEnabled())
+        LOG.debug("Event bus message @" + new Date() + ": " + message.body());
 
-        saveData(dataSet).setHandler(ar -> {
-          if (ar.failed()) {
-            LOG.error("saveData() failed: " + ar.cause().getMessage());
-          } else {
-            if (LOG.isTraceEnabled())
-              LOG.trace(dataSet);
+      // Readings from the SerialVerticle arrive as is, other sources send the JSON form
+      Object dataSet = message.body();
+      DATA_SETS.increment();
+      if(journal != null) {
+        if(!append(dataSet)) {
+          message.fail(500, "Appending to journal failed");
+          return;
+        }
+        message.reply(null); // no-op unless sent
+      } else if(dataSet instanceof Reading)
+        pendingTimestamps[pendingDataSets] = addRows((Reading) dataSet, pendingTemp, pendingPowr);
+      else
+        pendingTimestamps[pendingDataSets] = addRows(new JsonArray(dataSet.toString()), pendingTemp, pendingPowr);
+      if(journal == null) {
+        pendingEnds.add(new int[] { pendingTemp.size(), pendingPowr.size() });
+        pendingReplies.add(message.replyAddress() != null ? message : null);
+      }
+      if(pendingDataSets++ == 0)
+        pendingSince = System.nanoTime();
+
+      if(pendingDataSets >= batchSize)
+        flush();
+      else if(flushTimer < 0)
+        flushTimer = vertx.setTimer(batchDelay, tid -> {
+          flushTimer = -1;
+          flush();
+        });
+    } else {
+      System.out.println("Logger received @" + new Date() + ": " + message.body());
+      message.reply(null);
+    }
+  }
+
+  private boolean persistent() {
+    return session != null || store != null;
+  }
+
+  @Override
+  public void stop(Future<Void> stopFuture) {
+    LOG.info("LoggerVerticle stopped listening on " + eventBusAddress);
+    stopping = true;
+    if(instanceKey != null) // the number is free for the next instance, which forwards if it is the first
+      vertx.sharedData().<String, String>getLocalMap(INSTANCES).removeIfPresent(instanceKey, deploymentID());
+    if(retryTimer >= 0) { // one last attempt
+      vertx.cancelTimer(retryTimer);
+      retryTimer = -1;
+    }
+    // Write what is pending before the session is closed
+    flush().setHandler(ar -> {
+      if(rollup != null) // the rollups of the periods not over yet are continued (merged) next time
+        writeRollups(rollup.closeAll());
+      if(journal != null) {
+        if(journal.uncommitted() > 0)
+          LOG.warn(journal.uncommitted() + " data set(s) kept in the journal until next start");
+        try {
+          journal.close();
+        } catch(IOException e) {
+          LOG.error("Closing journal failed: " + e.getMessage());
+        }
+      }
+      Future<Void> closed = Future.future();
+      if(store != null) {
+        vertx.executeBlocking(f -> {
+          try {
+            store.close();
+            f.complete();
+          } catch(IOException e) {
+            f.fail(e);
           }
+        }, ar2 -> {
+          if(ar2.failed())
+            LOG.error("Closing time series failed: " + ar2.cause().getMessage());
+          closed.complete();
         });
+      } else if(session == null)
+        closed.complete();
+      else
+        session.close().setHandler(v -> closed.complete());
+      closed.setHandler(v -> {
+        if(ar.failed() && journal == null) // with a journal the data sets are kept in it, not lost
+          stopFuture.fail(ar.cause());
+        else
+          stopFuture.complete();
+      });
+    });
+  }
+
+  /**
+   * Appends the data set to the journal, in the binary form for readings and the JSON form otherwise.
+   *
+   * @return false if the data set could not be appended, and is lost
+   */
+  private boolean append(Object dataSet) {
+    Buffer record = Buffer.buffer();
+    byte type;
+    if(dataSet instanceof Reading) {
+      codec.encodeToWire(record, (Reading) dataSet);
+      type = RECORD_READING;
+    } else {
+      record.appendString(new JsonArray(dataSet.toString()).encode()); // only valid data sets in the journal
+      type = RECORD_JSON;
+    }
+    try {
+      journal.append(type, record);
+      return true;
+    } catch(IOException e) {
+      LOG.error("Appending to journal failed, data set lost: " + e.getMessage());
+      return false;
+    }
+  }
+
+  /**
+   * Writes the pending rows, the buffer is ready for new data sets right away. If the batch fails it is written
+   * again in halves, so only the data sets with rows the database will not take (e.g. a key already there with
+   * the plain dialect) are lost.
+   *
+   * @return completed once the batch is done with, failed if any of its data sets were lost
+   */
+  private Future<Void> flush() {
+    if(flushTimer >= 0) {
+      vertx.cancelTimer(flushTimer);
+      flushTimer = -1;
+    }
+    if(journal != null)
+      return drain();
+    if(pendingDataSets == 0)
+      return Future.succeededFuture();
+
+    Batch batch = new Batch(pendingTemp, pendingPowr, pendingEnds, pendingTimestamps);
+    int dataSets = pendingDataSets;
+    long since = pendingSince;
+    List<Message<Object>> replies = pendingReplies;
+    pendingTemp = new ArrayList<>();
+    pendingPowr = new ArrayList<>();
+    pendingDataSets = 0;
+    pendingEnds = new ArrayList<>();
+    pendingReplies = new ArrayList<>();
+
+    Future<Void> flushed = Future.future();
+    write(batch, 0, dataSets).setHandler(ar -> {
+      long latency = (System.nanoTime() - since) / 1000000L;
+      int lostDataSets = 0;
+      int lostRows = 0;
+      for(int i = 0; i < dataSets; i++) {
+        boolean failed = batch.lost[i] || i >= batch.done;
+        if(failed) {
+          lostDataSets++;
+          lostRows += batch.rows(i);
+        }
+        Message<Object> message = replies.get(i);
+        if(message == null)
+          continue;
+        if(failed)
+          message.fail(500, batch.lost[i] ? "Writing the data set failed" : ar.cause().getMessage());
+        else
+          message.reply(null);
+      }
+      if(lostDataSets > 0) {
+        failedFlushes++;
+        FAILED_BATCHES.increment();
+        LOG.error("saveData() failed, " + lostDataSets + " of " + dataSets + " data set(s) lost"
+          + (ar.failed() ? ": " + ar.cause().getMessage() : ""));
+      }
+      if(lostDataSets < dataSets) {
+        int rows = batch.temp.size() + batch.powr.size() - lostRows;
+        ROWS.add(rows);
+        BATCH_LATENCY.recordSince(since);
+        flushes++;
+        flushedDataSets += dataSets - lostDataSets;
+        flushedRows += rows;
+        totalLatency += latency;
+        maxLatency = Math.max(maxLatency, latency);
+        if(LOG.isDebugEnabled())
+          LOG.debug("Wrote " + (dataSets - lostDataSets) + " data set(s), " + rows + " rows, " + latency + " ms after the first arrived");
+      }
+      if(lostDataSets > 0)
+        flushed.fail(lostDataSets + " of " + dataSets + " data set(s) lost" + (ar.failed() ? ": " + ar.cause().getMessage() : ""));
+      else
+        flushed.complete();
+    });
+    return flushed;
+  }
+
+  /**
+   * Writes the data sets from 'from' (inclusive) to 'to' (exclusive) of the batch. If they fail because of their data
+   * they are written again in halves, until the data sets that fail on their own (e.g. a key already there with the
+   * plain dialect) are found and marked lost. Fails if they could not be written for another reason, e.g. the
+   * database being unavailable, the data sets before batch.done being written or lost by then.
+   */
+  private Future<Void> write(Batch batch, int from, int to) {
+    int[] start = from == 0 ? new int[2] : batch.ends.get(from - 1);
+    int[] end = batch.ends.get(to - 1);
+    Future<Void> done = Future.future();
+    insertData(batch.temp.subList(start[0], end[0]), Arrays.copyOfRange(batch.tempTimestamps, start[0], end[0]),
+      batch.powr.subList(start[1], end[1]), Arrays.copyOfRange(batch.powrTimestamps, start[1], end[1])).setHandler(ar -> {
+      if(ar.succeeded()) {
+        batch.done = to;
+        done.complete();
+      } else if(!dataError(ar.cause()))
+        done.fail(ar.cause());
+      else if(to - from == 1) {
+        batch.lost[from] = true;
+        batch.done = to;
+        done.complete();
       } else {
-        System.out.println("Logger received @" + new Date() + ": " + message.body());
+        if(to - from == batch.lost.length)
+          LOG.warn("Writing " + (to - from) + " data set(s) failed, writing them again in halves: " + ar.cause().getMessage());
+        int middle = (from + to) >>> 1;
+        write(batch, from, middle).compose(v -> write(batch, middle, to)).setHandler(done);
       }
     });
+    return done;
+  }
 
-    LOG.info("LoggerVerticle started - " + (client == null ? "just logging" : "with persistence") + ", listens on " + eventBusAddress);
+  /**
+   * @return whether the rows failed because of their data (SQLState class 22 or 23, e.g. a key already there)
+   *         rather than the database
+   */
+  private static boolean dataError(Throwable cause) {
+    String state = cause instanceof SQLException ? ((SQLException) cause).getSQLState() : null;
+    return state != null && (state.startsWith("22") || state.startsWith("23"));
   }
 
-  @Override
-  public void stop() {
-    LOG.info("LoggerVerticle stopped listening on " + eventBusAddress);
+  /**
+   * Writes the data sets in the journal after the checkpoint, one batch at a time until the journal is drained.
+   * Data sets that fail on their own are lost, so they do not hold up the rest. If a batch fails for another reason,
+   * e.g. the database being unavailable, the data sets not written stay in the journal and are tried again after
+   * <b>retry_delay</b>.
+   */
+  private Future<Void> drain() {
+    if(draining != null) // the batch being written is followed by the rest
+      return draining;
+    if(retryTimer >= 0) // the database is unavailable, wait for the retry
+      return Future.failedFuture("Waiting to retry writing the journal");
+    draining = Future.future();
+    Future<Void> drained = draining;
+    drainNext(drained);
+    return drained;
   }
 
+  private void drainNext(Future<Void> drained) {
+    pendingDataSets = 0;
+    long since = pendingSince;
 
+    List<JsonArray> temp = new ArrayList<>();
+    List<JsonArray> powr = new ArrayList<>();
+    List<int[]> ends = new ArrayList<>();
+    long[] timestamps = new long[drainBatch];
+    int dataSets;
+    try {
+      dataSets = journal.read(drainBatch, (type, record) -> {
+        if(type == RECORD_READING)
+          timestamps[ends.size()] = addRows(codec.decodeFromWire(0, record), temp, powr);
+        else
+          timestamps[ends.size()] = addRows(new JsonArray(record.toString()), temp, powr);
+        ends.add(new int[] { temp.size(), powr.size() });
+      });
+    } catch(IOException | RuntimeException e) {
+      journal.rewind();
+      LOG.error("Reading journal failed: " + e.getMessage());
+      draining = null;
+      drained.fail(e);
+      return;
+    }
+    if(dataSets == 0) {
+      draining = null;
+      drained.complete();
+      return;
+    }
+
+    Batch batch = new Batch(temp, powr, ends, timestamps);
+    write(batch, 0, dataSets).setHandler(ar -> {
+      long latency = (System.nanoTime() - since) / 1000000L;
+      int lostDataSets = 0;
+      int rows = 0;
+      for(int i = 0; i < batch.done; i++) {
+        if(batch.lost[i])
+          lostDataSets++;
+        else
+          rows += batch.rows(i);
+      }
+      if(batch.done > 0) {
+        try {
+          if(batch.done < dataSets) { // only the data sets dealt with, the rest is read again
+            journal.rewind();
+            journal.read(batch.done, (type, record) -> { });
+          }
+          journal.commit(batch.done);
+        } catch(IOException e) {
+          LOG.error("Journal checkpoint failed, data sets may be written again: " + e.getMessage());
+        }
+      }
+      if(lostDataSets > 0) {
+        failedFlushes++;
+        FAILED_BATCHES.increment();
+        LOG.error("saveData() failed, " + lostDataSets + " of " + dataSets + " data set(s) from journal lost");
+      }
+      if(batch.done > lostDataSets) {
+        ROWS.add(rows);
+        BATCH_LATENCY.recordSince(since);
+        flushes++;
+        flushedDataSets += batch.done - lostDataSets;
+        flushedRows += rows;
+        totalLatency += latency;
+        maxLatency = Math.max(maxLatency, latency);
+      }
+      if(ar.failed()) {
+        if(lostDataSets == 0) {
+          failedFlushes++;
+          FAILED_BATCHES.increment();
+        }
+        journal.rewind();
+        LOG.warn("saveData() failed, " + journal.uncommitted() + " data set(s) kept in journal"
+          + (stopping ? "" : ", retrying in " + retryDelay + " ms") + ": " + ar.cause().getMessage());
+        if(!stopping)
+          retryTimer = vertx.setTimer(retryDelay, tid -> {
+            retryTimer = -1;
+            flush();
+          });
+        draining = null;
+        drained.fail(ar.cause());
+        return;
+      }
+      if(LOG.isDebugEnabled())
+        LOG.debug("Wrote " + dataSets + " data set(s) from journal, " + journal.uncommitted() + " left");
+      pendingSince = System.nanoTime();
+      drainNext(drained);
+    });
+  }
+
+  private void reportStats() {
+    if(flushes == 0 && failedFlushes == 0)
+      return;
+    LOG.info("Wrote " + flushedDataSets + " data set(s) (" + flushedRows + " rows) in " + flushes + " batch(es) the last "
+      + (STATS_INTERVAL / 1000) + " s, avg. batch " + (flushes == 0 ? 0 : flushedDataSets / flushes) + " data set(s), latency avg. "
+      + (flushes == 0 ? 0 : totalLatency / flushes) + " ms, max. " + maxLatency + " ms"
+      + (failedFlushes == 0 ? "" : ", " + failedFlushes + " batch(es) failed"));
+    flushes = flushedDataSets = flushedRows = failedFlushes = 0;
+    totalLatency = maxLatency = 0;
+  }
+
+
+  /**
+   * Create a batch insert from the values of the reading, absent values are skipped. The rows are stamped with the
+   * time the reading arrived from the device (or now if the reading has no timestamp), not the time it is stored.
+   */
+  Future<Void> saveData(Reading reading) {
+    List<JsonArray> tempParams = new ArrayList<>();
+    List<JsonArray> powrParams = new ArrayList<>();
+    long[] timestamps = { addRows(reading, tempParams, powrParams) };
+    List<int[]> ends = Collections.singletonList(new int[] { tempParams.size(), powrParams.size() });
+    return insertData(tempParams, rowTimestamps(ends, timestamps, 0), powrParams, rowTimestamps(ends, timestamps, 1));
+  }
+
+  /**
+   * Adds the insert parameters for the values of the reading to the rows for each table
+   *
+   * @return the timestamp of the rows, milliseconds since the epoch
+   */
+  long addRows(Reading reading, List<JsonArray> tempParams, List<JsonArray> powrParams) {
+
+    long millis = millis(reading.timestamp());
+    Object ts = stamp(millis);
+
+    SensorSchema schema = reading.schema();
+    if(wide) {
+      double[] values = newSample();
+      for(int i = 0; i < schema.size(); i++)
+        setSample(values, schema.column(i).name, reading.get(i));
+      addSample(ts, values, tempParams);
+      return millis;
+    }
+    for(int i = 0; i < schema.size(); i++) {
+      SensorSchema.Column column = schema.column(i);
+      if(Double.isNaN(reading.get(i)))
+        continue;
+      if("temp".equals(column.type))
+        tempParams.add(new JsonArray().add(ts).add(column.name).add(reading.get(i)));
+      else if("powr".equals(column.type))
+        powrParams.add(new JsonArray().add(ts).add(column.name).add(reading.get(i)));
+    }
+    return millis;
+  }
+
+  /**
+   * Create a batch insert, stamped with the "ts" (milliseconds since the epoch) of the first element if
+   * present, otherwise now
+   */
   Future<Void> saveData(JsonArray dataSet) {
-    return saveData(dataSet, client);
+    List<JsonArray> tempParams = new ArrayList<>();
+    List<JsonArray> powrParams = new ArrayList<>();
+    long[] timestamps = { addRows(dataSet, tempParams, powrParams) };
+    List<int[]> ends = Collections.singletonList(new int[] { tempParams.size(), powrParams.size() });
+    return insertData(tempParams, rowTimestamps(ends, timestamps, 0), powrParams, rowTimestamps(ends, timestamps, 1));
   }
+
   /**
-   * Set the timestamp and create a batch insert
+   * Adds the insert parameters for the data set to the rows for each table
+   *
+   * @return the timestamp of the rows, milliseconds since the epoch
    */
-  Future<Void> saveData(JsonArray dataSet, JDBCClient client) {
+  long addRows(JsonArray dataSet, List<JsonArray> tempParams, List<JsonArray> powrParams) {
 
-    Future<Void> future = Future.future();
+    // Array with JSON objects like {"t":"temp","g":"fyr","s":"pump","d":19.6,"ts":1484521200000}
 
-    String ts = timestampFormatter.format(new Date());
+    Long timestamp = dataSet.isEmpty() ? null : dataSet.getJsonObject(0).getLong("ts");
+    long millis = millis(timestamp == null ? 0L : timestamp);
+    Object ts = stamp(millis);
 
-    // Array with JSON objects like {"t":"temp","g":"fyr","s":"pump","d":19.6}
+    if(wide) {
+      double[] values = newSample();
+      for(Object data : dataSet) {
+        Double value = ((JsonObject)data).getDouble("d");
+        setSample(values, ((JsonObject)data).getString("s"), value == null ? Double.NaN : value);
+      }
+      addSample(ts, values, tempParams);
+      return millis;
+    }
 
-    List<JsonArray> tempParams = dataSet.stream()
+    tempParams.addAll(dataSet.stream()
       .filter(data -> "temp".equals(((JsonObject)data).getString("t")))
       .map(data -> new JsonArray()
         .add(ts)
         .add(((JsonObject)data).getString("s"))
         .add(((JsonObject)data).getDouble("d")) )
-      .collect(Collectors.toList());
+      .collect(Collectors.toList()));
 
-    List<JsonArray> powrParams = dataSet.stream()
+    powrParams.addAll(dataSet.stream()
       .filter(data -> "powr".equals(((JsonObject)data).getString("t")))
       .map(data -> new JsonArray()
         .add(ts)
         .add(((JsonObject)data).getString("s"))
         .add(((JsonObject)data).getDouble("d")) )
-      .collect(Collectors.toList());
+      .collect(Collectors.toList()));
+    return millis;
+  }
 
-    client.getConnection( arConnection -> {
-      if (arConnection.failed()) {
-        LOG.error(arConnection.cause().getMessage());
-        future.fail(arConnection.cause().getMessage());
-      } else {
-        SQLConnection connection = arConnection.result();
-        // If rows for both tables do them nested, else just do the one that has rows
-        if(tempParams.size() > 0 && powrParams.size() > 0) {
-          connection.batchWithParams(SQL_TEMP, tempParams, arBatchTempResult -> {
-            if (arBatchTempResult.failed()) {
-              future.fail("Batch temp insert failed - " + arBatchTempResult.cause().getMessage());
-              LOG.error("Batch temp insert failed - " + arBatchTempResult.cause().getMessage());
-              arBatchTempResult.cause().printStackTrace();
-              connection.close();
-            } else {
-              connection.batchWithParams(SQL_POWR, powrParams, arBatchPowrResult -> {
-                if (arBatchPowrResult.failed()) {
-                  future.fail("Batch powr insert failed - " + arBatchPowrResult.cause().getMessage());
-                  LOG.error("Batch powr insert failed - " + arBatchPowrResult.cause().getMessage());
-                  arBatchPowrResult.cause().printStackTrace();
-                  connection.close();
-                } else {
-                  connection.close( done -> {
-                    if (done.failed()) {
-                      throw new java.lang.RuntimeException(done.cause());
-                    }
-                  });
-                  future.complete();
-                }
-              });
-            }
-          });
-        }
-        else if(tempParams.size() > 0) {
-          connection.batchWithParams(SQL_TEMP, tempParams, arBatchResult -> {
-            if (arBatchResult.failed()) {
-              future.fail("Batch temp insert failed - " + arBatchResult.cause().getMessage());
-              LOG.error("Batch temp insert failed - " + arBatchResult.cause().getMessage());
-              arBatchResult.cause().printStackTrace();
-              connection.close();
-            } else {
-              connection.close( done -> {
-                if (done.failed()) {
-                  throw new java.lang.RuntimeException(done.cause());
-                }
-              });
-              future.complete();
-            }
-          });
-        }
-        else { // powrParams.size() > 0
-          connection.batchWithParams(SQL_POWR, powrParams, arBatchResult -> {
-            if (arBatchResult.failed()) {
-              future.fail("Batch powr insert failed - " + arBatchResult.cause().getMessage());
-              LOG.error("Batch powr insert failed - " + arBatchResult.cause().getMessage());
-              arBatchResult.cause().printStackTrace();
-              connection.close();
-            } else {
-              connection.close( done -> {
-                if (done.failed()) {
-                  throw new java.lang.RuntimeException(done.cause());
-                }
-              });
-              future.complete();
+  private static double[] newSample() {
+    double[] values = new double[SampleTable.SENSORS.length];
+    Arrays.fill(values, Double.NaN);
+    return values;
+  }
+
+  private void setSample(double[] values, String sensor, double value) {
+    int column = SampleTable.column(sensor);
+    if(column >= 0)
+      values[column] = value;
+    else if(LOG.isDebugEnabled())
+      LOG.debug("No column in pump_sample for sensor '" + sensor + "', value not stored");
+  }
+
+  /** Adds the row for the sample to the rows, unless it has no values */
+  private static void addSample(Object ts, double[] values, List<JsonArray> rows) {
+    for(double value : values) {
+      if(!Double.isNaN(value)) {
+        rows.add(SampleTable.row(ts, values));
+        return;
+      }
+    }
+  }
+
+  /** @return the timestamp, or now if it is zero */
+  private static long millis(long timestamp) {
+    return timestamp != 0 ? timestamp : IngestClock.now();
+  }
+
+  /** @return the timestamp of the rows, as the database wants it or milliseconds for the time series */
+  private Object stamp(long timestamp) {
+    if(timestamp == 0)
+      timestamp = IngestClock.now();
+    return store != null ? (Object) timestamp : timestampFormatter.format(Instant.ofEpochMilli(timestamp));
+  }
+
+  /** The rows of the data sets of a batch, and how writing them went */
+  private static final class Batch {
+    final List<JsonArray> temp;
+    final List<JsonArray> powr;
+    final List<int[]> ends; // of the rows of each data set in temp and powr
+    final long[] tempTimestamps;
+    final long[] powrTimestamps;
+    final boolean[] lost; // the data sets that could not be written
+    int done = 0; // data sets written or lost, from the first
+
+    /** @param timestamps of the rows of each data set */
+    Batch(List<JsonArray> temp, List<JsonArray> powr, List<int[]> ends, long[] timestamps) {
+      this.temp = temp;
+      this.powr = powr;
+      this.ends = ends;
+      this.tempTimestamps = rowTimestamps(ends, timestamps, 0);
+      this.powrTimestamps = rowTimestamps(ends, timestamps, 1);
+      this.lost = new boolean[ends.size()];
+    }
+
+    /** @return the number of rows of the data set */
+    int rows(int dataSet) {
+      int[] start = dataSet == 0 ? new int[2] : ends.get(dataSet - 1);
+      return ends.get(dataSet)[0] - start[0] + ends.get(dataSet)[1] - start[1];
+    }
+  }
+
+  /** @return the timestamp of each row of the table (0 for temp, 1 for powr) from those of the data sets */
+  private static long[] rowTimestamps(List<int[]> ends, long[] timestamps, int table) {
+    long[] rows = new long[ends.isEmpty() ? 0 : ends.get(ends.size() - 1)[table]];
+    int start = 0;
+    for(int i = 0; i < ends.size(); i++) {
+      Arrays.fill(rows, start, ends.get(i)[table], timestamps[i]);
+      start = ends.get(i)[table];
+    }
+    return rows;
+  }
+
+  /**
+   * Batch insert the rows for each of the tables, on the session's connection. The timestamps of the rows
+   * (milliseconds since the epoch) are for the rollups.
+   */
+  private Future<Void> insertData(List<JsonArray> tempParams, long[] tempTimestamps, List<JsonArray> powrParams, long[] powrTimestamps) {
+    if(tempParams.isEmpty() && powrParams.isEmpty())
+      return Future.succeededFuture();
+    long started = System.nanoTime();
+    if(store != null)
+      return appendData(tempParams, powrParams).map(v -> {
+        WRITE_TIME.recordSince(started);
+        return v;
+      });
+
+    Future<List<Integer>> written = (wide
+      ? session.execute(connection -> transaction(connection, () -> batch(connection, sqlSample, tempParams)))
+      : session.execute(connection -> transaction(connection, () -> batch(connection, sqlTemp, tempParams)
+        .compose(temp -> batch(connection, sqlPowr, powrParams).map(powr -> {
+          List<Integer> inserted = new ArrayList<>(temp);
+          inserted.addAll(powr);
+          return inserted;
+        }))))).map(inserted -> {
+          WRITE_TIME.recordSince(started);
+          return inserted;
+        });
+    if(rollup == null)
+      return written.map(inserted -> null);
+    return written.map(inserted -> {
+      // Rows already there and ignored (see SqlDialect.insertIgnore) are in the rollups already
+      for(int i = 0; i < tempParams.size(); i++)
+        if(inserted.get(i) != 0)
+          addToRollup(rollup, tempParams.get(i), tempTimestamps[i]);
+      for(int i = 0; i < powrParams.size(); i++)
+        if(inserted.get(tempParams.size() + i) != 0)
+          addToRollup(rollup, powrParams.get(i), powrTimestamps[i]);
+      writeRollups(rollup.closed());
+      return null;
+    });
+  }
+
+  /** Adds the values of the row to the rollup, the row as written (or queried) */
+  private void addToRollup(Rollup into, JsonArray row, long timestamp) {
+    if(wide) {
+      for(int i = 0; i < SampleTable.SENSORS.length; i++)
+        if(row.getValue(i + 1) != null)
+          into.add(SampleTable.SENSORS[i].name(), timestamp, row.getDouble(i + 1));
+    } else {
+      into.add(row.getString(1), timestamp, row.getDouble(2));
+    }
+  }
+
+  /**
+   * Writes the rollups, on their own so the rows are not held up if it fails, in which case it is tried again
+   * with the next rollups. In a transaction, so none of them are merged if it fails and the retry does not count
+   * them twice.
+   */
+  private void writeRollups(List<Rollup.Bucket> buckets) {
+    unwrittenBuckets.addAll(buckets);
+    if(unwrittenBuckets.isEmpty())
+      return;
+    List<Rollup.Bucket> writing = unwrittenBuckets;
+    unwrittenBuckets = new ArrayList<>();
+    session.execute(connection -> transaction(connection, () -> mergeRollups(connection, writing))).setHandler(ar -> {
+      if(ar.failed()) {
+        LOG.warn("Writing " + writing.size() + " rollup(s) failed, trying again later: " + ar.cause().getMessage());
+        unwrittenBuckets.addAll(writing);
+      }
+    });
+  }
+
+  /**
+   * Merges the rollups with those already there: in one statement if the dialect can, otherwise updates them and
+   * inserts those that were not there
+   */
+  private Future<Void> mergeRollups(SQLConnection connection, List<Rollup.Bucket> buckets) {
+    Future<Void> merged = Future.succeededFuture();
+    for(Rollup.Resolution resolution : Rollup.Resolution.values()) {
+      List<Rollup.Bucket> ofResolution = buckets.stream().filter(b -> b.resolution == resolution).collect(Collectors.toList());
+      if(ofResolution.isEmpty())
+        continue;
+      String upsert = dialect.upsert(resolution.table(), 2, ROLLUP_COLUMNS,
+        "least(%1$s, %2$s)", "greatest(%1$s, %2$s)", "%1$s + %2$s", "%1$s + %2$s");
+      if(upsert != null) {
+        merged = merged.compose(v -> batch(connection, upsert, ofResolution.stream()
+          .map(b -> new JsonArray().add(stamp(b.start)).add(b.sensor).add(b.min).add(b.max).add(b.sum).add(b.count))
+          .collect(Collectors.toList())).map(counts -> null));
+        continue;
+      }
+      merged = merged.compose(v -> {
+        Future<Void> done = Future.future();
+        List<JsonArray> updates = ofResolution.stream()
+          .map(b -> new JsonArray().add(b.min).add(b.max).add(b.sum).add(b.count).add(stamp(b.start)).add(b.sensor))
+          .collect(Collectors.toList());
+        connection.batchWithParams("update " + resolution.table() + " set min_data = least(min_data, ?), max_data = greatest(max_data, ?),"
+          + " sum_data = sum_data + ?, cnt = cnt + ? where ts = ? and sensor = ?", updates, arUpdated -> {
+          if(arUpdated.failed()) {
+            done.fail("Rollup update failed - " + arUpdated.cause().getMessage());
+            return;
+          }
+          List<JsonArray> inserts = new ArrayList<>();
+          for(int i = 0; i < ofResolution.size(); i++) {
+            if(arUpdated.result().get(i) == 0) {
+              Rollup.Bucket b = ofResolution.get(i);
+              inserts.add(new JsonArray().add(stamp(b.start)).add(b.sensor).add(b.min).add(b.max).add(b.sum).add(b.count));
             }
-          });
-        }
+          }
+          batch(connection, "insert into " + resolution.table() + " (ts, sensor, min_data, max_data, sum_data, cnt) values (?, ?, ?, ?, ?, ?)", inserts)
+            .<Void>map(counts -> null).setHandler(done);
+        });
+        return done;
+      });
+    }
+    return merged;
+  }
+
+  /**
+   * Rebuilds the rollups of the days requested from the rows, one day at a time
+   */
+  private void backfill(Message<Object> message) {
+    LocalDate from, to;
+    try {
+      JsonObject request = new JsonObject(message.body().toString());
+      from = LocalDate.parse(request.getString("from"));
+      to = LocalDate.parse(request.getString("to"));
+    } catch(RuntimeException e) {
+      message.fail(400, "Backfill needs {\"from\":\"yyyy-mm-dd\",\"to\":\"yyyy-mm-dd\"}: " + e.getMessage());
+      return;
+    }
+    if(to.isAfter(LocalDate.now()) || !from.isBefore(to)) {
+      // Today's rollups are still being accumulated, rebuilding them as well would count the rows twice
+      message.fail(400, "Backfill period must be at least a day and end at today at the latest");
+      return;
+    }
+    LOG.info("Rebuilding rollups from " + from + " until " + to);
+    backfill(from, to, 0).setHandler(ar -> {
+      if(ar.failed()) {
+        LOG.error("Rebuilding rollups failed: " + ar.cause().getMessage());
+        message.fail(500, ar.cause().getMessage());
+      } else {
+        LOG.info("Rebuilt " + ar.result() + " rollup(s) from " + from + " until " + to);
+        message.reply(new JsonObject().put("days", (int) ChronoUnit.DAYS.between(from, to)).put("rollups", ar.result()));
       }
-    }); // get connection
+    });
+  }
+
+  private Future<Integer> backfill(LocalDate day, LocalDate to, int rollups) {
+    if(!day.isBefore(to))
+      return Future.succeededFuture(rollups);
+    JsonArray period = new JsonArray()
+      .add(stamp(day.atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli()))
+      .add(stamp(day.plusDays(1).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli()));
+    Rollup dayRollup = new Rollup(ZoneId.systemDefault());
+    return session.<Integer>execute(connection -> {
+      Future<Void> deleted = Future.succeededFuture();
+      for(Rollup.Resolution resolution : Rollup.Resolution.values())
+        deleted = deleted.compose(v -> update(connection, "delete from " + resolution.table() + " where ts >= ? and ts < ?", period));
+      Future<Void> queried = wide
+        ? deleted.compose(v -> query(connection, SampleTable.SQL_SELECT, period, dayRollup))
+        : deleted
+          .compose(v -> query(connection, "select ts, sensor, data from pump_temperature where ts >= ? and ts < ?", period, dayRollup))
+          .compose(v -> query(connection, "select ts, sensor, data from pump_current where ts >= ? and ts < ?", period, dayRollup));
+      return queried.compose(v -> {
+          List<Rollup.Bucket> buckets = dayRollup.closeAll();
+          return mergeRollups(connection, buckets).map(buckets.size());
+        });
+    }).compose(written -> backfill(day.plusDays(1), to, rollups + written));
+  }
+
+  private Future<Void> update(SQLConnection connection, String sql, JsonArray params) {
+    Future<Void> future = Future.future();
+    connection.updateWithParams(sql, params, ar -> {
+      if(ar.failed())
+        future.fail(sql + " - " + ar.cause().getMessage());
+      else
+        future.complete();
+    });
+    return future;
+  }
 
+  /** Adds the rows of the query to the rollup */
+  private Future<Void> query(SQLConnection connection, String sql, JsonArray params, Rollup into) {
+    Future<Void> future = Future.future();
+    connection.queryWithParams(sql, params, ar -> {
+      if(ar.failed()) {
+        future.fail(sql + " - " + ar.cause().getMessage());
+        return;
+      }
+      for(JsonArray row : ar.result().getResults())
+        addToRollup(into, row, row.getInstant(0).toEpochMilli());
+      future.complete();
+    });
+    return future;
+  }
+
+  /**
+   * Append the rows to the time series and write them, on a worker as it is file I/O
+   */
+  private Future<Void> appendData(List<JsonArray> tempParams, List<JsonArray> powrParams) {
+    Future<Void> future = Future.future();
+    vertx.<Integer>executeBlocking(f -> {
+      try {
+        int dropped = 0;
+        for(List<JsonArray> rows : Arrays.asList(tempParams, powrParams))
+          for(JsonArray row : rows)
+            if(!store.append(row.getString(1), row.getLong(0), row.getDouble(2)))
+              dropped++;
+        store.flush();
+        f.complete(dropped);
+      } catch(IOException | RuntimeException e) {
+        f.fail(e);
+      }
+    }, true, ar -> { // ordered, so the store is used by one batch at a time
+      if(ar.failed()) {
+        LOG.error("Time series append failed - " + ar.cause().getMessage());
+        future.fail("Time series append failed - " + ar.cause().getMessage());
+      } else {
+        if(ar.result() > 0 && LOG.isDebugEnabled())
+          LOG.debug(ar.result() + " value(s) not later than the last of their time series dropped");
+        future.complete();
+      }
+    });
+    return future;
+  }
+
+  /**
+   * Runs the work in a transaction, so a batch that fails leaves no rows behind and can be written again. The
+   * connection is in auto-commit mode again after it.
+   */
+  private static <T> Future<T> transaction(SQLConnection connection, Supplier<Future<T>> work) {
+    Future<Void> autoCommitOff = Future.future();
+    connection.setAutoCommit(false, autoCommitOff);
+    return autoCommitOff.compose(v -> {
+      Future<T> done = Future.future();
+      work.get().setHandler(arWork -> {
+        Future<Void> ended = Future.future();
+        if(arWork.succeeded())
+          connection.commit(ended);
+        else
+          connection.rollback(ended);
+        ended.setHandler(arEnded -> connection.setAutoCommit(true, arAutoCommit -> {
+          if(arWork.failed())
+            done.fail(arWork.cause());
+          else if(arEnded.failed())
+            done.fail(arEnded.cause());
+          else if(arAutoCommit.failed())
+            done.fail(arAutoCommit.cause());
+          else
+            done.complete(arWork.result());
+        }));
+      });
+      return done;
+    });
+  }
+
+  /**
+   * @return the update count of each row, 0 for a row not inserted (a driver may give -2, i.e. done but unknown)
+   */
+  private Future<List<Integer>> batch(SQLConnection connection, String sql, List<JsonArray> params) {
+    Future<List<Integer>> future = Future.future();
+    if(params.isEmpty()) {
+      future.complete(new ArrayList<>());
+      return future;
+    }
+    connection.batchWithParams(sql, params, arBatchResult -> {
+      if (arBatchResult.failed()) {
+        Throwable cause = arBatchResult.cause();
+        LOG.error("Batch insert failed - " + sql + " - " + cause.getMessage());
+        if(cause instanceof SQLException) // keeping the SQLState, see dataError()
+          future.fail(new SQLException("Batch insert failed - " + cause.getMessage(), ((SQLException) cause).getSQLState(), cause));
+        else
+          future.fail("Batch insert failed - " + cause.getMessage());
+      } else {
+        future.complete(arBatchResult.result());
+      }
+    });
     return future;
   }
 
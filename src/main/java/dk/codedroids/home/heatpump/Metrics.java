@@ -0,0 +1,265 @@
+/*
+ * Copyright (c) 2017 CodeDroids ApS (http://www.codedroids.dk)
+ *
+ * This file is part of the HeatPump Vert.x example
+ *
+ * The HeatPump Vert.x example is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * The HeatPump Vert.x example is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the HeatPump Vert.x example. If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.codedroids.home.heatpump;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters, gauges and latency histograms of the pipeline, shared by the verticles of the JVM and served in the
+ * Prometheus text format by the PanelVerticle (see {@link #prometheus()}).
+ *
+ * <p>The metrics are registered once, typically as static fields of the class measuring, and are cheap to update
+ * from any thread: a counter is a LongAdder and recording a latency is a few shifts and one atomic add.</p>
+ *
+ * <p>The histograms work like HdrHistogram with a precision of two bits: each power of two nanoseconds is split
+ * into four buckets, so a recorded latency is known to within 25% over the whole range of a long, in a fixed
+ * array of 248 buckets. The percentiles are computed from those, the Prometheus buckets are the powers of two from
+ * about a microsecond to about a minute.</p>
+ *
+ * @author Claus Priisholm.
+ */
+public final class Metrics {
+
+  private static final Map<String, Metric> METRICS = new ConcurrentSkipListMap<>(); // by name, sorted for the output
+
+  private Metrics() {
+  }
+
+  /** @return the counter of the name, registered if it is not already, e.g. "heatpump_serial_lines_total" */
+  public static Counter counter(String name, String help) {
+    return register(new Counter(name, help));
+  }
+
+  /** @return the gauge of the name, registered if it is not already */
+  public static Gauge gauge(String name, String help) {
+    return register(new Gauge(name, help));
+  }
+
+  /** @return the histogram of the name, registered if it is not already, e.g. "heatpump_logger_write_seconds" */
+  public static Histogram histogram(String name, String help) {
+    return register(new Histogram(name, help));
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <M extends Metric> M register(M metric) {
+    Metric registered = METRICS.putIfAbsent(metric.name, metric);
+    if(registered == null)
+      return metric;
+    if(registered.getClass() != metric.getClass())
+      throw new IllegalArgumentException("Metric '" + metric.name + "' is already registered as a " + registered.type());
+    return (M) registered;
+  }
+
+  /** @return all the metrics in the Prometheus text format (version 0.0.4) */
+  public static String prometheus() {
+    StringBuilder out = new StringBuilder(4096);
+    for(Metric metric : METRICS.values()) {
+      out.append("# HELP ").append(metric.name).append(' ').append(metric.help).append('\n');
+      out.append("# TYPE ").append(metric.name).append(' ').append(metric.type()).append('\n');
+      metric.write(out);
+    }
+    return out.toString();
+  }
+
+  public static abstract class Metric {
+    final String name;
+    final String help;
+
+    Metric(String name, String help) {
+      this.name = name;
+      this.help = help;
+    }
+
+    abstract String type();
+
+    abstract void write(StringBuilder out);
+  }
+
+  /** A count that only goes up, e.g. lines received */
+  public static final class Counter extends Metric {
+    private final LongAdder count = new LongAdder();
+
+    Counter(String name, String help) {
+      super(name, help);
+    }
+
+    public void increment() {
+      count.increment();
+    }
+
+    public void add(long n) {
+      count.add(n);
+    }
+
+    public long get() {
+      return count.sum();
+    }
+
+    @Override
+    String type() { return "counter"; }
+
+    @Override
+    void write(StringBuilder out) {
+      out.append(name).append(' ').append(get()).append('\n');
+    }
+  }
+
+  /** A value that goes up and down, e.g. clients connected */
+  public static final class Gauge extends Metric {
+    private final AtomicLong value = new AtomicLong();
+
+    Gauge(String name, String help) {
+      super(name, help);
+    }
+
+    public void increment() {
+      value.incrementAndGet();
+    }
+
+    public void decrement() {
+      value.decrementAndGet();
+    }
+
+    public void set(long value) {
+      this.value.set(value);
+    }
+
+    public long get() {
+      return value.get();
+    }
+
+    @Override
+    String type() { return "gauge"; }
+
+    @Override
+    void write(StringBuilder out) {
+      out.append(name).append(' ').append(get()).append('\n');
+    }
+  }
+
+  /** The distribution of latencies, recorded in nanoseconds and served in seconds */
+  public static final class Histogram extends Metric {
+    private static final int SUB_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS; // per power of two
+    static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+    // Powers of two nanoseconds served as Prometheus buckets, 2^10 ns ~ 1 us to 2^36 ns ~ 69 s
+    private static final int FIRST_POWER = 10;
+    private static final int LAST_POWER = 36;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+
+    Histogram(String name, String help) {
+      super(name, help);
+    }
+
+    /** Records the latency, negative is taken as zero */
+    public void record(long nanos) {
+      if(nanos < 0)
+        nanos = 0;
+      buckets.incrementAndGet(bucket(nanos));
+      sum.add(nanos);
+    }
+
+    /** Records the latency from the start, which is a value of System.nanoTime() */
+    public void recordSince(long startNanos) {
+      record(System.nanoTime() - startNanos);
+    }
+
+    /** @return the bucket of the value, the values below 4 have a bucket each */
+    static int bucket(long value) {
+      if(value < SUB_BUCKETS)
+        return (int) value;
+      int power = 63 - Long.numberOfLeadingZeros(value);
+      int sub = (int) (value >>> (power - SUB_BITS)) & (SUB_BUCKETS - 1);
+      return (power - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /** @return the smallest value not in the bucket */
+    static long upperBound(int bucket) {
+      if(bucket < SUB_BUCKETS)
+        return bucket + 1;
+      int power = bucket / SUB_BUCKETS + SUB_BITS - 1;
+      int sub = bucket % SUB_BUCKETS;
+      long width = 1L << (power - SUB_BITS);
+      return (SUB_BUCKETS + sub) * width + width; // may overflow to Long.MIN_VALUE for the very last bucket
+    }
+
+    public long count() {
+      long count = 0;
+      for(int i = 0; i < BUCKETS; i++)
+        count += buckets.get(i);
+      return count;
+    }
+
+    /**
+     * @param percentile e.g. 99.9
+     * @return the latency that the percentile of the recorded latencies is below (the upper bound of its bucket),
+     *         0 if nothing has been recorded
+     */
+    public long percentile(double percentile) {
+      long[] counts = snapshot();
+      long total = 0;
+      for(long count : counts)
+        total += count;
+      if(total == 0)
+        return 0;
+      long rank = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+      long seen = 0;
+      for(int i = 0; i < BUCKETS; i++) {
+        seen += counts[i];
+        if(seen >= rank)
+          return upperBound(i) > 0 ? upperBound(i) : Long.MAX_VALUE;
+      }
+      return Long.MAX_VALUE;
+    }
+
+    private long[] snapshot() {
+      long[] counts = new long[BUCKETS];
+      for(int i = 0; i < BUCKETS; i++)
+        counts[i] = buckets.get(i);
+      return counts;
+    }
+
+    @Override
+    String type() { return "histogram"; }
+
+    @Override
+    void write(StringBuilder out) {
+      long[] counts = snapshot();
+      long cumulative = 0;
+      int i = 0;
+      for(int power = FIRST_POWER; power <= LAST_POWER; power++) {
+        // The buckets end at each power of two, so they add up exactly to the Prometheus buckets
+        for(; i < BUCKETS && upperBound(i) <= 1L << power; i++)
+          cumulative += counts[i];
+        out.append(name).append("_bucket{le=\"").append((1L << power) / 1e9).append("\"} ").append(cumulative).append('\n');
+      }
+      for(; i < BUCKETS; i++)
+        cumulative += counts[i];
+      out.append(name).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+      out.append(name).append("_sum ").append(sum.sum() / 1e9).append('\n');
+      out.append(name).append("_count ").append(cumulative).append('\n');
+    }
+  }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2017 CodeDroids ApS (http://www.codedroids.dk)
+ *
+ * This file is part of the HeatPump Vert.x example
+ *
+ * The HeatPump Vert.x example is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * The HeatPump Vert.x example is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the HeatPump Vert.x example. If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.codedroids.home.heatpump;
+
+import io.vertx.core.AbstractVerticle;
+import io.vertx.core.Future;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+import io.vertx.ext.sql.SQLConnection;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Converts the data in pump_temperature and pump_current to the wide schema, pump_sample (see SampleTable), and
+ * undeploys itself when done. Deploy it once, e.g. from the MainVerticle configuration, with the configuration of
+ * the database.
+ *
+ * <p>The period is converted a chunk at a time: the rows of the chunk are read, grouped by timestamp and written
+ * as one batch. The samples of the chunk already in pump_sample are deleted first, so a migration that was
+ * interrupted can be run again. The old tables are left as they are.</p>
+ *
+ * Configuration:
+ *
+ * <ul>
+ * <li><b>database : { ... }</b> -- see LoggerVerticle</li>
+ * <li><b>from : "2017-01-01 00:00:00"</b> -- Start of the period to convert, defaults to the first row there is</li>
+ * <li><b>to : "2018-01-01 00:00:00"</b> -- End of the period to convert (not included), defaults to after the
+ *        last row there is</li>
+ * <li><b>chunk_minutes : 60</b> -- Length of each chunk, i.e. 360 samples at 10 second samples</li>
+ * </ul>
+ *
+ * @author Claus Priisholm.
+ */
+public class MigrationVerticle extends AbstractVerticle {
+
+  private final DateTimeFormatter timestampFormatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+  private final Logger LOG = LoggerFactory.getLogger(this.getClass());
+
+  private static final String SQL_RANGE = "select min(ts), max(ts) from ";
+  private static final String SQL_TEMP = "select ts, sensor, data from pump_temperature where ts >= ? and ts < ?";
+  private static final String SQL_POWR = "select ts, sensor, data from pump_current where ts >= ? and ts < ?";
+  private static final String SQL_DELETE = "delete from pump_sample where ts >= ? and ts < ?";
+
+  private DbSession session;
+  private long chunkMillis;
+  private int samples = 0;
+
+  @Override
+  public void start() {
+    JsonObject databaseConfig = config().getJsonObject("database");
+    if(databaseConfig == null)
+      throw new IllegalArgumentException("Invalid configuration, 'database' is missing for MigrationVerticle");
+    chunkMillis = config().getInteger("chunk_minutes", 60) * 60000L;
+    if(chunkMillis < 1)
+      throw new IllegalArgumentException("Invalid configuration, chunk_minutes must be positive for MigrationVerticle");
+    Long from = parse(config().getString("from"));
+    Long to = parse(config().getString("to"));
+
+    session = new DbSession(vertx, databaseConfig);
+    range(from, to).compose(range -> {
+      LOG.info("Migrating to pump_sample from " + format(range[0]) + " until " + format(range[1]));
+      return migrate(range[0], range[1]);
+    }).setHandler(ar -> {
+      if(ar.failed())
+        LOG.error("Migration to pump_sample failed, it can be run again: " + ar.cause().getMessage());
+      else
+        LOG.info("Migration to pump_sample done, " + samples + " sample(s) written");
+      vertx.undeploy(deploymentID());
+    });
+  }
+
+  @Override
+  public void stop(Future<Void> stopFuture) {
+    session.close().setHandler(v -> stopFuture.complete());
+  }
+
+  private Long parse(String timestamp) {
+    if(timestamp == null)
+      return null;
+    return LocalDateTime.parse(timestamp, timestampFormatter).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+  }
+
+  private String format(long timestamp) {
+    return timestampFormatter.format(Instant.ofEpochMilli(timestamp));
+  }
+
+  /** @return the period given, or the period of the rows in the old tables */
+  private Future<long[]> range(Long from, Long to) {
+    if(from != null && to != null)
+      return Future.succeededFuture(new long[] { from, to });
+    return session.execute(connection -> range(connection, "pump_temperature")
+      .compose(temp -> range(connection, "pump_current").map(powr -> new long[] {
+        from != null ? from : Math.min(temp[0], powr[0]),
+        to != null ? to : Math.max(temp[1], powr[1]) + 1000L })));
+  }
+
+  private Future<long[]> range(SQLConnection connection, String table) {
+    Future<long[]> future = Future.future();
+    connection.query(SQL_RANGE + table, ar -> {
+      if(ar.failed()) {
+        future.fail(SQL_RANGE + table + " - " + ar.cause().getMessage());
+        return;
+      }
+      JsonArray row = ar.result().getResults().get(0);
+      future.complete(row.getValue(0) == null
+        ? new long[] { Long.MAX_VALUE, Long.MIN_VALUE } // empty
+        : new long[] { row.getInstant(0).toEpochMilli(), row.getInstant(1).toEpochMilli() });
+    });
+    return future;
+  }
+
+  private Future<Void> migrate(long from, long to) {
+    if(from >= to)
+      return Future.succeededFuture();
+    long end = Math.min(from + chunkMillis, to);
+    JsonArray period = new JsonArray().add(format(from)).add(format(end));
+    return session.<Void>execute(connection -> {
+      Map<Long, double[]> chunk = new TreeMap<>();
+      return update(connection, SQL_DELETE, period)
+        .compose(v -> query(connection, SQL_TEMP, period, chunk))
+        .compose(v -> query(connection, SQL_POWR, period, chunk))
+        .compose(v -> insert(connection, chunk));
+    }).compose(v -> migrate(end, to));
+  }
+
+  /** Groups the values of the rows by timestamp */
+  private Future<Void> query(SQLConnection connection, String sql, JsonArray params, Map<Long, double[]> chunk) {
+    Future<Void> future = Future.future();
+    connection.queryWithParams(sql, params, ar -> {
+      if(ar.failed()) {
+        future.fail(sql + " - " + ar.cause().getMessage());
+        return;
+      }
+      for(JsonArray row : ar.result().getResults()) {
+        int column = SampleTable.column(row.getString(1));
+        if(column < 0) {
+          LOG.warn("No column in pump_sample for sensor '" + row.getString(1) + "', value not migrated");
+          continue;
+        }
+        chunk.computeIfAbsent(row.getInstant(0).toEpochMilli(), ts -> {
+          double[] values = new double[SampleTable.SENSORS.length];
+          Arrays.fill(values, Double.NaN);
+          return values;
+        })[column] = row.getDouble(2);
+      }
+      future.complete();
+    });
+    return future;
+  }
+
+  private Future<Void> insert(SQLConnection connection, Map<Long, double[]> chunk) {
+    Future<Void> future = Future.future();
+    if(chunk.isEmpty()) {
+      future.complete();
+      return future;
+    }
+    List<JsonArray> rows = new ArrayList<>(chunk.size());
+    chunk.forEach((ts, values) -> rows.add(SampleTable.row(format(ts), values)));
+    connection.batchWithParams(SampleTable.SQL_INSERT, rows, ar -> {
+      if(ar.failed()) {
+        future.fail(SampleTable.SQL_INSERT + " - " + ar.cause().getMessage());
+      } else {
+        samples += rows.size();
+        future.complete();
+      }
+    });
+    return future;
+  }
+
+  private Future<Void> update(SQLConnection connection, String sql, JsonArray params) {
+    Future<Void> future = Future.future();
+    connection.updateWithParams(sql, params, ar -> {
+      if(ar.failed())
+        future.fail(sql + " - " + ar.cause().getMessage());
+      else
+        future.complete();
+    });
+    return future;
+  }
+}
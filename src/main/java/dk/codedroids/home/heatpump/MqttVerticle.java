@@ -43,10 +43,12 @@ import java.util.regex.Pattern;
  * Messages are converted into JSON array like this:</p>
  *
  * <pre>{@code [
- *   { "t":"temp", "g":"stue", "s":"room", "d":22.5" },
- *   { "t":"temp", "g":"stue", "s":"thmo", "d":10.0" }
+ *   { "t":"temp", "g":"stue", "s":"room", "d":22.5", "ts":1484521200000 },
+ *   { "t":"temp", "g":"stue", "s":"thmo", "d":10.0", "ts":1484521200000 }
  * ]}</pre>
  *
+ * where "ts" is the time the message arrived in milliseconds since the epoch, see IngestClock.
+ *
  *
  * <p></p>Configuration (the database entry is omitted it will run but not do any persistence of data):</p>
  *
@@ -102,6 +104,7 @@ public class MqttVerticle extends AbstractVerticle {
       if(LOG.isTraceEnabled())
         LOG.trace("Received message on [" + message.topicName() +"] payload [" + message.payload() +"] with QoS ["+ message.qosLevel() +"]");
 
+      long ts = IngestClock.now();
       String payload = message.payload().toString(); // only string messages
 
       if (verbose)
@@ -115,12 +118,12 @@ public class MqttVerticle extends AbstractVerticle {
         switch(message.topicName()) {
           case "sensors/livingroom/thermomotor":
             int val = "1".equals(payload) ? 10 : 0; // Hack to get it into the temp graph
-            dataSet.add(new JsonObject().put("t", "temp").put("g", "stue").put("s", "thmo").put("d", val));
+            dataSet.add(new JsonObject().put("t", "temp").put("g", "stue").put("s", "thmo").put("d", val).put("ts", ts));
             break;
           case "sensors/livingroom/temperature":
             try {
               double t = Double.parseDouble(payload);
-              dataSet.add(new JsonObject().put("t", "temp").put("g", "stue").put("s", "room").put("d", t));
+              dataSet.add(new JsonObject().put("t", "temp").put("g", "stue").put("s", "room").put("d", t).put("ts", ts));
             }
             catch(NumberFormatException e) {
               LOG.error("Mqqt topic 'stue/temperature' data contained non-numeric value: \"" + payload+ "\"", e);
@@ -19,6 +19,7 @@
 package dk.codedroids.home.heatpump;
 
 import io.vertx.core.AbstractVerticle;
+import io.vertx.core.Future;
 import io.vertx.core.logging.Logger;
 import io.vertx.core.logging.LoggerFactory;
 import io.vertx.ext.web.Router;
@@ -26,6 +27,7 @@ import io.vertx.ext.web.handler.BodyHandler;
 import io.vertx.ext.web.handler.StaticHandler;
 import io.vertx.ext.web.handler.TemplateHandler;
 import io.vertx.ext.web.handler.sockjs.BridgeOptions;
+import io.vertx.ext.bridge.BridgeEventType;
 import io.vertx.ext.bridge.PermittedOptions;
 import io.vertx.ext.web.handler.sockjs.SockJSHandler;
 import io.vertx.ext.web.handler.sockjs.SockJSHandlerOptions;
@@ -42,6 +44,10 @@ import io.vertx.ext.web.templ.TemplateEngine;
  * <li><b>reconnect_interval : 10</b> -- Number of seconds in between reconnects attempts (will try max 10 times)</li>
  * <li><b>http_caching : true | false</b> -- Per default http caching is enabled</li>
  * <li><b>http_port : 9000</b> -- Serve content from this port</li>
+ * <li><b>timestamps : false</b> -- If true the data sets sent to the browsers have the time of the reading in each
+ *        element ("ts", milliseconds since the epoch)</li>
+ * <li><b>metrics_path : "/metrics"</b> -- Serve the metrics of the pipeline (see Metrics) in the Prometheus text
+ *        format at this path, "" to not serve them</li>
  * </li>
  *
  * @author Claus Priisholm.
@@ -50,11 +56,13 @@ public class PanelVerticle extends AbstractVerticle {
 
   private final Logger LOG = LoggerFactory.getLogger(PanelVerticle.class);
 
+  private static final Metrics.Gauge CLIENTS = Metrics.gauge("heatpump_panel_clients", "Browsers connected to the event bus bridge");
+
   private String eventBusAddress;
   private int httpPort;
 
   @Override
-  public void start() {
+  public void start(Future<Void> startFuture) {
 
     if(LOG.isDebugEnabled())
       LOG.debug("Panel verticle starting with config: " + config().encodePrettily());
@@ -64,39 +72,67 @@ public class PanelVerticle extends AbstractVerticle {
     boolean httpCaching = config().getBoolean("http_caching", true);
     String eventBusUrl = config().getString("event_bus_url","http://localhost:9000/eventbus");
     int reconnectInterval = config().getInteger("reconnect_interval", 10) * 1000;
+    String metricsPath = config().getString("metrics_path", "/metrics");
+    boolean timestamps = config().getBoolean("timestamps", false);
+
+    // The browser needs the JSON form, so readings are converted here and published to an address only
+    // this instance bridges (unique, so panels on other nodes don't pick up each others messages)
+    ReadingCodec.register(vertx);
+    String bridgeAddress = eventBusAddress + ".panel." + deploymentID();
+    vertx.eventBus().consumer(eventBusAddress, message -> {
+      Object body = message.body();
+      vertx.eventBus().publish(bridgeAddress, body instanceof Reading ? ((Reading) body).encode(timestamps) : body);
+    });
 
     SockJSHandlerOptions sockJSHandlerOpts = new SockJSHandlerOptions().setHeartbeatInterval(2000);
     SockJSHandler sockJSHandler = SockJSHandler.create(vertx, sockJSHandlerOpts);
 
     // http://vertx.io/docs/vertx-web/java/#_sockjs_event_bus_bridge
     // Let through any messages coming from exact address:
-    PermittedOptions outboundPermitted = new PermittedOptions().setAddress(eventBusAddress);
+    PermittedOptions outboundPermitted = new PermittedOptions().setAddress(bridgeAddress);
     // Let through any messages from addresses starting with "news." (e.g. news.europe, news.usa, etc)
     //PermittedOptions outboundPermitted2 = new PermittedOptions().setAddressRegex("news\\..+");
 
     BridgeOptions options = new BridgeOptions()
       .addOutboundPermitted(outboundPermitted);
-    sockJSHandler.bridge(options);
+    sockJSHandler.bridge(options, event -> {
+      if(event.type() == BridgeEventType.SOCKET_CREATED)
+        CLIENTS.increment();
+      else if(event.type() == BridgeEventType.SOCKET_CLOSED)
+        CLIENTS.decrement();
+      event.complete(true);
+    });
 
     TemplateEngine engine = PebbleTemplateEngine.create(vertx);
     TemplateHandler templateHandler = TemplateHandler.create(engine); // Handles html type of templates
 
     Router router = Router.router(vertx);
-    router.route().handler(BodyHandler.create());
+    // The bridge goes before the body handler, which would otherwise read the request and break the WebSocket upgrade
     router.route("/eventbus/*").handler(sockJSHandler);
+    router.route().handler(BodyHandler.create());
     // Need to inject data into routing context prior to letting the template engine do its thing
     router.get("/").handler(routingContext -> {
-      routingContext.put("eventBusAddress", eventBusAddress);
+      routingContext.put("eventBusAddress", bridgeAddress);
       routingContext.put("eventBusUrl", eventBusUrl);
       routingContext.put("reconnectInterval", reconnectInterval);
       routingContext.next();
     });
     router.get("/").handler(templateHandler);
+    if(!metricsPath.isEmpty())
+      router.get(metricsPath).handler(routingContext -> routingContext.response()
+        .putHeader("Content-Type", "text/plain; version=0.0.4; charset=utf-8")
+        .end(Metrics.prometheus()));
     router.get("/*").handler(StaticHandler.create().setCachingEnabled(httpCaching)); // serves files from .../resources/webroot/
 
-    vertx.createHttpServer().requestHandler(router::accept).listen(httpPort);
-
-    LOG.info("Panel verticle started, listens on " + eventBusAddress + ", serving on port " + httpPort);
+    // Started once serving, so whoever deployed it can connect right away
+    vertx.createHttpServer().requestHandler(router::accept).listen(httpPort, ar -> {
+      if(ar.failed()) {
+        startFuture.fail(ar.cause());
+        return;
+      }
+      LOG.info("Panel verticle started, listens on " + eventBusAddress + ", serving on port " + httpPort);
+      startFuture.complete();
+    });
   }
 
   @Override
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2017 CodeDroids ApS (http://www.codedroids.dk)
+ *
+ * This file is part of the HeatPump Vert.x example
+ *
+ * The HeatPump Vert.x example is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * The HeatPump Vert.x example is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the HeatPump Vert.x example. If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.codedroids.home.heatpump;
+
+import io.vertx.core.Context;
+import io.vertx.core.buffer.Buffer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Wraps a SerialInput that invokes its handler on its own thread (like the RXTX event thread in SerialWrapper),
+ * so the lines are queued in a {@link HandOffQueue} and handled on a Vert.x context instead.
+ *
+ * <p>The reader thread only enqueues. The context is woken up once when the queue goes from empty to non-empty and
+ * then drains whatever has been queued, so there is not a context switch per line when lines arrive in bursts.
+ * Lines are timestamped by the wrapped input as they arrive, and the timestamp travels with the line through the
+ * queue.</p>
+ *
+ * @author Claus Priisholm.
+ */
+public class QueuedSerialInput implements SerialInput {
+
+  private final SerialInput input;
+  private final Context context;
+  private final HandOffQueue<Buffer> queue;
+  private final AtomicInteger pending = new AtomicInteger(); // lines offered but not yet drained
+  private LineHandler handler;
+
+  /**
+   * @param input The input to wrap
+   * @param context Context the handler runs on
+   * @param capacity Max. number of lines queued
+   * @param overflow What to do when the queue is full
+   */
+  public QueuedSerialInput(SerialInput input, Context context, int capacity, HandOffQueue.Overflow overflow) {
+    this.input = input;
+    this.context = context;
+    this.queue = new HandOffQueue<>(capacity, overflow);
+  }
+
+  @Override
+  public void setHandler(Consumer<String> handler) {
+    setBufferHandler(line -> handler.accept(line == null ? null : line.toString(StandardCharsets.ISO_8859_1)));
+  }
+
+  @Override
+  public void setBufferHandler(Consumer<Buffer> handler) {
+    setLineHandler((line, timestamp) -> handler.accept(line));
+  }
+
+  @Override
+  public void setLineHandler(LineHandler handler) {
+    this.handler = handler;
+    input.setLineHandler(this::enqueue);
+  }
+
+  /** Producer side, runs on the thread of the wrapped input */
+  private void enqueue(Buffer line, long timestamp) {
+    if(line == null) // nothing to hand over
+      return;
+    if(queue.offer(line, timestamp) && pending.getAndIncrement() == 0)
+      context.runOnContext(v -> drain());
+  }
+
+  /** Consumer side, runs on the context */
+  private void drain() {
+    int missed = 1;
+    do {
+      Buffer line;
+      while((line = queue.poll()) != null)
+        handler.handle(line, queue.stamp());
+      missed = pending.addAndGet(-missed);
+    } while(missed != 0);
+  }
+
+  /** The queue, to keep an eye on depth and drops */
+  public HandOffQueue<Buffer> queue() {
+    return queue;
+  }
+
+  @Override
+  public void close() {
+    queue.close();
+    input.close();
+  }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2017 CodeDroids ApS (http://www.codedroids.dk)
+ *
+ * This file is part of the HeatPump Vert.x example
+ *
+ * The HeatPump Vert.x example is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * The HeatPump Vert.x example is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the HeatPump Vert.x example. If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.codedroids.home.heatpump;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import java.util.Arrays;
+
+/**
+ * One set of measurements from a controller, kept as primitive values in the column order of its
+ * {@link SensorSchema}.
+ *
+ * <p>The values are only turned into the JSON array format (see SerialVerticle) by the consumers that
+ * actually need it, so a reading can be decoded into and reused without allocating per sample.</p>
+ *
+ * <p>Readings are published on the event bus as is, see {@link ReadingCodec}. A published reading is shared by
+ * the local consumers, so publish a {@link #copy()} of a reading that is reused.</p>
+ *
+ * <p>A value may be absent (NaN), e.g. when only the values that changed are published. Absent values are
+ * left out of the JSON form.</p>
+ *
+ * @author Claus Priisholm.
+ */
+public class Reading {
+
+  private final SensorSchema schema;
+  private final double[] values;
+  private String source;
+  private long timestamp; // milliseconds since the epoch, zero if unknown
+  private String jsonSuffix = "}"; // the part of each JSON element after the value
+
+  /** A reading with the default schema, i.e. the sensors in the {@link Sensor} enum */
+  public Reading() {
+    this(SensorSchema.DEFAULT);
+  }
+
+  public Reading(SensorSchema schema) {
+    this.schema = schema;
+    this.values = new double[schema.size()];
+  }
+
+  public SensorSchema schema() { return schema; }
+
+  /** @return the value of the column at the zero based index, NaN if absent */
+  public double get(int index) { return values[index]; }
+  public void set(int index, double value) { values[index] = value; }
+
+  /** @return the value for the sensor, NaN if the schema has no such sensor */
+  public double get(Sensor sensor) {
+    int index = schema.indexOf(sensor.name());
+    return index < 0 ? Double.NaN : values[index];
+  }
+
+  /** Time the data arrived from the device in milliseconds since the epoch (see IngestClock), zero if unknown */
+  public long timestamp() { return timestamp; }
+  public void setTimestamp(long timestamp) { this.timestamp = timestamp; }
+
+  /** Id of the device the reading comes from, null if not tagged */
+  public String source() { return source; }
+
+  /** Tags the reading with the id of the device, null for no tag. Id must not need escaping in JSON */
+  public void setSource(String source) {
+    this.source = source;
+    this.jsonSuffix = source == null ? "}" : ",\"src\":\"" + source + "\"}";
+  }
+
+  /** @return a new reading with the same schema, values, timestamp and source */
+  public Reading copy() {
+    Reading copy = new Reading(schema);
+    System.arraycopy(values, 0, copy.values, 0, values.length);
+    copy.source = source;
+    copy.timestamp = timestamp;
+    copy.jsonSuffix = jsonSuffix;
+    return copy;
+  }
+
+  /** Marks all values as absent */
+  public void clear() {
+    Arrays.fill(values, Double.NaN);
+  }
+
+  /** @return true if no value is present */
+  public boolean isEmpty() {
+    for(double value : values)
+      if(!Double.isNaN(value))
+        return false;
+    return true;
+  }
+
+  /** The backing array in column order - used by the decoder to fill in values directly */
+  double[] values() { return values; }
+
+  /**
+   * @return the reading as a JSON array of {@code {"t":..., "g":..., "s":..., "d":...}} objects, with
+   * {@code "src":...} added to each object if the reading has a source. Absent values are left out.
+   */
+  public JsonArray toJson() {
+    JsonArray arr = new JsonArray();
+    for(int i = 0; i < values.length; i++) {
+      if(Double.isNaN(values[i]))
+        continue;
+      SensorSchema.Column column = schema.column(i);
+      JsonObject measurement = new JsonObject()
+        .put("t", column.type)
+        .put("g", column.group)
+        .put("s", column.name)
+        .put("d", values[i]);
+      if(source != null)
+        measurement.put("src", source);
+      arr.add(measurement);
+    }
+    return arr;
+  }
+
+  /**
+   * Same result as {@code toJson().encode()}, but written straight from the values without
+   * building the intermediate JSON objects.
+   */
+  public String encode() {
+    return encode(false);
+  }
+
+  /**
+   * @param withTimestamp if true and the reading has a timestamp, each element gets it as {@code "ts":...}
+   *                      like in the JSON data sets from other sources
+   */
+  public String encode(boolean withTimestamp) {
+    String ts = withTimestamp && timestamp != 0 ? ",\"ts\":" + timestamp : "";
+    StringBuilder sb = new StringBuilder((64 + ts.length()) * values.length);
+    sb.append('[');
+    for(int i = 0; i < values.length; i++) {
+      if(Double.isNaN(values[i]))
+        continue;
+      if(sb.length() > 1)
+        sb.append(',');
+      sb.append(schema.column(i).jsonPrefix).append(values[i]).append(ts).append(jsonSuffix);
+    }
+    return sb.append(']').toString();
+  }
+
+  @Override
+  public String toString() {
+    return encode();
+  }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2017 CodeDroids ApS (http://www.codedroids.dk)
+ *
+ * This file is part of the HeatPump Vert.x example
+ *
+ * The HeatPump Vert.x example is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * The HeatPump Vert.x example is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the HeatPump Vert.x example. If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.codedroids.home.heatpump;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.eventbus.MessageCodec;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Event bus codec for {@link Reading}, registered as the default codec so readings can be published as is.
+ *
+ * <p>Local delivery passes the reading by reference, so a reading must not be changed once published.
+ * Across the cluster the reading is sent in this binary form (big endian):</p>
+ *
+ * <pre>{@code
+ * byte     version (1)
+ * byte     flags, bit 0 set if a source id follows the values, bit 1 set if a schema descriptor follows,
+ *          bit 2 set if a timestamp follows
+ * long     timestamp, milliseconds since the epoch (only if flag is set)
+ * short    length of the schema descriptor, followed by the descriptor (only if flag is set, see SensorSchema)
+ * byte     number of values (n)
+ * double*n values in column order
+ * short    length of source id in bytes, followed by the UTF-8 bytes (only if flag is set)
+ * }</pre>
+ *
+ * <p>Readings with the default schema are sent without the descriptor. The receiving side keeps the schemas it
+ * has seen, so readings with the same custom schema share one schema instance.</p>
+ *
+ * @author Claus Priisholm.
+ */
+public class ReadingCodec implements MessageCodec<Reading, Reading> {
+
+  public static final String NAME = "heatpump-reading";
+
+  private static final byte VERSION = 1;
+  private static final byte FLAG_SOURCE = 1;
+  private static final byte FLAG_SCHEMA = 2;
+  private static final byte FLAG_TIMESTAMP = 4;
+  private static final int MAX_CACHED_SCHEMAS = 64;
+
+  private final Map<Integer, SensorSchema> schemas = new ConcurrentHashMap<>();
+
+  /**
+   * Registers the codec as default codec for readings. Every verticle that sends or receives readings
+   * should call this, it is fine to call it more than once.
+   */
+  public static void register(Vertx vertx) {
+    try {
+      vertx.eventBus().registerDefaultCodec(Reading.class, new ReadingCodec());
+    } catch(IllegalStateException e) {
+      // Already registered by another verticle
+    }
+  }
+
+  @Override
+  public void encodeToWire(Buffer buffer, Reading reading) {
+    double[] values = reading.values();
+    String source = reading.source();
+    SensorSchema schema = reading.schema();
+    byte[] descriptor = schema == SensorSchema.DEFAULT || Arrays.equals(schema.descriptor(), SensorSchema.DEFAULT.descriptor())
+      ? null : schema.descriptor();
+    buffer.appendByte(VERSION);
+    long timestamp = reading.timestamp();
+    buffer.appendByte((byte) ((source == null ? 0 : FLAG_SOURCE) | (descriptor == null ? 0 : FLAG_SCHEMA)
+      | (timestamp == 0 ? 0 : FLAG_TIMESTAMP)));
+    if(timestamp != 0)
+      buffer.appendLong(timestamp);
+    if(descriptor != null) {
+      buffer.appendShort((short) descriptor.length);
+      buffer.appendBytes(descriptor);
+    }
+    buffer.appendByte((byte) values.length);
+    for(double value : values)
+      buffer.appendDouble(value);
+    if(source != null) {
+      byte[] bytes = source.getBytes(StandardCharsets.UTF_8);
+      buffer.appendShort((short) bytes.length);
+      buffer.appendBytes(bytes);
+    }
+  }
+
+  @Override
+  public Reading decodeFromWire(int pos, Buffer buffer) {
+    byte version = buffer.getByte(pos++);
+    if(version != VERSION)
+      throw new IllegalStateException("Unsupported reading wire format version: " + version);
+    byte flags = buffer.getByte(pos++);
+    long timestamp = 0;
+    if((flags & FLAG_TIMESTAMP) != 0) {
+      timestamp = buffer.getLong(pos);
+      pos += 8;
+    }
+    SensorSchema schema = SensorSchema.DEFAULT;
+    if((flags & FLAG_SCHEMA) != 0) {
+      int length = buffer.getUnsignedShort(pos);
+      pos += 2;
+      schema = schemaFromWire(buffer, pos, length);
+      pos += length;
+    }
+    int count = buffer.getUnsignedByte(pos++);
+    Reading reading = new Reading(schema);
+    reading.setTimestamp(timestamp);
+    double[] values = reading.values();
+    for(int i = 0; i < count; i++, pos += 8) {
+      if(i < values.length) // ignore values not in the schema
+        values[i] = buffer.getDouble(pos);
+    }
+    if((flags & FLAG_SOURCE) != 0) {
+      int length = buffer.getUnsignedShort(pos);
+      pos += 2;
+      reading.setSource(buffer.getString(pos, pos + length, "UTF-8"));
+    }
+    return reading;
+  }
+
+  private SensorSchema schemaFromWire(Buffer buffer, int pos, int length) {
+    int hash = 1; // same as Arrays.hashCode() of the descriptor
+    for(int i = 0; i < length; i++)
+      hash = 31 * hash + buffer.getByte(pos + i);
+    SensorSchema schema = schemas.get(hash);
+    if(schema == null || !sameBytes(schema.descriptor(), buffer, pos, length)) {
+      schema = SensorSchema.fromDescriptor(buffer.getBytes(pos, pos + length));
+      if(schemas.size() < MAX_CACHED_SCHEMAS)
+        schemas.put(hash, schema);
+    }
+    return schema;
+  }
+
+  private static boolean sameBytes(byte[] bytes, Buffer buffer, int pos, int length) {
+    if(bytes.length != length)
+      return false;
+    for(int i = 0; i < length; i++)
+      if(bytes[i] != buffer.getByte(pos + i))
+        return false;
+    return true;
+  }
+
+  @Override
+  public Reading transform(Reading reading) {
+    return reading;
+  }
+
+  @Override
+  public String name() {
+    return NAME;
+  }
+
+  @Override
+  public byte systemCodecID() {
+    return -1;
+  }
+}
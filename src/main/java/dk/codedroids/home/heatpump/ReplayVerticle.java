@@ -20,41 +20,60 @@ package dk.codedroids.home.heatpump;
 
 import io.vertx.core.AbstractVerticle;
 import io.vertx.core.buffer.Buffer;
+import io.vertx.core.eventbus.DeliveryOptions;
 import io.vertx.core.eventbus.EventBus;
-import io.vertx.core.file.AsyncFile;
-import io.vertx.core.file.OpenOptions;
+import io.vertx.core.eventbus.ReplyException;
+import io.vertx.core.eventbus.ReplyFailure;
+import io.vertx.core.file.FileSystemException;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.Future;
 import io.vertx.core.Handler;
 import io.vertx.core.AsyncResult;
 import io.vertx.core.json.JsonObject;
-import io.vertx.core.parsetools.RecordParser;
-import io.vertx.ext.jdbc.JDBCClient;
 import io.vertx.ext.sql.SQLConnection;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.FileSystems;
-import java.nio.file.Files;
-import java.nio.file.Path;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import io.vertx.core.logging.Logger;
 import io.vertx.core.logging.LoggerFactory;
 
 /**
- * Intended for replaying recorded data from the database or from a text file. Mostly for testing.
+ * Intended for replaying recorded data from the database, the time series of the LoggerVerticle or from a text
+ * file. Mostly for testing.
  * <p>
- *     The configuration must define either a <b>database</b> or a <b>text_file</b>.
+ *     The configuration must define one of <b>database</b>, <b>tsdb</b> or <b>text_file</b>.
  * </p>
  * Configuration :
  *
  * <ul>
  * <li><b>event_bus : "home.heatpump.data"</b> -- Eventbus address</li>
  * <li><b>sample_interval : 10</b> -- Number of seconds between events - defaults to 10 seconds which is the actually sampling interval used by the microcontroller.</li>
- * <li><b>start_time : "2017-01-01 00:00:00"</b> -- Start replay from the given timestamp (defaults to "2017-01-01 00:00:00")</li>
+ * <li><b>start_time : "2017-01-01 00:00:00"</b> -- Start replay from the given timestamp (defaults to "2017-01-01 00:00:00").
+ *        A text_file is only replayed from start_time when it is given, then the first "ts" of each line is its
+ *        timestamp and the replay seeks to the first line at or after start_time with a sparse index of the file
+ *        (see LineIndex), which is built or brought up to date first. Not for gzip files</li>
+ * <li><b>end_time : "2018-01-01 00:00:00"</b> -- Stop replaying the database or tsdb here (not included), with pace
+ *        "max" defaults to the time the verticle started, otherwise it goes on</li>
+ * <li><b>pace : "timer"</b> -- "timer" (default) publishes a data set every sample_interval, "max" sends them as
+ *        fast as they are acknowledged, for backfills and load tests: each goes to one consumer which must reply
+ *        (e.g. the LoggerVerticle, once written). The data sets of the database and tsdb get the start of their
+ *        period as "ts", so they are stored with the recorded time, and empty periods are skipped. Progress is
+ *        logged every 10 seconds</li>
+ * <li><b>in_flight : 200</b> -- With pace "max", max. number of data sets sent and not yet acknowledged. The
+ *        LoggerVerticle acknowledges a batch at a time, so this should be at least its batch_size (times the
+ *        instances with ingest "shared")</li>
+ * <li><b>send_timeout : 30000</b> -- With pace "max", milliseconds to wait for an acknowledgement before the data
+ *        set is sent again (after a delay growing to 30 seconds, while nothing more is sent). So a data set may
+ *        arrive twice if the acknowledgement was late, one the consumer replies a failure to is not sent again</li>
  * <li><b>database :</b>
  *    <ul>
  *        <li><b>url : "jdbc:mariadb://server:3306/mydb"</b></li>
@@ -62,9 +81,20 @@ import io.vertx.core.logging.LoggerFactory;
  *        <li><b>password : "password"</b></li>
  *        <li><b>driver_class : "org.mariadb.jdbc.Driver"</b> -- or other jdbc drives such as com.mysql.jdbc.Driver</li>
  *        <li><b>max_pool_size : 10</b> -- max. size of the connection pool, defaults to 10</li>
+ *        <li><b>max_statements, validation_query, ... </b> -- see DbSession, the queries run on one long-lived
+ *               connection</li>
  *    </ul>
  * </li>
- * <li><b>text_file : "/tmp/records.txt"</b> -- file with one message per line (send to event bus as is)</li>
+ * <li><b>prefetch : 3600</b> -- With database, seconds of recorded data read at a time, a chunk is streamed with a
+ *        cursor while the one before it is replayed and the timer replays from memory. Must be a multiple of 10,
+ *        0 queries each period when it is replayed</li>
+ * <li><b>schema : "narrow"</b> -- "narrow" (default) reads pump_temperature and pump_current, "wide" reads
+ *        pump_sample (see SampleTable)</li>
+ * <li><b>tsdb : "/var/lib/heatpump/tsdb"</b> -- directory of the time series written by the LoggerVerticle
+ *        (storage "tsdb")</li>
+ * <li><b>index_interval : 1000</b> -- With text_file and start_time, lines per entry of the index</li>
+ * <li><b>text_file : "/tmp/records.txt"</b> -- file with one message per line (send to event bus as is), read as the
+ *        lines are replayed. A file ending in ".gz" is decompressed on the fly</li>
  * </ul>
  *
  * @author Claus Priisholm.
@@ -72,22 +102,53 @@ import io.vertx.core.logging.LoggerFactory;
 public class ReplayVerticle extends AbstractVerticle {
 
 
-  private final String SQL_TEMP = "select sensor, data from pump_temperature where ts >= ? and ts < ?";
-  private final String SQL_POWR = "select sensor, data from pump_current where ts >= ? and ts < ?";
+  // Both tables in one go, the temperatures (kind 0) before the currents of each timestamp like the data sets
+  private final String SQL_ROWS = "select ts, 0 as kind, sensor, data from pump_temperature where ts >= ? and ts < ?"
+    + " union all select ts, 1 as kind, sensor, data from pump_current where ts >= ? and ts < ? order by ts, kind";
+  private final String SQL_SAMPLES = SampleTable.SQL_SELECT + " order by ts";
 
   private final SimpleDateFormat timestampFormatter = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
 
   private final Logger LOG = LoggerFactory.getLogger(this.getClass());
 
+  private static final Metrics.Histogram QUERY_TIME = Metrics.histogram("heatpump_replay_query_seconds", "Time to get the data set of a period to replay");
+  private static final Metrics.Counter ACKNOWLEDGED = Metrics.counter("heatpump_replay_acknowledged_total", "Data sets replayed with pace max and acknowledged");
+  private static final long PROGRESS_INTERVAL = 10000L;
+  private static final long RESEND_MAX_DELAY = 30000L;
+
   private String eventBusAddress;
   private String startTime;
   private int sampleInterval;
   private long time; // set to startTime and then incremented by 'interval' during the timer callback
-  private JDBCClient client = null;
-  private BufferedReader textFileReader = null;
+  private long startMillis; // the periods are 10 seconds from here
+  private long prefetchMillis = 0; // length of a chunk, 0 for no prefetch
+  private final ArrayDeque<Chunk> chunks = new ArrayDeque<>(); // the one replayed and the one after it, at most
+  private DbSession session = null;
+  private TimeSeriesStore store = null; // used on a worker, one period at a time
+  private boolean wide = false;
+  private LineReader textFileReader = null;
+  private long endMillis;
 
   private long timerID;
 
+  // With pace "max", only used on the verticle's context
+  private Handler<Handler<AsyncResult<String>>> source; // the next message, "" to skip, null at the end
+  private DeliveryOptions deliveryOptions;
+  private int maxInFlight;
+  private int inFlight = 0;
+  private boolean fetching = false;
+  private boolean pumping = false;
+  private boolean ended = false;
+  private boolean stopped = false;
+  private long sent = 0;
+  private long acknowledged = 0;
+  private long failedSends = 0; // failed by the consumer, given up
+  private long resentSends = 0;
+  private int resending = 0; // waiting to be sent again
+  private long progressTimer = -1;
+  private long lastProgress = 0; // acknowledged at the last progress report
+  private long pumpStarted;
+
   @Override
   public void start() {
 
@@ -95,11 +156,13 @@ public class ReplayVerticle extends AbstractVerticle {
       LOG.debug("ReplayVerticle starting with config: " + config().encodePrettily());
 
     JsonObject databaseConfig = config().getJsonObject("database");
+    String tsdb = config().getString("tsdb");
     String textFile = config().getString("text_file");
-    if (databaseConfig == null && textFile == null)
-      throw new IllegalArgumentException("Invalid configuration, either 'database' or 'text_file' is missing for ReplayVerticle");
-    else if (databaseConfig != null && textFile != null)
-      throw new IllegalArgumentException("Invalid configuration, only one of 'database' or 'text_file' must be given for ReplayVerticle");
+    int sources = (databaseConfig == null ? 0 : 1) + (tsdb == null ? 0 : 1) + (textFile == null ? 0 : 1);
+    if (sources == 0)
+      throw new IllegalArgumentException("Invalid configuration, one of 'database', 'tsdb' or 'text_file' is missing for ReplayVerticle");
+    else if (sources > 1)
+      throw new IllegalArgumentException("Invalid configuration, only one of 'database', 'tsdb' or 'text_file' must be given for ReplayVerticle");
 
     eventBusAddress = config().getString("event_bus", "home.heatpump.playback");
     startTime = config().getString("start_time", "2017-01-01 00:00:00");
@@ -109,18 +172,68 @@ public class ReplayVerticle extends AbstractVerticle {
     } catch (java.text.ParseException e) {
       throw new RuntimeException("Failed to parse start_time: " + startTime, e);
     }
+    startMillis = time;
+    String pace = config().getString("pace", "timer");
+    if(!"timer".equals(pace) && !"max".equals(pace))
+      throw new IllegalArgumentException("Invalid configuration, pace must be 'timer' or 'max' for ReplayVerticle, got '" + pace + "'");
+    String endTime = config().getString("end_time");
+    try {
+      endMillis = endTime != null ? timestampFormatter.parse(endTime).getTime() : "max".equals(pace) ? IngestClock.now() : Long.MAX_VALUE;
+    } catch (java.text.ParseException e) {
+      throw new IllegalArgumentException("Invalid configuration, failed to parse end_time: " + endTime, e);
+    }
+    maxInFlight = config().getInteger("in_flight", 200);
+    deliveryOptions = new DeliveryOptions().setSendTimeout(config().getLong("send_timeout", 30000L));
+    if(maxInFlight < 1)
+      throw new IllegalArgumentException("Invalid configuration, in_flight must be positive for ReplayVerticle");
+    int prefetch = config().getInteger("prefetch", 3600);
+    if(prefetch < 0 || prefetch % 10 != 0)
+      throw new IllegalArgumentException("Invalid configuration, prefetch must be 0 or a positive multiple of 10 seconds for ReplayVerticle");
+    prefetchMillis = prefetch * 1000L;
 
     EventBus eventBus = vertx.eventBus();
 
-    if(databaseConfig != null) {
-      client = JDBCClient.createShared(vertx, new JsonObject()
-        .put("url", databaseConfig.getString("url"))
-        .put("user", databaseConfig.getString("user"))
-        .put("password", databaseConfig.getString("password"))
-        .put("driver_class", databaseConfig.getString("driver_class"))
-        .put("max_pool_size", databaseConfig.getInteger("pool_size", 10))
-      );
-      timerID = vertx.setPeriodic(sampleInterval * 1000L,  tid -> {
+    if(tsdb != null) {
+      try {
+        // Since it is kind of setup we take a chance and open the store even though it is blocking
+        store = new TimeSeriesStore(FileSystems.getDefault().getPath(tsdb), 360, true);
+      } catch(IOException e) {
+        throw new IllegalArgumentException("Invalid configuration, unable to open tsdb: " + e.getMessage(), e);
+      }
+    }
+
+    String schema = config().getString("schema", "narrow");
+    if(!"narrow".equals(schema) && !"wide".equals(schema))
+      throw new IllegalArgumentException("Invalid configuration, schema must be 'narrow' or 'wide' for ReplayVerticle, got '" + schema + "'");
+    wide = "wide".equals(schema);
+
+    if(databaseConfig != null || store != null) {
+      if(databaseConfig != null)
+        session = new DbSession(vertx, databaseConfig);
+      if("max".equals(pace)) {
+        source = next -> {
+          if(time >= endMillis) {
+            next.handle(Future.succeededFuture(null));
+            return;
+          }
+          long period = time;
+          getNextData(arDataSet -> {
+            if(arDataSet.failed()) {
+              time = period; // the same period is fetched again, a backfill must not leave a gap
+              next.handle(Future.failedFuture(arDataSet.cause()));
+              return;
+            }
+            JsonArray dataSet = arDataSet.result();
+            dataSet.forEach(data -> ((JsonObject) data).put("ts", period));
+            next.handle(Future.succeededFuture(dataSet.isEmpty() ? "" : dataSet.encode()));
+          });
+        };
+      } else timerID = vertx.setPeriodic(sampleInterval * 1000L,  tid -> {
+        if(time >= endMillis) {
+          LOG.info("Replayed to the end_time, stopped sending to the event bus");
+          vertx.cancelTimer(timerID);
+          return;
+        }
         getNextData( arDataSet -> {
           if (arDataSet.failed()) {
             LOG.error("getNextData() failed: " + arDataSet.cause().getMessage());
@@ -135,147 +248,480 @@ public class ReplayVerticle extends AbstractVerticle {
     }
 
     if(textFile != null) {
-      // Since it is kind of setup we take a chance and open the file even though it is blocking
-      Path textFilePath = FileSystems.getDefault().getPath(textFile);
-      try {
-        textFileReader = Files.newBufferedReader(textFilePath);
-
-        timerID = vertx.setPeriodic(sampleInterval * 1000L,  tid -> {
-          vertx.executeBlocking((Future<String> future) -> {
-            try {
-              future.complete(textFileReader.readLine());
-            } catch(IOException e) {
-              future.fail(e);
-            }
-          }, arTextLine -> {
-            if (arTextLine.succeeded()) {
-              String dataLine = arTextLine.result();
-              if (LOG.isTraceEnabled())
-                LOG.trace(dataLine);
-              if(dataLine!=null) {
-                eventBus.publish(eventBusAddress, dataLine);
-              } else {
-                LOG.info("Read to end of file, stopped sending to the event bus");
-                vertx.cancelTimer(timerID);
-              }
+      if(config().containsKey("start_time") && !textFile.endsWith(".gz")) {
+        int indexInterval = config().getInteger("index_interval", LineIndex.DEFAULT_INTERVAL);
+        if(indexInterval < 1)
+          throw new IllegalArgumentException("Invalid configuration, index_interval must be positive for ReplayVerticle");
+        long from = startMillis;
+        vertx.executeBlocking((Future<Long> future) -> {
+          try {
+            future.complete(LineIndex.seek(FileSystems.getDefault().getPath(textFile), from, indexInterval));
+          } catch(IOException e) {
+            future.fail(e);
+          }
+        }, arOffset -> {
+          long offset = 0;
+          if(arOffset.failed())
+            LOG.error("Failed to find start_time in \"" + textFile + "\" (replaying from the start): " + arOffset.cause().getMessage());
+          else if(arOffset.result() < 0)
+            LOG.warn("No timestamps (\"ts\") in \"" + textFile + "\", replaying from the start");
+          else {
+            offset = arOffset.result();
+            LOG.info("Replaying \"" + textFile + "\" from " + startTime + ", at byte " + offset);
+          }
+          if(!stopped)
+            replayTextFile(textFile, offset, "max".equals(pace));
+        });
+      } else
+        replayTextFile(textFile, 0, "max".equals(pace));
+    } else if(source != null)
+      startPump();
+
+    LOG.info("ReplayVerticle started, " + ("max".equals(pace) ? "sending as fast as acknowledged" : "publishing") + " to '" + eventBusAddress + "'");
+  }
+
+  private void replayTextFile(String textFile, long offset, boolean max) {
+    // Since it is kind of setup we take a chance and open the file even though it is blocking, reading it is not
+    EventBus eventBus = vertx.eventBus();
+    try {
+      textFileReader = new LineReader(vertx, textFile, offset);
+
+      if(max) {
+        source = textFileReader::readLine;
+        startPump();
+      } else timerID = vertx.setPeriodic(sampleInterval * 1000L,  tid -> {
+        textFileReader.readLine(arTextLine -> {
+          if (arTextLine.succeeded()) {
+            String dataLine = arTextLine.result();
+            if (LOG.isTraceEnabled())
+              LOG.trace(dataLine);
+            if(dataLine!=null) {
+              eventBus.publish(eventBusAddress, dataLine);
             } else {
-              LOG.error("Failed to read line: " + arTextLine.cause().getMessage());
+              LOG.info("Read to end of file, stopped sending to the event bus");
+              vertx.cancelTimer(timerID);
             }
-          });
+          } else {
+            LOG.error("Failed to read line: " + arTextLine.cause().getMessage());
+          }
         });
+      });
 
-      } catch(IOException e) {
-        LOG.error("Failed to open \""+textFilePath.toAbsolutePath()+"\": " + e.getMessage());
-      }
+    } catch(FileSystemException e) {
+      LOG.error("Failed to open \""+new File(textFile).getAbsolutePath()+"\": " + e.getMessage());
     }
+  }
 
-    LOG.info("ReplayVerticle started, publishing to '" + eventBusAddress + "'");
+  private void startPump() {
+    pumpStarted = System.nanoTime();
+    progressTimer = vertx.setPeriodic(PROGRESS_INTERVAL, tid -> reportProgress());
+    pump();
+  }
+
+  /**
+   * Gets and sends messages until in_flight are waiting to be acknowledged, called again as they are. Getting
+   * them one at a time keeps them in order.
+   */
+  private void pump() {
+    if(pumping) // called from a handler that completed right away, the loop below goes on
+      return;
+    pumping = true;
+    while(!fetching && !ended && resending == 0 && inFlight < maxInFlight) {
+      fetching = true;
+      source.handle(ar -> {
+        if(ar.failed()) {
+          LOG.error("Replay failed to get the next data, trying again in a second: " + ar.cause().getMessage());
+          vertx.setTimer(1000L, tid -> {
+            fetching = false;
+            pump();
+          });
+          return;
+        }
+        fetching = false;
+        if(ar.result() == null) {
+          ended = true;
+          done();
+        } else if(!ar.result().isEmpty()) {
+          inFlight++;
+          sent++;
+          send(ar.result(), 0);
+        }
+        pump();
+      });
+    }
+    pumping = false;
+  }
+
+  /**
+   * Sends the data set until it is acknowledged, again after a timeout or with no consumer, backing off up to
+   * RESEND_MAX_DELAY. No more is fetched while a data set waits to be sent again. A data set the consumer fails
+   * (e.g. the LoggerVerticle could not write it) is given up, sending it again would fail as well.
+   */
+  private void send(String body, int attempt) {
+    vertx.eventBus().send(eventBusAddress, body, deliveryOptions, ar -> {
+      if(ar.failed() && !stopped && !(ar.cause() instanceof ReplyException
+          && ((ReplyException) ar.cause()).failureType() == ReplyFailure.RECIPIENT_FAILURE)) {
+        long delay = Math.min(1000L << Math.min(attempt, 5), RESEND_MAX_DELAY);
+        if(resentSends++ < 10 || LOG.isDebugEnabled())
+          LOG.warn("Replayed data set not acknowledged, sending it again in " + delay + " ms: " + ar.cause().getMessage());
+        resending++;
+        vertx.setTimer(delay, tid -> {
+          resending--;
+          if(!stopped)
+            send(body, attempt + 1);
+        });
+        return;
+      }
+      inFlight--;
+      if(ar.succeeded()) {
+        acknowledged++;
+        ACKNOWLEDGED.increment();
+      } else if(failedSends++ < 10 || LOG.isDebugEnabled()) {
+        LOG.warn("Replayed data set failed by the consumer, not sent again: " + ar.cause().getMessage());
+      }
+      if(ended)
+        done();
+      else
+        pump();
+    });
+  }
+
+  private void done() {
+    if(inFlight > 0 || progressTimer < 0)
+      return;
+    vertx.cancelTimer(progressTimer);
+    progressTimer = -1;
+    double seconds = (System.nanoTime() - pumpStarted) / 1e9;
+    LOG.info("Replay done, " + acknowledged + " data set(s) acknowledged in " + String.format("%.1f", seconds) + " s ("
+      + String.format("%.0f", acknowledged / Math.max(seconds, 0.001)) + "/s)" + (resentSends == 0 ? "" : ", " + resentSends + " sent again") + (failedSends == 0 ? "" : ", " + failedSends + " failed"));
+  }
+
+  private void reportProgress() {
+    LOG.info("Replayed " + (store != null || session != null ? "up to " + timestampFormatter.format(new Date(time)) + ", " : "")
+      + acknowledged + " data set(s) acknowledged, " + (acknowledged - lastProgress) * 1000L / PROGRESS_INTERVAL + "/s the last "
+      + PROGRESS_INTERVAL / 1000L + " s, " + inFlight + " in flight" + (resentSends == 0 ? "" : ", " + resentSends + " sent again") + (failedSends == 0 ? "" : ", " + failedSends + " failed"));
+    lastProgress = acknowledged;
   }
 
   @Override
-  public void stop() {
+  public void stop(Future<Void> stopFuture) {
+    stopped = true;
     vertx.cancelTimer(timerID);
-    if(textFileReader != null) {
-      try {
-        textFileReader.close();
-      } catch (IOException e) {
-      }
-    }
-    if(client != null)
-      client.close();
+    if(progressTimer >= 0)
+      vertx.cancelTimer(progressTimer);
+    if(textFileReader != null)
+      textFileReader.close();
+    if(session != null)
+      session.close();
     LOG.info("ReplayVerticle stopped publishing to '" + eventBusAddress + "'");
+    if(store != null) {
+      vertx.executeBlocking(f -> { // ordered, so after a period still being read
+        try {
+          store.close();
+          f.complete();
+        } catch(IOException e) {
+          f.fail(e);
+        }
+      }, ar -> {
+        if(ar.failed())
+          LOG.error("Closing time series failed: " + ar.cause().getMessage());
+        stopFuture.complete();
+      });
+    } else
+      stopFuture.complete();
   }
 
   /**
    * Gets a set of data as shown above based on the "next 10 seconds"
    */
   void getNextData(Handler<AsyncResult<JsonArray>> handler) {
-    Future<JsonArray> future = Future.<JsonArray>future().setHandler(handler);
+    long started = System.nanoTime();
+    Future<JsonArray> future = Future.<JsonArray>future().setHandler(ar -> {
+      QUERY_TIME.recordSince(started);
+      handler.handle(ar);
+    });
 
     // Note, the interval may be set to less than 10 seconds, but the actual recorded data is still based on
     // 10 seconds implemented in the hardware so we still need to increment the "time" by 10 seconds (and
     // thus effectively speed up the replay by x10 if interval is set to 1 second
+    if(store != null) {
+      getNextStoredData(future);
+      return;
+    }
+    if(prefetchMillis > 0) {
+      getPrefetchedData(time, future);
+      time += 10000L;
+      return;
+    }
     String from = timestampFormatter.format(new Date(time));
     time += 10000L;
     String to = timestampFormatter.format(new Date(time));
+    if(wide) {
+      getNextSample(from, to, future);
+      return;
+    }
 
-    client.getConnection( arConnection -> {
-      if (arConnection.failed()) {
-        LOG.error(arConnection.cause().getMessage());
-        future.fail(arConnection.cause().getMessage());
-      } else {
-        SQLConnection connection = arConnection.result();
-
-        // First query temps and then power - most likely only on set of measurements in the interval,
-        // if not the case some 'random' combination is returned
-        JsonArray periodParams = new JsonArray().add(from).add(to);
-        connection.queryWithParams(SQL_TEMP, periodParams,  arTempsResult -> {
-          if (arTempsResult.succeeded()) {
-
-            JsonArray dataSet = new JsonArray();
-
-            arTempsResult.result().getResults().forEach ( (JsonArray line) -> {
-              try {
-                Sensor sensor = Sensor.valueOf(line.getString(0));
-                dataSet.add(new JsonObject().put("t", sensor.type()).put("g", sensor.group()).put("s", sensor).put("d", line.getFloat(1)));
-              } catch(IllegalArgumentException e) {
-                LOG.error("ReplayVerticle unknown sensor: '" + line.getString(0) + "'", e);
-              }
-            });
-
-            connection.queryWithParams(SQL_POWR, periodParams, arPowrsResult -> {
-              if (arPowrsResult.succeeded()) {
-
-                arPowrsResult.result().getResults().forEach ( (JsonArray line) -> {
-                  try {
-                    Sensor sensor = Sensor.valueOf(line.getString(0));
-                    dataSet.add(new JsonObject().put("t", sensor.type()).put("g", sensor.group()).put("s", sensor).put("d", line.getFloat(1)));
-                    // For a period the database does not contain l2 and l3, we apply the same "hack" as on the controller
-                    // here and ignore l2 and l3 if actually in the db
-                    switch(sensor) {
-                      case l1:
-                        float amps = line.getFloat(1);
-                        if(amps > 14.0) {
-                          dataSet.add(new JsonObject().put("t", sensor.type()).put("g", sensor.group()).put("s", sensor.name()).put("d", amps));
-                          dataSet.add(new JsonObject().put("t", sensor.type()).put("g", sensor.group()).put("s", Sensor.l2.name()).put("d", amps-8.6));
-                          dataSet.add(new JsonObject().put("t", sensor.type()).put("g", sensor.group()).put("s", Sensor.l3.name()).put("d", amps-8.6));
-                        } else {
-                          dataSet.add(new JsonObject().put("t", sensor.type()).put("g", sensor.group()).put("s", sensor.name()).put("d", amps));
-                          dataSet.add(new JsonObject().put("t", sensor.type()).put("g", sensor.group()).put("s", Sensor.l2.name()).put("d", amps));
-                          dataSet.add(new JsonObject().put("t", sensor.type()).put("g", sensor.group()).put("s", Sensor.l3.name()).put("d", amps));
-
-                        }
-                        break;
-                    }
-                  } catch(IllegalArgumentException e) {
-                    LOG.error("ReplayVerticle unknown sensor: '" + line.getString(0) + "'", e);
-                  }
-                });
-
-                connection.close( done -> {
-                  if (done.failed()) {
-                    throw new java.lang.RuntimeException(done.cause());
-                  }
-                });
-
-                // Hmm, doing new JsonArray(dataSet) does not turn it into a JsonArray anyway, must be the groovy stuff kicking in
-                future.complete(dataSet);
-
-              } else {
-                future.fail("Select - " + SQL_POWR + " - " + arPowrsResult.cause().getMessage());
-                LOG.error("Select - " + SQL_POWR + " - " + arPowrsResult.cause().getMessage());
-                arPowrsResult.cause().printStackTrace();
-                connection.close();
-              }
-            }); // query powr
+    long period = time - 10000L;
+    session.<JsonArray>execute(connection -> {
+        Future<JsonArray> queried = Future.future();
+
+        // Most likely one sample in the period, if not the first one is used
+        connection.queryWithParams(SQL_ROWS, new JsonArray().add(from).add(to).add(from).add(to), arRows -> {
+          if (arRows.succeeded()) {
+            Map<Long, JsonArray> dataSets = new HashMap<>();
+            Samples samples = new Samples(dataSets);
+            arRows.result().getResults().forEach(samples::add);
+            samples.flush();
+            queried.complete(dataSets.getOrDefault(period, new JsonArray()));
           } else {
-            future.fail("Select - " + SQL_TEMP + " - " + arTempsResult.cause().getMessage());
-            LOG.error("Select - " + SQL_TEMP + " - " + arTempsResult.cause().getMessage());
-            arTempsResult.cause().printStackTrace();
-            connection.close();
+            queried.fail("Select - " + SQL_ROWS + " - " + arRows.cause().getMessage());
+            LOG.error("Select - " + SQL_ROWS + " - " + arRows.cause().getMessage());
           }
-        }); // query temps
+        });
+        return queried;
+    }).setHandler(future); // on the session's connection
+  }
+
+  /**
+   * Merges the rows (ts, kind, sensor, data) of SQL_ROWS, in order, into a data set per period: the rows of the
+   * first timestamp in the period, i.e. one sample as the controller sent it and not a mix of samples.
+   */
+  private final class Samples {
+    private final Map<Long, JsonArray> dataSets;
+    private final List<JsonArray> temps = new ArrayList<>();
+    private final List<JsonArray> powrs = new ArrayList<>();
+    private long ts = Long.MIN_VALUE; // of the rows collected
+    private boolean first = false; // if they are the first of their period
+
+    Samples(Map<Long, JsonArray> dataSets) {
+      this.dataSets = dataSets;
+    }
+
+    void add(JsonArray row) {
+      long rowTs = row.getInstant(0).toEpochMilli();
+      if(rowTs != ts) {
+        flush();
+        ts = rowTs;
+        first = !dataSets.containsKey(period(ts));
+      }
+      if(first)
+        (row.getInteger(1) == 0 ? temps : powrs).add(row);
+    }
+
+    /** Maps the rows collected, must be called after the last row */
+    void flush() {
+      if(first && !(temps.isEmpty() && powrs.isEmpty()))
+        dataSets.put(period(ts), dataSet(temps, powrs, 2));
+      temps.clear();
+      powrs.clear();
+    }
+  }
+
+  /**
+   * Maps the rows (sensor, data) of the period from pump_temperature and pump_current to a data set
+   */
+  JsonArray dataSet(List<JsonArray> temps, List<JsonArray> powrs) {
+    return dataSet(temps, powrs, 0);
+  }
+
+  /**
+   * Maps the rows of a sample to a data set, the sensor and the value are in the column given and the one after it
+   */
+  private JsonArray dataSet(List<JsonArray> temps, List<JsonArray> powrs, int column) {
+    JsonArray dataSet = new JsonArray();
+
+    temps.forEach ( (JsonArray line) -> {
+      try {
+        Sensor sensor = Sensor.valueOf(line.getString(column));
+        dataSet.add(new JsonObject().put("t", sensor.type()).put("g", sensor.group()).put("s", sensor).put("d", line.getFloat(column + 1)));
+      } catch(IllegalArgumentException e) {
+        LOG.error("ReplayVerticle unknown sensor: '" + line.getString(column) + "'", e);
+      }
+    });
+
+    powrs.forEach ( (JsonArray line) -> {
+      try {
+        Sensor sensor = Sensor.valueOf(line.getString(column));
+        dataSet.add(new JsonObject().put("t", sensor.type()).put("g", sensor.group()).put("s", sensor).put("d", line.getFloat(column + 1)));
+        // For a period the database does not contain l2 and l3, we apply the same "hack" as on the controller
+        // here and ignore l2 and l3 if actually in the db
+        switch(sensor) {
+          case l1:
+            float amps = line.getFloat(column + 1);
+            if(amps > 14.0) {
+              dataSet.add(new JsonObject().put("t", sensor.type()).put("g", sensor.group()).put("s", sensor.name()).put("d", amps));
+              dataSet.add(new JsonObject().put("t", sensor.type()).put("g", sensor.group()).put("s", Sensor.l2.name()).put("d", amps-8.6));
+              dataSet.add(new JsonObject().put("t", sensor.type()).put("g", sensor.group()).put("s", Sensor.l3.name()).put("d", amps-8.6));
+            } else {
+              dataSet.add(new JsonObject().put("t", sensor.type()).put("g", sensor.group()).put("s", sensor.name()).put("d", amps));
+              dataSet.add(new JsonObject().put("t", sensor.type()).put("g", sensor.group()).put("s", Sensor.l2.name()).put("d", amps));
+              dataSet.add(new JsonObject().put("t", sensor.type()).put("g", sensor.group()).put("s", Sensor.l3.name()).put("d", amps));
+
+            }
+            break;
+        }
+      } catch(IllegalArgumentException e) {
+        LOG.error("ReplayVerticle unknown sensor: '" + line.getString(column) + "'", e);
+      }
+    });
+
+    // Hmm, doing new JsonArray(dataSet) does not turn it into a JsonArray anyway, must be the groovy stuff kicking in
+    return dataSet;
+  }
+
+  /**
+   * Gets the sample of the period from the wide schema, one row
+   */
+  private void getNextSample(String from, String to, Future<JsonArray> future) {
+    session.<JsonArray>execute(connection -> {
+      Future<JsonArray> queried = Future.future();
+      connection.queryWithParams(SQL_SAMPLES, new JsonArray().add(from).add(to), arSample -> {
+        if (arSample.failed()) {
+          LOG.error("Select - " + SQL_SAMPLES + " - " + arSample.cause().getMessage());
+          queried.fail("Select - " + SQL_SAMPLES + " - " + arSample.cause().getMessage());
+          return;
+        }
+        List<JsonArray> rows = arSample.result().getResults();
+        queried.complete(rows.isEmpty() ? new JsonArray() : sampleDataSet(rows.get(0))); // most likely one, if not the first
+      });
+      return queried;
+    }).setHandler(future); // on the session's connection
+  }
+
+  /**
+   * Maps a row (ts, values...) of pump_sample to a data set
+   */
+  private JsonArray sampleDataSet(JsonArray row) {
+    JsonArray dataSet = new JsonArray();
+    for(int i = 0; i < SampleTable.SENSORS.length; i++) {
+      Sensor sensor = SampleTable.SENSORS[i];
+      Double value = row.getDouble(i + 1);
+      // Same hack as for the narrow schema, where the data does not have l2 and l3
+      if(value == null && (sensor == Sensor.l2 || sensor == Sensor.l3)) {
+        Double amps = row.getDouble(SampleTable.column(Sensor.l1.name()) + 1);
+        if(amps != null)
+          value = amps > 14.0 ? amps - 8.6 : amps;
+      }
+      if(value != null)
+        dataSet.add(new JsonObject().put("t", sensor.type()).put("g", sensor.group()).put("s", sensor.name()).put("d", value));
+    }
+    return dataSet;
+  }
+
+  /**
+   * The data sets of a chunk of the recorded data, by the start of their period. Replayed periods are removed.
+   */
+  private static final class Chunk {
+    final long from;
+    final Map<Long, JsonArray> dataSets = new HashMap<>();
+    final List<Runnable> waiting = new ArrayList<>(); // periods asked for before it was loaded
+    boolean loaded = false;
+    Throwable failure = null;
+
+    Chunk(long from) {
+      this.from = from;
+    }
+  }
+
+  /**
+   * Gets the data set of the period from the chunk it is in, and starts prefetching the chunk after it if that is
+   * not already under way. Only if the chunk is still loading (i.e. at the start) does this wait for the database.
+   */
+  private void getPrefetchedData(long period, Future<JsonArray> future) {
+    long chunkFrom = period - Math.floorMod(period - startMillis, prefetchMillis);
+    chunks.removeIf(c -> c.from < chunkFrom || c.failure != null); // replayed, or to be loaded again
+    if(chunks.isEmpty() || chunks.peekFirst().from != chunkFrom)
+      chunks.addFirst(loadChunk(chunkFrom));
+    Chunk chunk = chunks.peekFirst();
+    if(chunks.size() == 1)
+      chunks.addLast(loadChunk(chunkFrom + prefetchMillis));
+
+    Runnable deliver = () -> {
+      JsonArray dataSet = chunk.dataSets.remove(period);
+      if(chunk.failure != null)
+        future.fail(chunk.failure);
+      else
+        future.complete(dataSet != null ? dataSet : new JsonArray());
+    };
+    if(chunk.loaded)
+      deliver.run();
+    else
+      chunk.waiting.add(deliver);
+  }
+
+  /**
+   * Streams the rows of the chunk with a cursor on the session's connection, a period at a time is mapped to a
+   * data set as it would have been by querying the period.
+   */
+  private Chunk loadChunk(long chunkFrom) {
+    Chunk chunk = new Chunk(chunkFrom);
+    JsonArray params = new JsonArray()
+      .add(timestampFormatter.format(new Date(chunkFrom)))
+      .add(timestampFormatter.format(new Date(chunkFrom + prefetchMillis)));
+    session.<Void>execute(connection -> {
+      if(wide)
+        return streamRows(connection, SQL_SAMPLES, params,
+          row -> chunk.dataSets.putIfAbsent(period(row.getInstant(0).toEpochMilli()), sampleDataSet(row))); // the first
+      Samples samples = new Samples(chunk.dataSets);
+      return streamRows(connection, SQL_ROWS, params.copy().addAll(params), samples::add).map(v -> {
+        samples.flush();
+        return null;
+      });
+    }).setHandler(ar -> {
+      if(ar.failed())
+        chunk.failure = ar.cause();
+      chunk.loaded = true;
+      chunk.waiting.forEach(Runnable::run);
+      chunk.waiting.clear();
+    });
+    return chunk;
+  }
+
+  /** @return the start of the (10 second) period of the timestamp */
+  private long period(long ts) {
+    return ts - Math.floorMod(ts - startMillis, 10000L);
+  }
+
+  /**
+   * Streams the rows of the query to the handler, fetched in batches rather than the whole result at once
+   */
+  private Future<Void> streamRows(SQLConnection connection, String sql, JsonArray params, Handler<JsonArray> handler) {
+    Future<Void> streamed = Future.future();
+    connection.queryStreamWithParams(sql, params, arStream -> {
+      if(arStream.failed()) {
+        LOG.error("Select - " + sql + " - " + arStream.cause().getMessage());
+        streamed.fail("Select - " + sql + " - " + arStream.cause().getMessage());
+        return;
+      }
+      arStream.result()
+        .exceptionHandler(e -> {
+          LOG.error("Select - " + sql + " - " + e.getMessage());
+          streamed.tryFail("Select - " + sql + " - " + e.getMessage());
+        })
+        .endHandler(v -> streamed.tryComplete())
+        .handler(handler);
+    });
+    return streamed;
+  }
+
+  /**
+   * Gets the next 10 seconds of data from the time series of each sensor
+   */
+  private void getNextStoredData(Future<JsonArray> future) {
+    long from = time;
+    time += 10000L;
+    long to = time;
+
+    vertx.executeBlocking((Future<JsonArray> queried) -> {
+      JsonArray dataSet = new JsonArray();
+      try {
+        for(Sensor sensor : Sensor.values())
+          store.read(sensor.name(), from, to, (ts, value) ->
+            dataSet.add(new JsonObject().put("t", sensor.type()).put("g", sensor.group()).put("s", sensor.name()).put("d", value)));
+        queried.complete(dataSet);
+      } catch(IOException e) {
+        queried.fail(e);
       }
-    }); // get connection
+    }, true, future); // ordered, so the store is used by one period at a time
   }
 }
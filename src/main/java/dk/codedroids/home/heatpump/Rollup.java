@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2017 CodeDroids ApS (http://www.codedroids.dk)
+ *
+ * This file is part of the HeatPump Vert.x example
+ *
+ * The HeatPump Vert.x example is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * The HeatPump Vert.x example is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the HeatPump Vert.x example. If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.codedroids.home.heatpump;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Accumulates min/max/sum/count of the values of each sensor per minute, hour and day, so long periods can be
+ * queried from the rollup tables rather than from the raw values.
+ *
+ * <p>A bucket is closed once a value for a later bucket arrives, and is then handed out by {@link #closed()} to be
+ * written. A value for an earlier bucket (e.g. arriving late) gets a bucket of its own, so the rollups must be
+ * written by merging with what is already there, which also covers the buckets written when stopping and continued
+ * after a restart. The buckets follow the local time of the zone given, like the timestamps of the raw values.</p>
+ *
+ * <p>Not thread-safe.</p>
+ *
+ * @author Claus Priisholm.
+ */
+public class Rollup {
+
+  public enum Resolution {
+    minute("pump_rollup_1m", ChronoUnit.MINUTES),
+    hour("pump_rollup_1h", ChronoUnit.HOURS),
+    day("pump_rollup_1d", ChronoUnit.DAYS);
+
+    private final String table;
+    private final ChronoUnit unit;
+
+    Resolution(String table, ChronoUnit unit) {
+      this.table = table;
+      this.unit = unit;
+    }
+
+    /** @return the rollup table of the resolution */
+    public String table() { return table; }
+  }
+
+  /** The aggregate of the values of a sensor in a period */
+  public static class Bucket {
+    public final Resolution resolution;
+    public final String sensor;
+    public final long start; // milliseconds since the epoch
+    final long end;
+    public double min = Double.POSITIVE_INFINITY;
+    public double max = Double.NEGATIVE_INFINITY;
+    public double sum = 0;
+    public int count = 0;
+
+    Bucket(Resolution resolution, String sensor, long start, long end) {
+      this.resolution = resolution;
+      this.sensor = sensor;
+      this.start = start;
+      this.end = end;
+    }
+
+    void add(double value) {
+      min = Math.min(min, value);
+      max = Math.max(max, value);
+      sum += value;
+      count++;
+    }
+
+    @Override
+    public String toString() {
+      return resolution + " " + sensor + " @" + start + ": min " + min + ", max " + max + ", sum " + sum + ", count " + count;
+    }
+  }
+
+  private static final Resolution[] RESOLUTIONS = Resolution.values();
+
+  private final ZoneId zone;
+  private final Map<String, Bucket[]> open = new HashMap<>(); // by sensor, one per resolution
+  private List<Bucket> closed = new ArrayList<>();
+
+  public Rollup(ZoneId zone) {
+    this.zone = zone;
+  }
+
+  /**
+   * Adds the value to the open buckets of the sensor, closing those it is past.
+   *
+   * @param timestamp milliseconds since the epoch
+   */
+  public void add(String sensor, long timestamp, double value) {
+    if(Double.isNaN(value))
+      return;
+    Bucket[] buckets = open.computeIfAbsent(sensor, s -> new Bucket[RESOLUTIONS.length]);
+    for(int i = 0; i < RESOLUTIONS.length; i++) {
+      Bucket bucket = buckets[i];
+      if(bucket == null || timestamp >= bucket.end) {
+        if(bucket != null)
+          closed.add(bucket);
+        bucket = buckets[i] = bucket(RESOLUTIONS[i], sensor, timestamp);
+      } else if(timestamp < bucket.start) { // late, merged with the bucket already written
+        Bucket late = bucket(RESOLUTIONS[i], sensor, timestamp);
+        late.add(value);
+        closed.add(late);
+        continue;
+      }
+      bucket.add(value);
+    }
+  }
+
+  private Bucket bucket(Resolution resolution, String sensor, long timestamp) {
+    ZonedDateTime start = ZonedDateTime.ofInstant(Instant.ofEpochMilli(timestamp), zone).truncatedTo(resolution.unit);
+    return new Bucket(resolution, sensor, start.toInstant().toEpochMilli(), start.plus(1, resolution.unit).toInstant().toEpochMilli());
+  }
+
+  /** @return the buckets closed since last time */
+  public List<Bucket> closed() {
+    List<Bucket> result = closed;
+    closed = new ArrayList<>();
+    return result;
+  }
+
+  /** @return the buckets closed since last time and the open buckets, which are closed as well */
+  public List<Bucket> closeAll() {
+    for(Bucket[] buckets : open.values())
+      for(Bucket bucket : buckets)
+        if(bucket != null)
+          closed.add(bucket);
+    open.clear();
+    return closed();
+  }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2017 CodeDroids ApS (http://www.codedroids.dk)
+ *
+ * This file is part of the HeatPump Vert.x example
+ *
+ * The HeatPump Vert.x example is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * The HeatPump Vert.x example is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the HeatPump Vert.x example. If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.codedroids.home.heatpump;
+
+import io.vertx.core.json.JsonArray;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * The wide schema: the table pump_sample with one row per timestamp and a column per {@link Sensor}, named as the
+ * sensor, null if the sample has no value for it (see create-tables.sql). Compared to the rows per value in
+ * pump_temperature and pump_current it is one row and one index entry per sample.
+ *
+ * <p>Used with <b>"schema" : "wide"</b> by the LoggerVerticle and the ReplayVerticle, and filled from the other
+ * tables by the MigrationVerticle.</p>
+ *
+ * @author Claus Priisholm.
+ */
+final class SampleTable {
+
+  static final Sensor[] SENSORS = Sensor.values();
+
+  static final String COLUMNS = Arrays.stream(SENSORS).map(Sensor::name).collect(Collectors.joining(", "));
+
+  static final String SQL_INSERT = "insert into pump_sample (ts, " + COLUMNS + ") values (?"
+    + String.join("", Collections.nCopies(SENSORS.length, ", ?")) + ")";
+
+  /** The columns as in the create statement, for {@link SqlDialect} */
+  private static final String[] DEFINITIONS = Stream.concat(Stream.of("ts timestamp"),
+    Arrays.stream(SENSORS).map(s -> s.name() + " float")).toArray(String[]::new);
+
+  static final String SQL_SELECT = "select ts, " + COLUMNS + " from pump_sample where ts >= ? and ts < ?";
+
+  private SampleTable() {
+  }
+
+  /** @return the insert of a sample, ignored if there is one with the same timestamp unless the dialect is plain */
+  static String insert(SqlDialect dialect) {
+    return dialect.insertIgnore("pump_sample", 1, DEFINITIONS);
+  }
+
+  /** @return index of the column of the sensor among the sensor columns, or -1 if there is no such sensor */
+  static int column(String sensor) {
+    for(int i = 0; i < SENSORS.length; i++)
+      if(SENSORS[i].name().equals(sensor))
+        return i;
+    return -1;
+  }
+
+  /** @return the insert parameters for the values, one per sensor in column order, NaN meaning no value */
+  static JsonArray row(Object ts, double[] values) {
+    JsonArray row = new JsonArray().add(ts);
+    for(double value : values) {
+      if(Double.isNaN(value))
+        row.addNull();
+      else
+        row.add(value);
+    }
+    return row;
+  }
+}
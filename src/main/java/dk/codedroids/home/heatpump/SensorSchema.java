@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2017 CodeDroids ApS (http://www.codedroids.dk)
+ *
+ * This file is part of the HeatPump Vert.x example
+ *
+ * The HeatPump Vert.x example is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * The HeatPump Vert.x example is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the HeatPump Vert.x example. If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.codedroids.home.heatpump;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * The column layout of the data sent by a controller: for each column (in the order sent) the sensor name,
+ * type, group and a scale the value is multiplied with.
+ *
+ * <p>A schema is immutable and everything needed per value (JSON keys, scale, index) is worked out up front,
+ * so decoding and encoding a reading is just array indexing. The {@link #DEFAULT} schema is the {@link Sensor}
+ * enum, other layouts are given in the configuration as a list like this:</p>
+ *
+ * <pre>{@code [
+ *   { "name":"pump", "type":"temp", "group":"fyr" },
+ *   { "name":"feed", "type":"temp", "group":"fyr", "scale":1.0 },
+ *   ...
+ * ]}</pre>
+ *
+ * <p>An entry may also give its 1-based "order", if so all entries must and the list is sorted by it.</p>
+ *
+ * @author Claus Priisholm.
+ */
+public final class SensorSchema {
+
+  /** One column of the data */
+  public static final class Column {
+    public final int index; // zero based
+    public final String name;
+    public final String type;
+    public final String group;
+    public final double scale;
+    final String jsonPrefix; // the constant part of the JSON element, i.e. everything up to the value
+
+    Column(int index, String name, String type, String group, double scale) {
+      this.index = index;
+      this.name = name.intern();
+      this.type = type.intern();
+      this.group = group.intern();
+      this.scale = scale;
+      this.jsonPrefix = "{\"t\":\"" + type + "\",\"g\":\"" + group + "\",\"s\":\"" + name + "\",\"d\":";
+    }
+
+    boolean sameAs(Column other) {
+      return index == other.index && name.equals(other.name) && type.equals(other.type) && group.equals(other.group)
+        && Double.compare(scale, other.scale) == 0;
+    }
+  }
+
+  public static final SensorSchema DEFAULT = fromSensors();
+
+  // Names, types and groups end up in JSON and SQL without escaping
+  private static final Pattern KEY_PATTERN = Pattern.compile("[A-Za-z0-9_]{1,64}");
+  // The name is the sensor column of the tables, which is varchar(4)
+  private static final Pattern NAME_PATTERN = Pattern.compile("[A-Za-z0-9_]{1,4}");
+
+  private final Column[] columns;
+  private final Map<String, Integer> indexByName;
+  private final double[] scales; // null if no column is scaled
+  private final byte[] descriptor;
+
+  private SensorSchema(Column[] columns) {
+    this.columns = columns;
+    Map<String, Integer> index = new HashMap<>();
+    boolean scaled = false;
+    double[] scales = new double[columns.length];
+    for(Column column : columns) {
+      if(index.put(column.name, column.index) != null)
+        throw new IllegalArgumentException("Invalid sensor schema, duplicate sensor name '" + column.name + "'");
+      scales[column.index] = column.scale;
+      scaled |= column.scale != 1.0;
+    }
+    this.indexByName = Collections.unmodifiableMap(index);
+    this.scales = scaled ? scales : null;
+    this.descriptor = buildDescriptor(columns);
+  }
+
+  private static SensorSchema fromSensors() {
+    Column[] columns = new Column[Sensor.values().length];
+    for(Sensor s : Sensor.values())
+      columns[s.order()-1] = new Column(s.order()-1, s.name(), s.type(), s.group(), 1.0);
+    return new SensorSchema(columns);
+  }
+
+  /**
+   * @param sensors List of column definitions as described in the class description
+   * @return the schema
+   * @throws IllegalArgumentException if the definition is invalid
+   */
+  public static SensorSchema fromConfig(JsonArray sensors) {
+    if(sensors == null || sensors.isEmpty())
+      throw new IllegalArgumentException("Invalid sensor schema, no sensors given");
+    if(sensors.size() > 255)
+      throw new IllegalArgumentException("Invalid sensor schema, max. 255 sensors supported");
+    Column[] columns = new Column[sensors.size()];
+    boolean ordered = sensors.getJsonObject(0).containsKey("order");
+    for(int i = 0; i < sensors.size(); i++) {
+      JsonObject sensor = sensors.getJsonObject(i);
+      int index = i;
+      if(ordered) {
+        Integer order = sensor.getInteger("order");
+        if(order == null || order < 1 || order > columns.length || columns[order - 1] != null)
+          throw new IllegalArgumentException("Invalid sensor schema, 'order' must be given for all sensors and be 1 to " + columns.length + " without gaps: " + sensor.encode());
+        index = order - 1;
+      }
+      columns[index] = new Column(index, key(sensor, "name", NAME_PATTERN), key(sensor, "type"), key(sensor, "group"), sensor.getDouble("scale", 1.0));
+    }
+    return new SensorSchema(columns);
+  }
+
+  private static String key(JsonObject sensor, String field) {
+    return key(sensor, field, KEY_PATTERN);
+  }
+
+  private static String key(JsonObject sensor, String field, Pattern pattern) {
+    String value = sensor.getString(field);
+    if(value == null || !pattern.matcher(value).matches())
+      throw new IllegalArgumentException("Invalid sensor schema, '" + field + "' missing or not letters, digits or '_'"
+        + (pattern == NAME_PATTERN ? " (at most 4)" : "") + ": " + sensor.encode());
+    return value;
+  }
+
+  /** @return the schema in the configuration format */
+  public JsonArray toConfig() {
+    JsonArray sensors = new JsonArray();
+    for(Column column : columns)
+      sensors.add(new JsonObject()
+        .put("name", column.name)
+        .put("type", column.type)
+        .put("group", column.group)
+        .put("scale", column.scale));
+    return sensors;
+  }
+
+  /** @return number of columns */
+  public int size() { return columns.length; }
+
+  /** @return the column at the zero based index */
+  public Column column(int index) { return columns[index]; }
+
+  /** @return zero based index of the named sensor, or -1 if not in this schema */
+  public int indexOf(String name) {
+    Integer index = indexByName.get(name);
+    return index == null ? -1 : index;
+  }
+
+  /** @return scale per column, or null if no column is scaled */
+  double[] scales() { return scales; }
+
+  // Binary form of the column definitions, sent along with readings that do not use the default schema:
+  // number of columns, then for each column the name, type and group as (length byte, ASCII bytes)
+  byte[] descriptor() { return descriptor; }
+
+  private static byte[] buildDescriptor(Column[] columns) {
+    StringBuilder sb = new StringBuilder();
+    sb.append((char) columns.length);
+    for(Column column : columns)
+      for(String key : new String[] { column.name, column.type, column.group })
+        sb.append((char) key.length()).append(key);
+    return sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+  }
+
+  /** Parses the binary form of the column definitions (scale is not included, the values are already scaled) */
+  static SensorSchema fromDescriptor(byte[] descriptor) {
+    int pos = 0;
+    Column[] columns = new Column[descriptor[pos++] & 0xff];
+    for(int i = 0; i < columns.length; i++) {
+      String[] keys = new String[3];
+      for(int k = 0; k < keys.length; k++) {
+        int length = descriptor[pos++] & 0xff;
+        keys[k] = new String(descriptor, pos, length, StandardCharsets.ISO_8859_1);
+        pos += length;
+      }
+      columns[i] = new Column(i, keys[0], keys[1], keys[2], 1.0);
+    }
+    return new SensorSchema(columns);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if(this == o)
+      return true;
+    if(!(o instanceof SensorSchema) || ((SensorSchema) o).columns.length != columns.length)
+      return false;
+    Column[] other = ((SensorSchema) o).columns;
+    for(int i = 0; i < columns.length; i++)
+      if(!columns[i].sameAs(other[i]))
+        return false;
+    return true;
+  }
+
+  @Override
+  public int hashCode() {
+    return Arrays.hashCode(descriptor);
+  }
+
+  @Override
+  public String toString() {
+    return toConfig().encode();
+  }
+}
@@ -18,18 +18,45 @@
  */
 package dk.codedroids.home.heatpump;
 
+import io.vertx.core.buffer.Buffer;
+
 import java.util.function.Consumer;
 
 /**
  * The wrapper needs a handler which get invoked with the input string from the serial port when data available.
+ * Implementations that read raw bytes can hand over the lines as buffers instead, see {@link #setBufferHandler},
+ * and with the time each line arrived, see {@link #setLineHandler}.
  *
  * @author Claus Priisholm.
  */
 public interface SerialInput {
 
+  /** Gets the raw bytes of a line and the time it arrived, see {@link IngestClock} */
+  @FunctionalInterface
+  interface LineHandler {
+    void handle(Buffer line, long timestamp);
+  }
+
   /** Sets the handler that gets invoked when serial data is ready, gets invoked with the input string */
   void setHandler(Consumer<String> handler);
 
+  /**
+   * Sets the handler that gets invoked when serial data is ready, gets invoked with the raw bytes of the line
+   * (a line terminator may or may not be included). Per default the input strings are converted to buffers.
+   */
+  default void setBufferHandler(Consumer<Buffer> handler) {
+    setHandler(line -> handler.accept(line == null ? null : Buffer.buffer(line)));
+  }
+
+  /**
+   * Sets the handler that gets invoked with the raw bytes of the line and the time the line arrived.
+   * Per default the time is taken when the buffer handler is invoked, implementations that hand lines over
+   * to another thread should take it before that.
+   */
+  default void setLineHandler(LineHandler handler) {
+    setBufferHandler(line -> handler.handle(line, IngestClock.now()));
+  }
+
   /** Implementors may need to release resources when finished, so call this to make sure it is done*/
   void close();
 }
@@ -19,18 +19,33 @@
 package dk.codedroids.home.heatpump;
 
 import io.vertx.core.AbstractVerticle;
+import io.vertx.core.CompositeFuture;
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Future;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.eventbus.DeliveryOptions;
 import io.vertx.core.eventbus.EventBus;
+import io.vertx.core.eventbus.Message;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import io.vertx.core.logging.Logger;
 import io.vertx.core.logging.LoggerFactory;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
 /**
- * Reads the input from the serial port, assuming a CSV formatted line like this:
+ * Reads the input from the serial port, assuming a CSV formatted line like this (the default layout, see
+ * <b>sensors</b> below):
  *
  * <p>{@code PumpTemp,FeedTemp,ReturnTemp,BoardTemp,TankTemp,PumpL1Current,PumpL2Current,PumpL3Current,CRC}</p>
  *
- * <p>and converts the data into JSON array like this:</p>
+ * <p>and converts the data into a {@link Reading} which is published with the {@link ReadingCodec}.
+ * The JSON form of a reading is an array like this:</p>
  *
  * <pre>{@code [
  *   { "t":"temp", "g":"fyr", "s":"pump", "d":13.5" },
@@ -43,15 +58,64 @@ import io.vertx.core.logging.LoggerFactory;
  *   { "t":"powr", "g":"pump", "s":"l3", "d":2.3" }
  * ]}</pre>
  *
- * and publishes it on the event bus.
+ * and publishes it on the event bus. When reading from more than one device each element is tagged with the
+ * source id of the device, e.g. {@code "src":"pump1"}.
+ *
+ * <p>Instead of CSV lines the controller may send binary frames (see <b>format</b> below, and
+ * ControllerBinaryExample.ino). Each frame is COBS encoded (see {@link Cobs}) and terminated by a zero byte,
+ * decoded it is:</p>
+ *
+ * <pre>{@code
+ * byte     number of values (n)
+ * int16*n  values in tenths (big endian), e.g. 135 is 13.5 - the schema scale is applied on top of that
+ * byte     CRC of the preceding bytes (same CRC as for the CSV lines)
+ * }</pre>
+ *
+ * <p>That is 2 + 2n bytes plus the COBS overhead and delimiter, i.e. 20 bytes for the default sensors
+ * against about 40 bytes of CSV - and no text to parse.</p>
  *
  * <p>Configuration:</p>
  *
  * <ul>
  * <li><b>event_bus : "home.heatpump.data"</b> -- Eventbus address</li>
  * <li><b>serial_port : "/dev/ttyACM0"</b> -- Serial port to listen on</li>
+ * <li><b>source : "pump1"</b> -- Optional source id that readings from serial_port get tagged with</li>
+ * <li><b>serial_ports : [ "/dev/ttyACM0", { "serial_port" : "/dev/ttyACM1", "source" : "pump2" }, ... ]</b> --
+ *        Listen on a number of devices instead of the single serial_port. Each entry is either the device path or
+ *        an object with the device path and optionally the source id and any of the driver settings below.
+ *        The source id defaults to the name of the device, e.g. "ttyACM0"</li>
+ * <li><b>sensors : [ { "name":"pump", "type":"temp", "group":"fyr", "scale":1.0 }, ... ]</b> -- The columns sent
+ *        by the controller, see SensorSchema. Defaults to the sensors in the Sensor enum. May also be given per
+ *        serial_ports entry. The schema can be replaced while running by sending
+ *        {@code { "sensors":[...], "source":"pump1" }} to the event_bus address with ".schema" appended (without
+ *        source all devices are changed). The reply is "ok", or a failure if the schema is not valid or no device has
+ *        the source</li>
+ * <li><b>deadband : 0.2 | { "pump":0.2, "l1":0.1, ... }</b> -- If given, only values that moved more than this
+ *        since they were last published are published (the others are absent from the reading), and nothing is
+ *        published if no value moved. Either one deadband for all sensors or per sensor name, sensors not listed
+ *        get zero, i.e. they are published whenever they change. May also be given per serial_ports entry.
+ *        Default is to publish every value every time</li>
+ * <li><b>heartbeat : 300</b> -- With deadband, all values are published at least this often (seconds)</li>
+ * <li><b>event_loops : 1</b> -- With serial_ports, the devices are spread over this number of verticle instances
+ *        (each running on its own event loop)</li>
+ * <li><b>driver : "rxtx" | "channel" | "load"</b> -- "rxtx" (default) uses the RXTX library, "channel" reads the
+ *        device directly without native code, see ChannelSerialInput, "load" is a virtual device emitting lines for
+ *        load testing, see LoadSerialInput (the device path just names it)</li>
+ * <li><b>rate : 0.1</b> -- With the "load" driver, lines per second</li>
+ * <li><b>lines_file : "src/test/resources/two-hours-of-serial-data.csv"</b> -- With the "load" driver, recorded
+ *        lines to emit over and over, default is synthetic lines</li>
+ * <li><b>format : "csv" | "binary"</b> -- "csv" (default) for CSV lines, "binary" for the binary frames described
+ *        above. Binary frames require the "channel" driver</li>
+ * <li><b>data_rate : 9600</b> -- Serial port baud rate, defaults to 9600. With the "channel" driver zero means
+ *                                the port settings are left as they are</li>
+ * <li><b>queue_size : 64</b> -- The RXTX driver reads on its own thread and hands lines over to the verticle through
+ *        a queue of this size</li>
+ * <li><b>overflow : "drop_oldest" | "conflate" | "block"</b> -- What happens when the queue is full: drop the oldest
+ *        line (default), drop all but the latest line, or block the reader until there is room. Drops are logged
+ *        as warnings</li>
  * <li><b>echo : true | false</b> -- if true data (without CRC column) is echoed to the bus
- *                                    (using the event_bus address with ".echo" appended)
+ *                                    (using the event_bus address with ".echo" appended, and a "source"
+ *                                    header when the device has a source id)
  * <li><b>verbose : true | false</b> -- If true serial data is printed to stdout, default to false
  * </ul>
  *
@@ -61,9 +125,61 @@ public class SerialVerticle extends AbstractVerticle {
 
   private static final Logger LOG = LoggerFactory.getLogger(SerialVerticle.class);
 
+  private static final Metrics.Counter LINES = Metrics.counter("heatpump_serial_lines_total", "Lines and frames received from the serial devices");
+  private static final Metrics.Counter CRC_FAILURES = Metrics.counter("heatpump_serial_crc_failures_total", "Lines and frames failing the CRC check");
+  private static final Metrics.Counter DECODE_ERRORS = Metrics.counter("heatpump_serial_decode_errors_total", "Lines and frames with a CRC but not the values of the schema");
+  private static final Metrics.Histogram HANDLE_TIME = Metrics.histogram("heatpump_serial_handle_seconds", "Time to verify, decode and publish a line or frame");
+
   private String eventBusAddress;
   private String echoEventBusAddress;
+  private boolean echo;
+  private boolean verbose;
   private SerialInput serialWrapper;
+  private int queueSize;
+  private HandOffQueue.Overflow overflow;
+  private long heartbeatNanos;
+  private final List<Device> devices = new ArrayList<>();
+  private final List<String> instanceSchemaAddresses = new ArrayList<>(); // of this instance and those it deployed
+
+  /**
+   * Per device state. The lines from a device are handled one at a time on this verticle's context,
+   * so the buffers are reused for every line.
+   */
+  private static class Device {
+    final String source;
+    final SerialInput input;
+    final boolean binary; // binary frames rather than CSV lines
+    Reading reading; // replaced when the schema is swapped
+    final Object deadband; // the deadband config, null if every reading is published in full
+    double[] deadbands; // per column, null if every reading is published in full
+    double[] published; // last published value per column, NaN if not yet published
+    long nextHeartbeat; // System.nanoTime() when all values are published again
+    final ByteSpan data = new ByteSpan();
+    final DeliveryOptions echoOptions;
+    byte[] lineBytes = new byte[64]; // grows to fit the longest line seen
+    long reportedDrops = 0;
+
+    Device(String source, SerialInput input, boolean binary, Object deadband, SensorSchema schema) {
+      this.source = source;
+      this.input = input;
+      this.binary = binary;
+      this.deadband = deadband;
+      setSchema(schema);
+      echoOptions = new DeliveryOptions();
+      if(source != null)
+        echoOptions.addHeader("source", source);
+    }
+
+    void setSchema(SensorSchema schema) {
+      reading = new Reading(schema);
+      reading.setSource(source);
+      if(deadband != null) {
+        deadbands = deadbands(deadband, schema);
+        published = new double[schema.size()];
+        Arrays.fill(published, Double.NaN);
+      }
+    }
+  }
 
   public SerialVerticle() {
     super();
@@ -83,45 +199,321 @@ public class SerialVerticle extends AbstractVerticle {
 
     eventBusAddress = config().getString("event_bus", "home.heatpump.data");
     echoEventBusAddress = eventBusAddress + ".echo";
-    String devicePath = config().getString("serial_port","/dev/ttyACM0");
-    boolean echo = config().getBoolean("echo",false);
-    boolean verbose = config().getBoolean("verbose",false);
-
-    final EventBus eventBus = vertx.eventBus();
-
-    // Typically this is not provided (unless under test)
-    if(serialWrapper==null)
-      serialWrapper = new SerialWrapper.Builder(devicePath).build();
-
-    serialWrapper.setHandler(inputLine -> {
-      if (verbose)
-        System.out.println(inputLine);
-      if(inputLine != null) {
-        String data = verifiedInput(inputLine);
-        if (data != null) {
-          if (eventBus != null) {
-            JsonArray json = jsonFromCsv(data);
-            if (json != null)
-              eventBus.publish(eventBusAddress, json.encode());
-            if (echo)
-              eventBus.publish(echoEventBusAddress, data); // use the stripped
-          }
-        }
+    echo = config().getBoolean("echo",false);
+    verbose = config().getBoolean("verbose",false);
+
+    queueSize = config().getInteger("queue_size", 64);
+    try {
+      overflow = HandOffQueue.Overflow.valueOf(config().getString("overflow", "drop_oldest"));
+    } catch(IllegalArgumentException e) {
+      throw new IllegalArgumentException("Invalid configuration, overflow must be one of block, drop_oldest or conflate for SerialVerticle");
+    }
+
+    heartbeatNanos = TimeUnit.SECONDS.toNanos(config().getInteger("heartbeat", 300));
+
+    ReadingCodec.register(vertx);
+
+    JsonArray serialPorts = config().getJsonArray("serial_ports");
+    if(serialPorts == null) {
+      // Typically the wrapper is not provided (unless under test), an injected one may call from any thread
+      if(serialWrapper == null)
+        serialWrapper = openInput(config().getString("serial_port","/dev/ttyACM0"), config());
+      else
+        serialWrapper = new QueuedSerialInput(serialWrapper, context, queueSize, overflow);
+      addDevice(config().getString("source"), serialWrapper, binaryFormat(config()), config().getValue("deadband"), schemaFrom(config()));
+    } else {
+      List<JsonObject> ports = new ArrayList<>();
+      for(Object port : serialPorts)
+        ports.add(port instanceof JsonObject ? (JsonObject) port : new JsonObject().put("serial_port", port.toString()));
+
+      // Spread the ports over a number of verticle instances, each instance runs on its own event loop.
+      // This instance keeps the first share and deploys the others.
+      int eventLoops = Math.max(1, Math.min(config().getInteger("event_loops", 1), ports.size()));
+      for(int share = 1; share < eventLoops; share++) {
+        JsonArray sharePorts = new JsonArray();
+        for(int i = share; i < ports.size(); i += eventLoops)
+          sharePorts.add(ports.get(i));
+        // "share" tells the instance it is not the first
+        JsonObject shareConfig = config().copy().put("serial_ports", sharePorts).put("event_loops", 1).put("share", share);
+        vertx.deployVerticle(SerialVerticle.class.getName(), new DeploymentOptions().setConfig(shareConfig), ar -> {
+          if(ar.failed())
+            LOG.error("Failed to deploy serial verticle for " + sharePorts.encode(), ar.cause());
+          else
+            instanceSchemaAddresses.add(eventBusAddress + ".schema." + ar.result());
+        });
       }
-    });
+      for(int i = 0; i < ports.size(); i += eventLoops) {
+        JsonObject port = ports.get(i);
+        String devicePath = port.getString("serial_port");
+        if(devicePath == null)
+          throw new IllegalArgumentException("Invalid configuration, 'serial_port' missing in 'serial_ports' entry " + port.encode());
+        // Defaults to the device name, e.g. "ttyACM0"
+        String source = port.getString("source", devicePath.substring(devicePath.lastIndexOf('/') + 1));
+        JsonObject portConfig = config().copy().mergeIn(port);
+        addDevice(source, openInput(devicePath, portConfig), binaryFormat(portConfig), portConfig.getValue("deadband"), schemaFrom(portConfig));
+      }
+    }
 
-    LOG.info("Heater serial verticle started, publish on " + eventBusAddress);
+    vertx.setPeriodic(DROP_REPORT_INTERVAL, tid -> reportDrops());
+    // Each instance changes its own devices, the first instance takes the requests and passes them on to all of them
+    String instanceSchemaAddress = eventBusAddress + ".schema." + deploymentID();
+    instanceSchemaAddresses.add(0, instanceSchemaAddress);
+    vertx.eventBus().<JsonObject>localConsumer(instanceSchemaAddress, message -> message.reply(swapSchema(message.body())));
+    if(!config().containsKey("share"))
+      vertx.eventBus().<JsonObject>consumer(eventBusAddress + ".schema", this::changeSchema);
+
+    LOG.info("Heater serial verticle started, reading " + devices.size() + " device(s), publish on " + eventBusAddress);
   }
 
   @Override
   public void stop() {
     LOG.info("Heater serial verticle stopping");
-    serialWrapper.close();
+    for(Device device : devices)
+      device.input.close();
+  }
+
+  private SerialInput openInput(String devicePath, JsonObject conf) {
+    String driver = conf.getString("driver", "rxtx");
+    int dataRate = conf.getInteger("data_rate", 9600);
+    boolean binary = binaryFormat(conf);
+    switch(driver) {
+      case "rxtx":
+        if(binary) // the RXTX wrapper reads text lines
+          throw new IllegalArgumentException("Invalid configuration, format 'binary' requires the 'channel' driver for SerialVerticle");
+        // The RXTX event thread hands the lines over to this verticle's context through a queue
+        return new QueuedSerialInput(new SerialWrapper.Builder(devicePath).dataRate(dataRate).build(), context, queueSize, overflow);
+      case "channel":
+        return new ChannelSerialInput.Builder(vertx, devicePath).dataRate(dataRate).delimiter(binary ? "\0" : "\n").build();
+      case "load":
+        if(binary)
+          throw new IllegalArgumentException("Invalid configuration, format 'binary' is not supported by the 'load' driver for SerialVerticle");
+        return new LoadSerialInput.Builder(vertx, devicePath)
+          .rate(conf.getDouble("rate", 0.1))
+          .linesFile(conf.getString("lines_file"))
+          .columns(schemaFrom(conf).size())
+          .build();
+      default:
+        throw new IllegalArgumentException("Invalid configuration, unknown driver '" + driver + "' for SerialVerticle");
+    }
+  }
+
+  private static boolean binaryFormat(JsonObject conf) {
+    String format = conf.getString("format", "csv");
+    if(!format.equals("csv") && !format.equals("binary"))
+      throw new IllegalArgumentException("Invalid configuration, format must be csv or binary for SerialVerticle, got '" + format + "'");
+    return format.equals("binary");
+  }
+
+  /**
+   * @param conf Either a number that applies to all columns or an object with a number per sensor name,
+   *             names not in the schema are ignored (they may be meant for another schema)
+   */
+  private static double[] deadbands(Object conf, SensorSchema schema) {
+    double[] deadbands = new double[schema.size()];
+    if(conf instanceof Number) {
+      Arrays.fill(deadbands, ((Number) conf).doubleValue());
+    } else if(conf instanceof JsonObject) {
+      for(String name : ((JsonObject) conf).fieldNames()) {
+        Object value = ((JsonObject) conf).getValue(name);
+        if(!(value instanceof Number))
+          throw new IllegalArgumentException("Invalid configuration, deadband for '" + name + "' must be a number for SerialVerticle");
+        int index = schema.indexOf(name);
+        if(index >= 0)
+          deadbands[index] = ((Number) value).doubleValue();
+      }
+    } else {
+      throw new IllegalArgumentException("Invalid configuration, deadband must be a number or an object with a number per sensor for SerialVerticle");
+    }
+    for(double deadband : deadbands)
+      if(!(deadband >= 0))
+        throw new IllegalArgumentException("Invalid configuration, deadband must not be negative for SerialVerticle");
+    return deadbands;
+  }
+
+  private static SensorSchema schemaFrom(JsonObject conf) {
+    JsonArray sensors = conf.getJsonArray("sensors");
+    return sensors == null ? SensorSchema.DEFAULT : SensorSchema.fromConfig(sensors);
+  }
+
+  /**
+   * Validates the schema change and has each instance swap the schema of its devices, the reply is "ok" if a device
+   * was changed and a failure if the schema is not valid or no device has the source.
+   */
+  private void changeSchema(Message<JsonObject> message) {
+    String source;
+    try {
+      SensorSchema.fromConfig(message.body().getJsonArray("sensors"));
+      source = message.body().getString("source");
+    } catch(IllegalArgumentException|ClassCastException e) {
+      LOG.error("Sensor schema not changed: " + e.getMessage());
+      message.fail(400, e.getMessage());
+      return;
+    }
+    @SuppressWarnings("rawtypes") // as CompositeFuture.all() takes it
+    List<Future> swapped = new ArrayList<>();
+    for(String address : instanceSchemaAddresses) {
+      Future<Message<Integer>> instanceSwapped = Future.future();
+      vertx.eventBus().send(address, message.body(), instanceSwapped);
+      swapped.add(instanceSwapped);
+    }
+    CompositeFuture.all(swapped).setHandler(ar -> {
+      if(ar.failed()) {
+        LOG.error("Sensor schema change failed: " + ar.cause().getMessage());
+        message.fail(500, ar.cause().getMessage());
+        return;
+      }
+      int changed = 0;
+      for(int i = 0; i < swapped.size(); i++)
+        changed += ar.result().<Message<Integer>>resultAt(i).body();
+      if(changed == 0) {
+        LOG.error("Sensor schema not changed, no device with source '" + source + "'");
+        message.fail(404, "No device with source '" + source + "'");
+      } else
+        message.reply("ok");
+    });
+  }
+
+  /** @return the number of devices of this instance that got the schema */
+  private int swapSchema(JsonObject change) {
+    SensorSchema schema = SensorSchema.fromConfig(change.getJsonArray("sensors"));
+    String source = change.getString("source");
+    int changed = 0;
+    for(Device device : devices) {
+      if(source == null || source.equals(device.source)) {
+        device.setSchema(schema);
+        changed++;
+        LOG.info("Sensor schema" + (device.source == null ? "" : " for " + device.source) + " changed to " + schema);
+      }
+    }
+    return changed;
+  }
+
+  private void addDevice(String source, SerialInput input, boolean binary, Object deadband, SensorSchema schema) {
+    if(source != null && !SOURCE_PATTERN.matcher(source).matches())
+      throw new IllegalArgumentException("Invalid configuration, source must be letters, digits, '.', '_' or '-', got '" + source + "'");
+    Device device = new Device(source, input, binary, deadband, schema);
+    devices.add(device);
+    input.setLineHandler((inputLine, timestamp) -> handleLine(device, inputLine, timestamp));
+  }
+
+  private static final long DROP_REPORT_INTERVAL = 60000L;
+
+  /**
+   * Lines dropped because the verticle does not keep up are reported as warnings (at most once per interval)
+   */
+  private void reportDrops() {
+    for(Device device : devices) {
+      if(device.input instanceof QueuedSerialInput) {
+        HandOffQueue<Buffer> queue = ((QueuedSerialInput) device.input).queue();
+        long drops = queue.dropped();
+        if(drops != device.reportedDrops) {
+          LOG.warn("Serial input" + (device.source == null ? "" : " from " + device.source) + " dropped " + (drops - device.reportedDrops) +
+            " line(s), " + drops + " in total (" + queue.overflow() + "), queue depth " + queue.size() + "/" + queue.capacity());
+          device.reportedDrops = drops;
+        }
+      }
+    }
+  }
+
+  private static final Pattern SOURCE_PATTERN = Pattern.compile("[A-Za-z0-9._-]+");
+
+  /**
+   * The decode pipeline shared by all devices: verify CRC, decode and publish.
+   *
+   * @param timestamp When the line arrived, the reading is stamped with that rather than the time it is handled
+   */
+  private void handleLine(Device device, Buffer inputLine, long timestamp) {
+    if (verbose)
+      System.out.println((device.source == null ? "" : device.source + ": ") + (device.binary ? hex(inputLine) : inputLine));
+    if(inputLine != null) {
+      long started = System.nanoTime();
+      LINES.increment();
+      int length = inputLine.length();
+      if(device.lineBytes.length < length)
+        device.lineBytes = new byte[2 * length];
+      inputLine.getBytes(0, length, device.lineBytes);
+      device.reading.setTimestamp(timestamp);
+      if(device.binary) {
+        handleFrame(device, length);
+        HANDLE_TIME.recordSince(started);
+        return;
+      }
+      int dataLength = verifiedLength(device.lineBytes, 0, length);
+      if (dataLength >= 0) {
+        device.data.set(device.lineBytes, 0, dataLength);
+        EventBus eventBus = vertx.eventBus();
+        if (decodeCsv(device.data, device.reading))
+          publish(device);
+        if (echo)
+          eventBus.publish(echoEventBusAddress, device.data.toString(), device.echoOptions); // use the stripped
+      }
+      HANDLE_TIME.recordSince(started);
+    }
+  }
+
+  /**
+   * Binary counterpart of the CSV part of handleLine, the frame is decoded in place in the line buffer.
+   * The echo is the values as CSV, like for a CSV line.
+   */
+  private void handleFrame(Device device, int length) {
+    int payloadLength = verifiedFrameLength(device.lineBytes, 0, length);
+    if(payloadLength >= 0 && decodeBinary(device.lineBytes, 0, payloadLength, device.reading)) {
+      publish(device);
+      if (echo) {
+        StringBuilder csv = new StringBuilder();
+        for(double value : device.reading.values())
+          csv.append(csv.length() == 0 ? "" : ",").append(value);
+        vertx.eventBus().publish(echoEventBusAddress, csv.toString(), device.echoOptions);
+      }
+    }
+  }
+
+  /**
+   * Publishes the decoded reading of the device. Consumers share the published reading, so it is a copy.
+   * With a deadband only the values that moved beyond it are included, unless the heartbeat is due.
+   */
+  private void publish(Device device) {
+    Reading reading = device.reading;
+    if(device.deadbands == null) {
+      vertx.eventBus().publish(eventBusAddress, reading.copy());
+      return;
+    }
+    long now = System.nanoTime();
+    boolean heartbeat = now - device.nextHeartbeat >= 0;
+    if(heartbeat)
+      device.nextHeartbeat = now + heartbeatNanos;
+    double[] values = reading.values();
+    double[] published = device.published;
+    double[] deadbands = device.deadbands;
+    Reading changes = null; // only allocated if something is to be published
+    for(int i = 0; i < values.length; i++) {
+      // Not within the deadband is also true if not yet published (NaN)
+      if(heartbeat || !(Math.abs(values[i] - published[i]) <= deadbands[i])) {
+        if(changes == null) {
+          changes = new Reading(reading.schema());
+          changes.setSource(reading.source());
+          changes.setTimestamp(reading.timestamp());
+          changes.clear();
+        }
+        changes.set(i, values[i]);
+        published[i] = values[i];
+      }
+    }
+    if(changes != null)
+      vertx.eventBus().publish(eventBusAddress, changes);
+  }
+
+  private static String hex(Buffer frame) {
+    if(frame == null)
+      return null;
+    StringBuilder sb = new StringBuilder(frame.length() * 3);
+    for(int i = 0; i < frame.length(); i++)
+      sb.append(String.format("%02x ", frame.getByte(i)));
+    return sb.toString().trim();
   }
 
   /**
-   * This wraps knowledge about what data is sent from the arduino controller, changes to the number and order of
-   * columns must be reflected here. See class description for the format.
+   * Decodes the CSV data with the default schema. See class description for the format.
    *
    * @param data CSV string with the values in the order described above
    * @return Json array, or if any error occurred with data, null
@@ -129,32 +521,148 @@ public class SerialVerticle extends AbstractVerticle {
   protected JsonArray jsonFromCsv(String data) {
     assert data != null;
 
-    String[] columns = data.split(",");
-    // We expect a certain number columns, return null if that is not the case
-    int expectedNumberOfCols = Sensor.values().length;
-    if(columns.length != expectedNumberOfCols) {
+    Reading result = new Reading();
+    return decodeCsv(data, result) ? result.toJson() : null;
+  }
+
+  /**
+   * Decodes the CSV data into the reading, the schema of the reading gives the number, order and scale
+   * of the columns.
+   *
+   * @return true if all columns were decoded, false if any error occurred with data (values are then undefined)
+   */
+  protected boolean decodeCsv(CharSequence data, Reading reading) {
+    return decodeCsv(data, reading.values(), reading.schema().scales());
+  }
+
+  /**
+   * Single pass over the CSV data, parsing each column as a fixed-point decimal straight into <b>values</b>.
+   * The controller only sends plain decimals like "-0.7" or "34", anything else is considered non-numeric.
+   *
+   * @param data CSV string with one value per element in <b>values</b>
+   * @param values Array with room for one value per column, gets overwritten
+   * @return true if all columns were decoded, false if any error occurred with data (values are then undefined)
+   */
+  protected boolean decodeCsv(CharSequence data, double[] values) {
+    return decodeCsv(data, values, null);
+  }
+
+  private boolean decodeCsv(CharSequence data, double[] values, double[] scales) {
+    assert data != null;
+
+    int expectedNumberOfCols = values.length;
+    int col = 0;
+    int start = 0;
+    int length = data.length();
+    for(int i = 0; i <= length; i++) {
+      if(i == length || data.charAt(i) == ',') {
+        // We expect a certain number columns, fail if that is not the case
+        if(col == expectedNumberOfCols) {
+          col++;
+          break;
+        }
+        double value = parseDecimal(data, start, i);
+        if(Double.isNaN(value)) {
+          // In case of an error consider the whole input corrupted:
+          LOG.error("Serial input data contained non-numeric value: \"" + data + "\"");
+          DECODE_ERRORS.increment();
+          return false;
+        }
+        values[col] = scales == null ? value : value * scales[col];
+        col++;
+        start = i + 1;
+      }
+    }
+    if(col != expectedNumberOfCols) {
       // If it passed CRC test and still get into this part, it is an error
       LOG.error("Serial input data contained the wrong number of columns (expected " +expectedNumberOfCols+ "): \"" + data+ "\"");
-      return null;
+      DECODE_ERRORS.increment();
+      return false;
     }
-    try {
-      JsonArray arr = new JsonArray();
-      for(Sensor s : Sensor.values()) {
-        String col = columns[s.order()-1];
-        // all columns are numbers so we just need to convert them to doubles
-        JsonObject measurement = new JsonObject();
-        measurement.put("t", s.type());
-        measurement.put("g", s.group());
-        measurement.put("s", s.name());
-        measurement.put("d", Double.parseDouble(col));
-        arr.add(measurement);
+    return true;
+  }
+
+  // Fixed-point values in binary frames are tenths
+  private static final double BINARY_DIVISOR = 10.0;
+
+  /**
+   * Decodes the payload of a binary frame (after COBS decoding and CRC check) into the reading,
+   * see class description for the format.
+   *
+   * @param frame Array holding the payload
+   * @param offset Start of the payload in the array
+   * @param length Length of the payload, without the CRC
+   * @return true if all columns were decoded, false if the payload does not match the schema of the reading
+   */
+  protected boolean decodeBinary(byte[] frame, int offset, int length, Reading reading) {
+    assert frame != null;
+
+    double[] values = reading.values();
+    double[] scales = reading.schema().scales();
+    int count = length > 0 ? frame[offset] & 0xff : -1;
+    if(count != values.length || length != 1 + 2 * count) {
+      LOG.error("Serial input frame contained the wrong number of values (expected " + values.length + "): " + count);
+      DECODE_ERRORS.increment();
+      return false;
+    }
+    for(int col = 0, pos = offset + 1; col < count; col++, pos += 2) {
+      // Division rather than multiplication by 0.1, that gives the same value as parsing the decimal
+      double value = (short) ((frame[pos] & 0xff) << 8 | (frame[pos + 1] & 0xff)) / BINARY_DIVISOR;
+      values[col] = scales == null ? value : value * scales[col];
+    }
+    return true;
+  }
+
+  private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+    1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+  // Largest mantissa that is exact as a double, up to this the division below is correctly rounded
+  private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+  /**
+   * Parses {@code [+-]digits[.digits]} between <b>from</b> (inclusive) and <b>to</b> (exclusive).
+   * The result is the same as {@code Double.parseDouble()} would give for the same text.
+   *
+   * @return the value, or NaN if the text is not a plain decimal
+   */
+  static double parseDecimal(CharSequence data, int from, int to) {
+    int i = from;
+    boolean negative = false;
+    if(i < to && (data.charAt(i) == '-' || data.charAt(i) == '+')) {
+      negative = data.charAt(i) == '-';
+      i++;
+    }
+    long mantissa = 0;
+    int digits = 0;
+    int scale = -1; // number of decimals, -1 until the decimal point is seen
+    for(; i < to; i++) {
+      char c = data.charAt(i);
+      if(c >= '0' && c <= '9') {
+        if(mantissa >= MAX_EXACT_MANTISSA / 10)
+          return parseLongDecimal(data, from, to); // Way more digits than the controller sends
+        mantissa = mantissa * 10 + (c - '0');
+        digits++;
+        if(scale >= 0)
+          scale++;
+      } else if(c == '.' && scale < 0) {
+        scale = 0;
+      } else {
+        return Double.NaN;
       }
-      return arr;
+    }
+    if(digits == 0)
+      return Double.NaN;
+    if(scale >= POWERS_OF_TEN.length)
+      return parseLongDecimal(data, from, to);
+    double value = scale > 0 ? mantissa / POWERS_OF_TEN[scale] : (double) mantissa;
+    return negative ? -value : value;
+  }
+
+  private static double parseLongDecimal(CharSequence data, int from, int to) {
+    try {
+      return Double.parseDouble(data.subSequence(from, to).toString());
     }
     catch(NumberFormatException e) {
-      // In case of an error consider the whole input corrupted:
-      LOG.error("Serial input data contained non-numeric value: \"" + data+ "\"", e);
-      return null;
+      return Double.NaN;
     }
   }
 
@@ -166,28 +674,84 @@ public class SerialVerticle extends AbstractVerticle {
   protected String verifiedInput(String input) {
     assert input != null;
 
-    String retval = null;
-    int mark = input.lastIndexOf(",");
-    if(mark != -1) {
-      try {
-        int given = Integer.parseInt(input.substring(mark + 1));
-        String data = input.substring(0, mark);
-        int crc = crc8(data.getBytes());
-        retval = (given == crc) ? data : null;
-      }
-      catch(NumberFormatException e) {
-        LOG.error("Serial input data CRC not a number: \"" + input+ "\"", e);
-      }
+    byte[] bytes = input.getBytes(StandardCharsets.ISO_8859_1);
+    int length = verifiedLength(bytes, 0, bytes.length);
+    return length >= 0 ? input.substring(0, length) : null;
+  }
+
+  /**
+   * This validates the CRC of the raw input bytes, working directly on the given range of the array.
+   * A trailing line terminator is ignored.
+   *
+   * @param bytes Array holding a CSV line where the last column is the CRC of the bytes of the rest of the line
+   * @param offset Start of the line in the array
+   * @param length Length of the line
+   * @return Length of the data (starting at offset, without the CRC column), or -1 if CRC check failed
+   */
+  protected int verifiedLength(byte[] bytes, int offset, int length) {
+    assert bytes != null;
+
+    int retval = -1;
+    int end = offset + length;
+    while(end > offset && (bytes[end - 1] == '\n' || bytes[end - 1] == '\r'))
+      end--;
+    int mark = end - 1;
+    while(mark >= offset && bytes[mark] != ',')
+      mark--;
+    if(mark >= offset) {
+      int given = parseCrc(bytes, mark + 1, end);
+      if(given < 0)
+        LOG.error("Serial input data CRC not a number: \"" + new String(bytes, offset, length, StandardCharsets.ISO_8859_1) + "\"");
+      else if(given == crc8(bytes, offset, mark - offset))
+        retval = mark - offset;
     }
 
     // This may happen during restart and other situations, kind of expected
     // hence it is not logged as an error
-    if(retval == null && LOG.isDebugEnabled())
-      LOG.debug("Serial input data failed CRC test: \"" + input+ "\"");
+    if(retval < 0)
+      CRC_FAILURES.increment();
+    if(retval < 0 && LOG.isDebugEnabled())
+      LOG.debug("Serial input data failed CRC test: \"" + new String(bytes, offset, length, StandardCharsets.ISO_8859_1) + "\"");
 
     return retval;
   }
 
+  /**
+   * COBS decodes a binary frame in place and validates its CRC (the last byte of the decoded frame).
+   *
+   * @param bytes Array holding the encoded frame, without the zero delimiter - gets overwritten with the decoded frame
+   * @param offset Start of the frame in the array
+   * @param length Length of the encoded frame
+   * @return Length of the decoded frame (starting at offset, without the CRC), or -1 if decoding or CRC check failed
+   */
+  protected int verifiedFrameLength(byte[] bytes, int offset, int length) {
+    assert bytes != null;
+
+    int decoded = Cobs.decode(bytes, offset, length, bytes, offset);
+    if(decoded >= 2 && crc8(bytes, offset, decoded - 1) == (bytes[offset + decoded - 1] & 0xff))
+      return decoded - 1;
+
+    // Like for CSV lines, partial frames are expected during restart
+    CRC_FAILURES.increment();
+    if(LOG.isDebugEnabled())
+      LOG.debug("Serial input frame failed " + (decoded < 0 ? "decoding" : "CRC test") + " (" + length + " bytes)");
+    return -1;
+  }
+
+  /** @return the decimal CRC value in the given range, or -1 if it is not a (reasonably sized) number */
+  private static int parseCrc(byte[] bytes, int from, int to) {
+    if(from == to || to - from > 3)
+      return -1;
+    int value = 0;
+    for(int i = from; i < to; i++) {
+      int digit = bytes[i] - '0';
+      if(digit < 0 || digit > 9)
+        return -1;
+      value = value * 10 + digit;
+    }
+    return value;
+  }
+
   /**
    * CRC is better than a simple checksum, the corresponding C implementation for the micro controller:
    * <pre>{@code
@@ -220,4 +784,16 @@ public class SerialVerticle extends AbstractVerticle {
     }
     return res;
   }
+
+  /**
+   * {@link #crc8(byte[])} of a range of the array, so a line need not be copied to be checked.
+   */
+  static int crc8(byte[] data, int offset, int length) {
+    int res = 0;
+    for(int i = offset, end = offset + length; i < end; i++) {
+      int tmp = (res << 1) + (data[i] & 0xff);
+      res = ((tmp & 0xff) + (tmp >> 8)) & 0xff;
+    }
+    return res;
+  }
 }
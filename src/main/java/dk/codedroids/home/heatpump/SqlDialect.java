@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2017 CodeDroids ApS (http://www.codedroids.dk)
+ *
+ * This file is part of the HeatPump Vert.x example
+ *
+ * The HeatPump Vert.x example is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * The HeatPump Vert.x example is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the HeatPump Vert.x example. If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.codedroids.home.heatpump;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.stream.Collectors;
+
+/**
+ * The insert statements that differ between databases: inserting a row unless one with the same key is there
+ * already, and merging a row with the one already there. With those, writing the same rows again (e.g. from the
+ * journal) or the rows of a period from more than one verticle does no harm.
+ *
+ * <p>The columns are given as in the create statement, name and type, e.g. "ts timestamp", the key columns
+ * first. The parameters of the statements are the values of the columns in that order.</p>
+ *
+ * <ul>
+ * <li><b>plain</b> -- Plain inserts, a row with a key already there fails the batch. There is no merge</li>
+ * <li><b>mysql</b> -- MySQL and MariaDB, {@code insert ignore} and {@code on duplicate key update}</li>
+ * <li><b>postgresql</b> -- PostgreSQL 9.5 and later, {@code on conflict}</li>
+ * <li><b>merge</b> -- The SQL standard {@code merge}, e.g. HSQLDB, H2, DB2 and Oracle</li>
+ * </ul>
+ *
+ * @author Claus Priisholm.
+ */
+public enum SqlDialect {
+  plain, mysql, postgresql, merge;
+
+  /** @return the dialect by name, e.g. from the configuration */
+  public static SqlDialect of(String name) {
+    try {
+      return valueOf(name);
+    } catch(IllegalArgumentException e) {
+      throw new IllegalArgumentException("Invalid configuration, dialect must be one of " + Arrays.toString(values()) + ", got '" + name + "'");
+    }
+  }
+
+  /**
+   * @param keys number of key columns, the first of the columns
+   * @return the statement inserting a row unless there is one with the same key
+   */
+  public String insertIgnore(String table, int keys, String... columns) {
+    String names = names(columns);
+    switch(this) {
+      case mysql:
+        return "insert ignore into " + table + " (" + names + ") values (" + params(columns.length) + ")";
+      case postgresql:
+        return "insert into " + table + " (" + names + ") values (" + params(columns.length) + ") on conflict do nothing";
+      case merge:
+        return using(table, keys, columns) + " when not matched then insert (" + names + ") values (" + prefixed("v.", columns) + ")";
+      default:
+        return "insert into " + table + " (" + names + ") values (" + params(columns.length) + ")";
+    }
+  }
+
+  /**
+   * The rest of the columns of a row already there are set to an expression of their value, written as "%1$s",
+   * and the new value, written as "%2$s", e.g. {@code "least(%1$s, %2$s)"}.
+   *
+   * @param keys number of key columns, the first of the columns
+   * @param merges expression per column after the keys
+   * @return the statement inserting the row or merging it with the one there, null for plain which can't
+   */
+  public String upsert(String table, int keys, String[] columns, String... merges) {
+    if(merges.length != columns.length - keys)
+      throw new IllegalArgumentException("Need a merge expression for each column that is not a key");
+    String[] sets = new String[merges.length];
+    for(int i = 0; i < merges.length; i++) {
+      String name = name(columns[keys + i]);
+      switch(this) {
+        case mysql:
+          sets[i] = name + " = " + String.format(merges[i], name, "values(" + name + ")");
+          break;
+        case postgresql:
+          sets[i] = name + " = " + String.format(merges[i], table + "." + name, "excluded." + name);
+          break;
+        case merge:
+          sets[i] = "t." + name + " = " + String.format(merges[i], "t." + name, "v." + name);
+          break;
+        default:
+          return null;
+      }
+    }
+    String names = names(columns);
+    switch(this) {
+      case mysql:
+        return "insert into " + table + " (" + names + ") values (" + params(columns.length) + ") on duplicate key update "
+          + String.join(", ", sets);
+      case postgresql:
+        return "insert into " + table + " (" + names + ") values (" + params(columns.length) + ") on conflict ("
+          + names(Arrays.copyOf(columns, keys)) + ") do update set " + String.join(", ", sets);
+      default:
+        return using(table, keys, columns) + " when matched then update set " + String.join(", ", sets)
+          + " when not matched then insert (" + names + ") values (" + prefixed("v.", columns) + ")";
+    }
+  }
+
+  /** The start of a merge: the row of parameters as "v", matched by key with the rows of the table as "t" */
+  private static String using(String table, int keys, String[] columns) {
+    // The types of the parameters are not known from a values clause, hence the casts
+    String values = Arrays.stream(columns).map(c -> "cast(? as " + c.substring(c.indexOf(' ') + 1).trim() + ")").collect(Collectors.joining(", "));
+    String on = Arrays.stream(columns, 0, keys).map(c -> "t." + name(c) + " = v." + name(c)).collect(Collectors.joining(" and "));
+    return "merge into " + table + " t using (values (" + values + ")) v (" + names(columns) + ") on " + on;
+  }
+
+  private static String name(String column) {
+    int space = column.indexOf(' ');
+    return space < 0 ? column : column.substring(0, space);
+  }
+
+  private static String names(String[] columns) {
+    return Arrays.stream(columns).map(SqlDialect::name).collect(Collectors.joining(", "));
+  }
+
+  private static String prefixed(String prefix, String[] columns) {
+    return Arrays.stream(columns).map(c -> prefix + name(c)).collect(Collectors.joining(", "));
+  }
+
+  private static String params(int count) {
+    return String.join(", ", Collections.nCopies(count, "?"));
+  }
+}
@@ -0,0 +1,351 @@
+/*
+ * Copyright (c) 2017 CodeDroids ApS (http://www.codedroids.dk)
+ *
+ * This file is part of the HeatPump Vert.x example
+ *
+ * The HeatPump Vert.x example is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * The HeatPump Vert.x example is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the HeatPump Vert.x example. If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.codedroids.home.heatpump;
+
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Embedded storage of the sensor values as compressed time series, one series per sensor, instead of a row per
+ * value in a database.
+ *
+ * <p>Each series is the file {@code <sensor>.blk} with blocks of points compressed with {@link Gorilla}, and the
+ * file {@code <sensor>.idx} indexing the blocks. Timestamps are stored in seconds (the same resolution as the
+ * database tables), so values sampled at a fixed interval take a few bits per point. Both files are only appended
+ * to, apart from the last block which is written again as points are added to it until it has
+ * <b>blockPoints</b> points. A block is:</p>
+ *
+ * <pre>{@code
+ * int      number of points
+ * int      length of the compressed points in bytes (n)
+ * byte*n   the compressed points
+ * }</pre>
+ *
+ * <p>The index has an entry per full block:</p>
+ *
+ * <pre>{@code
+ * long     timestamp of the first point, seconds since the epoch
+ * long     timestamp of the last point
+ * long     offset of the block in the block file
+ * }</pre>
+ *
+ * <p>Reading maps the files and finds the first block of interest in the index with a binary search, the last
+ * block decoded is kept so reading consecutive periods (as replaying does) decodes each block once. A store opened
+ * for reading sees the points written by another store on the same directory once they are flushed.</p>
+ *
+ * <p>Points older than or at the same second as the last point of the series are dropped, as a point per second
+ * and sensor is all there is room for (as with the primary key of the database tables).</p>
+ *
+ * <p>Not thread-safe, and does blocking file I/O.</p>
+ *
+ * @author Claus Priisholm.
+ */
+public class TimeSeriesStore implements Closeable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(TimeSeriesStore.class);
+
+  private static final int BLOCK_HEADER = 8;
+  private static final int INDEX_ENTRY = 24;
+
+  /** Receives the points read */
+  @FunctionalInterface
+  public interface PointHandler {
+    /** @param timestamp milliseconds since the epoch */
+    void handle(long timestamp, double value);
+  }
+
+  private final Path directory;
+  private final int blockPoints;
+  private final boolean readOnly;
+  private final Map<String, Series> series = new HashMap<>();
+
+  /**
+   * @param blockPoints Number of points per block, larger blocks compress a little better but more has to be
+   *                    decoded to read a single point
+   * @param readOnly If true the store is only read from, and the directory must exist
+   */
+  public TimeSeriesStore(Path directory, int blockPoints, boolean readOnly) throws IOException {
+    if(blockPoints < 2)
+      throw new IllegalArgumentException("Time series blocks must have room for at least 2 points, got " + blockPoints);
+    this.directory = directory;
+    this.blockPoints = blockPoints;
+    this.readOnly = readOnly;
+    if(!readOnly)
+      Files.createDirectories(directory);
+    else if(!Files.isDirectory(directory))
+      throw new IOException("Time series directory " + directory + " does not exist");
+  }
+
+  /**
+   * Adds a point to the series of the sensor, it is written by the next {@link #flush()}.
+   *
+   * @param timestamp milliseconds since the epoch
+   * @return false if the point is dropped because it is not later than the last point of the series
+   */
+  public boolean append(String sensor, long timestamp, double value) throws IOException {
+    if(readOnly)
+      throw new IllegalStateException("Time series store is read only");
+    return series(sensor).append(timestamp / 1000L, value);
+  }
+
+  /** Writes the points added since the last flush */
+  public void flush() throws IOException {
+    for(Series s : series.values())
+      s.flush();
+  }
+
+  /**
+   * Reads the points of the sensor with timestamp in the period, in order.
+   *
+   * @param from milliseconds since the epoch, inclusive
+   * @param to milliseconds since the epoch, exclusive
+   * @return number of points read
+   */
+  public int read(String sensor, long from, long to, PointHandler handler) throws IOException {
+    Series s = series.get(sensor);
+    if(s == null) {
+      if(!Files.exists(directory.resolve(sensor + ".blk")))
+        return 0;
+      s = series(sensor);
+    }
+    return s.read(Math.floorDiv(from + 999L, 1000L), Math.floorDiv(to + 999L, 1000L), handler);
+  }
+
+  private Series series(String sensor) throws IOException {
+    Series s = series.get(sensor);
+    if(s == null) {
+      if(sensor.isEmpty() || !sensor.chars().allMatch(c -> Character.isLetterOrDigit(c) || c == '_' || c == '-'))
+        throw new IllegalArgumentException("Invalid sensor name for a time series: '" + sensor + "'");
+      s = new Series(sensor);
+      series.put(sensor, s);
+    }
+    return s;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if(!readOnly)
+      flush();
+    for(Series s : series.values())
+      s.close();
+    series.clear();
+  }
+
+  private class Series {
+    private final FileChannel blocks;
+    private final FileChannel index;
+
+    // Writing: the last block, from tailOffset in the block file
+    private Gorilla.Encoder tail = new Gorilla.Encoder();
+    private long tailOffset;
+    private long lastTimestamp = Long.MIN_VALUE;
+    private boolean dirty = false;
+
+    // Reading
+    private MappedByteBuffer blocksMap;
+    private MappedByteBuffer indexMap;
+    private long decodedOffset = -1; // the block decoded, and its number of points
+    private int decodedCount;
+    private long[] timestamps = new long[0];
+    private double[] values = new double[0];
+
+    Series(String sensor) throws IOException {
+      StandardOpenOption[] options = readOnly
+        ? new StandardOpenOption[] { StandardOpenOption.READ }
+        : new StandardOpenOption[] { StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE };
+      blocks = FileChannel.open(directory.resolve(sensor + ".blk"), options);
+      index = FileChannel.open(directory.resolve(sensor + ".idx"), options);
+      if(!readOnly)
+        recover(sensor);
+    }
+
+    /** Finds the last block, and continues it */
+    private void recover(String sensor) throws IOException {
+      long entries = index.size() / INDEX_ENTRY;
+      if(index.size() != entries * INDEX_ENTRY) // torn entry
+        index.truncate(entries * INDEX_ENTRY);
+      tailOffset = 0;
+      if(entries > 0) {
+        ByteBuffer entry = readFully(index, (entries - 1) * INDEX_ENTRY, INDEX_ENTRY);
+        long offset = entry.getLong(16);
+        lastTimestamp = entry.getLong(8);
+        tailOffset = offset + BLOCK_HEADER + readFully(blocks, offset, BLOCK_HEADER).getInt(4);
+      }
+      if(blocks.size() >= tailOffset + BLOCK_HEADER) {
+        ByteBuffer header = readFully(blocks, tailOffset, BLOCK_HEADER);
+        int count = header.getInt(0);
+        int length = header.getInt(4);
+        if(count > 0 && count <= blockPoints && blocks.size() >= tailOffset + BLOCK_HEADER + length) {
+          Gorilla.Decoder decoder = new Gorilla.Decoder(readFully(blocks, tailOffset + BLOCK_HEADER, length).array(), 0, count);
+          while(decoder.next())
+            tail.add(decoder.timestamp(), decoder.value());
+          lastTimestamp = tail.lastTimestamp();
+          if(count == blockPoints) // full, but not indexed yet
+            closeTail();
+        } else if(count != 0) {
+          LOG.warn("Time series " + sensor + " has a torn block at " + tailOffset + ", dropped");
+        }
+      }
+      blocks.truncate(tail.count() == 0 ? tailOffset : tailOffset + BLOCK_HEADER + tail.length());
+    }
+
+    boolean append(long seconds, double value) throws IOException {
+      if(seconds <= lastTimestamp)
+        return false;
+      if(tail.count() == blockPoints)
+        closeTail();
+      tail.add(seconds, value);
+      lastTimestamp = seconds;
+      dirty = true;
+      return true;
+    }
+
+    /** Writes the full last block and indexes it, a new block is begun */
+    private void closeTail() throws IOException {
+      writeTail();
+      ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY);
+      Gorilla.Decoder decoder = new Gorilla.Decoder(tail.bytes(), 0, 1);
+      decoder.next();
+      entry.putLong(decoder.timestamp()).putLong(tail.lastTimestamp()).putLong(tailOffset).flip();
+      writeFully(index, entry, index.size());
+      tailOffset += BLOCK_HEADER + tail.length();
+      tail = new Gorilla.Encoder();
+    }
+
+    /** The points before the header, so a reader never sees a count larger than the points there */
+    private void writeTail() throws IOException {
+      writeFully(blocks, ByteBuffer.wrap(tail.bytes(), 0, tail.length()), tailOffset + BLOCK_HEADER);
+      ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER);
+      header.putInt(tail.count()).putInt(tail.length()).flip();
+      writeFully(blocks, header, tailOffset);
+      dirty = false;
+    }
+
+    void flush() throws IOException {
+      if(dirty)
+        writeTail();
+    }
+
+    int read(long from, long to, PointHandler handler) throws IOException {
+      if(from >= to)
+        return 0;
+      remap();
+      long entries = indexMap.capacity() / INDEX_ENTRY;
+      // First block with a last point at or after 'from'
+      long low = 0, high = entries;
+      while(low < high) {
+        long mid = (low + high) >>> 1;
+        if(indexMap.getLong((int) (mid * INDEX_ENTRY + 8)) < from)
+          low = mid + 1;
+        else
+          high = mid;
+      }
+      int count = 0;
+      long offset = low < entries ? indexMap.getLong((int) (low * INDEX_ENTRY + 16)) : tailStart(entries);
+      while(offset + BLOCK_HEADER <= blocksMap.capacity()) {
+        int points = decode(offset);
+        if(points == 0)
+          break;
+        for(int i = 0; i < points; i++) {
+          if(timestamps[i] >= to)
+            return count;
+          if(timestamps[i] >= from) {
+            handler.handle(timestamps[i] * 1000L, values[i]);
+            count++;
+          }
+        }
+        offset += BLOCK_HEADER + blocksMap.getInt((int) offset + 4);
+      }
+      return count;
+    }
+
+    /** @return offset of the block after the indexed blocks */
+    private long tailStart(long entries) {
+      if(entries == 0)
+        return 0;
+      long offset = indexMap.getLong((int) ((entries - 1) * INDEX_ENTRY + 16));
+      return offset + BLOCK_HEADER + blocksMap.getInt((int) offset + 4);
+    }
+
+    /** Decodes the block at the offset, unless it is the one decoded last time, @return its number of points */
+    private int decode(long offset) {
+      int count = blocksMap.getInt((int) offset);
+      int length = blocksMap.getInt((int) offset + 4);
+      if(count <= 0 || offset + BLOCK_HEADER + length > blocksMap.capacity())
+        return 0; // nothing there (yet)
+      if(offset == decodedOffset && count == decodedCount)
+        return count;
+      byte[] bytes = new byte[length];
+      ByteBuffer block = blocksMap.duplicate();
+      block.position((int) offset + BLOCK_HEADER);
+      block.get(bytes);
+      if(timestamps.length < count) {
+        timestamps = new long[count];
+        values = new double[count];
+      }
+      Gorilla.Decoder decoder = new Gorilla.Decoder(bytes, 0, count);
+      for(int i = 0; decoder.next(); i++) {
+        timestamps[i] = decoder.timestamp();
+        values[i] = decoder.value();
+      }
+      decodedOffset = offset;
+      decodedCount = count;
+      return count;
+    }
+
+    /** Maps the files again if they have grown */
+    private void remap() throws IOException {
+      if(blocksMap == null || blocksMap.capacity() < blocks.size())
+        blocksMap = blocks.map(FileChannel.MapMode.READ_ONLY, 0, blocks.size());
+      long indexSize = index.size() / INDEX_ENTRY * INDEX_ENTRY;
+      if(indexMap == null || indexMap.capacity() < indexSize)
+        indexMap = index.map(FileChannel.MapMode.READ_ONLY, 0, indexSize);
+    }
+
+    void close() throws IOException {
+      blocks.close();
+      index.close();
+    }
+  }
+
+  private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    while(buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) > 0);
+    buffer.flip();
+    if(buffer.remaining() < length)
+      throw new IOException("Time series file ends before expected");
+    return buffer;
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+    while(buffer.hasRemaining())
+      position += channel.write(buffer, position);
+  }
+}
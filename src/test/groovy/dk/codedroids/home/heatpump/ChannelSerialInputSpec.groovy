@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2017 CodeDroids ApS (http://www.codedroids.dk)
+ *
+ * This file is part of the HeatPump Vert.x example
+ *
+ * The HeatPump Vert.x example is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * The HeatPump Vert.x example is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the HeatPump Vert.x example. If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.codedroids.home.heatpump
+
+import io.vertx.core.Context
+import io.vertx.core.DeploymentOptions
+import io.vertx.core.Vertx
+import io.vertx.core.json.JsonArray
+import io.vertx.core.json.JsonObject
+import spock.lang.Requires
+import spock.lang.Shared
+import spock.lang.Specification
+import spock.util.concurrent.AsyncConditions
+import spock.util.concurrent.PollingConditions
+
+import java.nio.file.Files
+import java.nio.file.Path
+
+/**
+ * Uses a FIFO in place of the serial device, so it needs mkfifo (i.e. Linux or similar).
+ *
+ * @author Claus Priisholm.
+ */
+@Requires({ new File('/usr/bin/mkfifo').exists() || new File('/bin/mkfifo').exists() })
+class ChannelSerialInputSpec extends Specification {
+  @Shared Vertx vertx
+  @Shared Path dir
+
+  def setupSpec() {
+    vertx = Vertx.vertx()
+    dir = Files.createTempDirectory('serial')
+  }
+
+  def cleanupSpec() {
+    vertx.close()
+    dir.toFile().deleteDir()
+  }
+
+  Path fifo(String name) {
+    Path path = dir.resolve(name)
+    assert new ProcessBuilder('mkfifo', path.toString()).start().waitFor() == 0
+    return path
+  }
+
+  def 'lines written in pieces are framed and delivered on the context'() {
+    setup:
+    Path path = fifo('lines')
+    List<String> received = []
+    Set<Context> contexts = [] as Set
+    AsyncConditions conditions = new AsyncConditions(1)
+    Context context = vertx.getOrCreateContext()
+    ChannelSerialInput input = null
+    context.runOnContext {
+      input = new ChannelSerialInput.Builder(vertx, path.toString()).dataRate(0).build()
+      input.setHandler { line ->
+        received << line
+        contexts << Vertx.currentContext()
+        if(received.size() == 3)
+          conditions.evaluate {
+            assert received == ['-0.7,37.2,28.6,8.8,33.7,1.2,1.2,1.2,37', 'second', 'third']
+            assert contexts == [context] as Set
+          }
+      }
+    }
+
+    when:
+    path.toFile().withOutputStream { out ->
+      out << '-0.7,37.2,28.6,8.8,'
+      out.flush()
+      Thread.sleep(50)
+      out << '33.7,1.2,1.2,1.2,37\r\nsec'
+      out.flush()
+      Thread.sleep(50)
+      out << 'ond\nthird\n'
+    }
+
+    then:
+    conditions.await(2d)
+
+    cleanup:
+    input?.close()
+  }
+
+  def 'serial verticle publishes readings read from the device'() {
+    setup:
+    Path path = fifo('verticle')
+    AsyncConditions conditions = new AsyncConditions(1)
+    String address = 'home.heatpump.data.channel'
+    vertx.eventBus().localConsumer(address) { message ->
+      conditions.evaluate {
+        assert new JsonArray(message.body().toString()).size() == SensorSchema.DEFAULT.size()
+      }
+    }
+    String deploymentId = null
+    vertx.deployVerticle(SerialVerticle.name, new DeploymentOptions().setConfig(
+      new JsonObject()
+        .put('event_bus', address)
+        .put('serial_port', path.toString())
+        .put('driver', 'channel')
+        .put('data_rate', 0))) { ar -> deploymentId = ar.result() }
+
+    when:
+    path.toFile().withOutputStream { out ->
+      out << 'garbage from before the restart\r\n'
+      out << '-0.7,37.2,28.6,8.8,33.7,1.2,1.2,1.2,37\r\n'
+    }
+
+    then:
+    conditions.await(2d)
+
+    cleanup:
+    if(deploymentId)
+      vertx.undeploy(deploymentId)
+  }
+
+  def 'serial verticle publishes readings read from binary frames'() {
+    setup:
+    Path path = fifo('binary')
+    AsyncConditions conditions = new AsyncConditions(1)
+    String address = 'home.heatpump.data.binary'
+    vertx.eventBus().localConsumer(address) { message ->
+      conditions.evaluate {
+        assert message.body().encode() == '[{"t":"temp","g":"fyr","s":"pump","d":-0.7},{"t":"temp","g":"fyr","s":"feed","d":37.2},' +
+          '{"t":"temp","g":"fyr","s":"ret","d":28.6},{"t":"temp","g":"fyr","s":"box","d":8.8},{"t":"temp","g":"bry","s":"tank","d":33.7},' +
+          '{"t":"powr","g":"pump","s":"l1","d":1.2},{"t":"powr","g":"pump","s":"l2","d":1.2},{"t":"powr","g":"pump","s":"l3","d":1.2}]'
+      }
+    }
+    String deploymentId = null
+    vertx.deployVerticle(SerialVerticle.name, new DeploymentOptions().setConfig(
+      new JsonObject()
+        .put('event_bus', address)
+        .put('serial_port', path.toString())
+        .put('driver', 'channel')
+        .put('format', 'binary')
+        .put('data_rate', 0))) { ar -> deploymentId = ar.result() }
+
+    when:
+    path.toFile().withOutputStream { out ->
+      out << ([1, 2, 3] as byte[]) << ([0] as byte[]) // partial frame from before the restart
+      out << SerialVerticleSpec.binaryFrame([-0.7d, 37.2d, 28.6d, 8.8d, 33.7d, 1.2d, 1.2d, 1.2d]) << ([0] as byte[])
+    }
+
+    then:
+    conditions.await(2d)
+
+    cleanup:
+    if(deploymentId)
+      vertx.undeploy(deploymentId)
+  }
+
+  def 'serial verticle reads a number of devices and tags the readings'() {
+    setup:
+    List<Path> paths = [fifo('pump1'), fifo('pump2'), fifo('pump3')]
+    Set<String> sources = Collections.synchronizedSet([] as Set)
+    AsyncConditions conditions = new AsyncConditions(1)
+    String address = 'home.heatpump.data.devices'
+    vertx.eventBus().localConsumer(address) { message ->
+      new JsonArray(message.body().toString()).each { sources << it.getString('src') }
+      if(sources.size() == 3)
+        conditions.evaluate {
+          assert sources == ['pump1', 'pump2', 'ttyX3'] as Set
+        }
+    }
+    String deploymentId = null
+    vertx.deployVerticle(SerialVerticle.name, new DeploymentOptions().setConfig(
+      new JsonObject()
+        .put('event_bus', address)
+        .put('serial_ports', new JsonArray()
+          .add(new JsonObject().put('serial_port', paths[0].toString()).put('source', 'pump1'))
+          .add(new JsonObject().put('serial_port', paths[1].toString()).put('source', 'pump2'))
+          .add(new JsonObject().put('serial_port', paths[2].toString()).put('source', 'ttyX3')))
+        .put('event_loops', 2)
+        .put('driver', 'channel')
+        .put('data_rate', 0))) { ar -> deploymentId = ar.result() }
+
+    when:
+    paths.each { path ->
+      path.toFile().withOutputStream { out -> out << '-0.7,37.2,28.6,8.8,33.7,1.2,1.2,1.2,37\r\n' }
+    }
+
+    then:
+    conditions.await(2d)
+
+    cleanup:
+    if(deploymentId)
+      vertx.undeploy(deploymentId)
+  }
+
+  def 'with event_loops the schema of a device on any of the instances can be swapped'() {
+    setup:
+    List<Path> paths = [fifo('schema1'), fifo('schema2'), fifo('schema3')]
+    String address = 'home.heatpump.data.schemas'
+    List<JsonArray> readings = [].asSynchronized()
+    vertx.eventBus().localConsumer(address) { message -> readings << new JsonArray(message.body().toString()) }
+    Set<String> deployed = new HashSet<>(vertx.deploymentIDs())
+    String deploymentId = null
+    vertx.deployVerticle(SerialVerticle.name, new DeploymentOptions().setConfig(
+      new JsonObject()
+        .put('event_bus', address)
+        .put('serial_ports', new JsonArray()
+          .add(new JsonObject().put('serial_port', paths[0].toString()).put('source', 'pump1'))
+          .add(new JsonObject().put('serial_port', paths[1].toString()).put('source', 'pump2'))
+          .add(new JsonObject().put('serial_port', paths[2].toString()).put('source', 'pump3')))
+        .put('event_loops', 2)
+        .put('driver', 'channel')
+        .put('data_rate', 0))) { ar -> deploymentId = ar.result() }
+    new PollingConditions(timeout: 5).eventually {
+      assert deploymentId
+      assert (vertx.deploymentIDs() - deployed).size() == 2 // the second instance as well
+    }
+    JsonArray sensors = SensorSchema.DEFAULT.toConfig().add(new JsonObject().put('name', 'out').put('type', 'temp').put('group', 'fyr'))
+    Map<String, Object> replies = [:].asSynchronized()
+
+    when: 'pump2 (on the second instance), all devices, and a source that is not there'
+    ['pump2', null, 'pump9'].each { source ->
+      vertx.eventBus().send(address + '.schema', new JsonObject().put('sensors', sensors).put('source', source)) { ar ->
+        replies[String.valueOf(source)] = ar.succeeded() ? ar.result().body() : ar.cause().failureCode()
+      }
+    }
+
+    then:
+    new PollingConditions(timeout: 5).eventually { assert replies.size() == 3 }
+    replies == ['pump2': 'ok', 'null': 'ok', 'pump9': 404]
+
+    when: 'pump2 sends the extra column'
+    String data = '-0.7,37.2,28.6,8.8,33.7,1.2,1.2,1.2,-5.5'
+    paths[1].toFile().withOutputStream { out -> out << data + ',' + SerialVerticle.crc8(data.getBytes('US-ASCII'), 0, data.length()) + '\r\n' }
+
+    then:
+    new PollingConditions(timeout: 5).eventually { assert readings.size() == 1 }
+    readings[0].size() == 9
+    readings[0].getJsonObject(8).getDouble('d') == -5.5d
+    readings[0].getJsonObject(8).getString('src') == 'pump2'
+
+    cleanup:
+    if(deploymentId)
+      vertx.undeploy(deploymentId)
+  }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2017 CodeDroids ApS (http://www.codedroids.dk)
+ *
+ * This file is part of the HeatPump Vert.x example
+ *
+ * The HeatPump Vert.x example is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * The HeatPump Vert.x example is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the HeatPump Vert.x example. If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.codedroids.home.heatpump
+
+import io.vertx.core.Future
+import io.vertx.core.Vertx
+import io.vertx.core.json.JsonObject
+import io.vertx.ext.sql.SQLConnection
+import spock.lang.Shared
+import spock.lang.Specification
+import spock.util.concurrent.BlockingVariable
+
+import java.sql.Connection
+
+/**
+ * @author Claus Priisholm.
+ */
+class DbSessionSpec extends Specification {
+  @Shared Vertx vertx
+  @Shared DbSession session
+
+  def setupSpec() {
+    vertx = Vertx.vertx()
+    BlockingVariable created = new BlockingVariable(5)
+    vertx.runOnContext {
+      created.set(new DbSession(vertx, new JsonObject()
+        .put('url', 'jdbc:hsqldb:mem:session')
+        .put('user', 'SA')
+        .put('password', '')
+        .put('driver_class', 'org.hsqldb.jdbcDriver')
+        .put('validation_query', 'values 1')
+        .put('reconnect_delay', 100)))
+    }
+    session = created.get()
+  }
+
+  def cleanupSpec() {
+    vertx.close()
+  }
+
+  /** Runs the work on the session from the session's context and waits for the outcome */
+  def run(Closure<Future> work) {
+    BlockingVariable result = new BlockingVariable(5)
+    vertx.runOnContext {
+      session.execute({ SQLConnection connection -> work(connection) }).setHandler { ar -> result.set(ar) }
+    }
+    return result.get()
+  }
+
+  static Future query(SQLConnection connection, String sql) {
+    Future future = Future.future()
+    connection.query(sql) { ar -> ar.succeeded() ? future.complete(ar.result().results) : future.fail(ar.cause()) }
+    return future
+  }
+
+  def 'work runs on the same connection'() {
+    when:
+    def first = run { connection -> Future.succeededFuture(connection.unwrap()) }
+    def second = run { connection -> Future.succeededFuture(connection.unwrap()) }
+
+    then:
+    first.succeeded()
+    first.result().is(second.result())
+  }
+
+  def 'a failing statement is reported and the connection is kept'() {
+    when:
+    def before = run { connection -> Future.succeededFuture(connection.unwrap()) }
+    def failed = run { connection -> query(connection, 'select * from no_such_table') }
+    def after = run { connection -> Future.succeededFuture(connection.unwrap()) }
+
+    then:
+    failed.failed()
+    before.result().is(after.result())
+  }
+
+  def 'work is run again on a new connection when the connection is lost'() {
+    given:
+    def broken = run { connection ->
+      ((Connection) connection.unwrap()).close() // behind the session's back
+      Future.succeededFuture(connection.unwrap())
+    }
+
+    when:
+    def result = run { connection -> query(connection, 'values 42') }
+    def after = run { connection -> Future.succeededFuture(connection.unwrap()) }
+
+    then:
+    result.succeeded()
+    result.result()[0].getInteger(0) == 42
+    !after.result().is(broken.result())
+  }
+
+  def 'work given after close fails right away'() {
+    given:
+    BlockingVariable<List> results = new BlockingVariable(5)
+
+    when: 'work is given before the close is done and after it'
+    vertx.runOnContext {
+      DbSession closing = new DbSession(vertx, new JsonObject()
+        .put('url', 'jdbc:hsqldb:mem:session')
+        .put('user', 'SA')
+        .put('password', '')
+        .put('driver_class', 'org.hsqldb.jdbcDriver'))
+      Future before = closing.execute { connection -> query(connection, 'values 1') }
+      Future closed = closing.close()
+      Future queued = closing.execute { connection -> query(connection, 'values 2') }
+      closed.setHandler {
+        Future after = closing.execute { connection -> query(connection, 'values 3') }
+        queued.setHandler {
+          results.set([before, queued, after])
+        }
+      }
+    }
+
+    then:
+    results.get()*.succeeded() == [true, false, false]
+    results.get()[1..2]*.cause()*.message == ['Database session closed', 'Database session closed']
+  }
+}
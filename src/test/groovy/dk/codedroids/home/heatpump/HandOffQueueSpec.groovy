@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2017 CodeDroids ApS (http://www.codedroids.dk)
+ *
+ * This file is part of the HeatPump Vert.x example
+ *
+ * The HeatPump Vert.x example is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * The HeatPump Vert.x example is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the HeatPump Vert.x example. If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.codedroids.home.heatpump
+
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import static dk.codedroids.home.heatpump.HandOffQueue.Overflow.*
+
+/**
+ * @author Claus Priisholm.
+ */
+class HandOffQueueSpec extends Specification {
+
+  List drain(HandOffQueue queue) {
+    List result = []
+    def e
+    while((e = queue.poll()) != null)
+      result << e
+    return result
+  }
+
+  @Unroll
+  def 'overflow policy #overflow'() {
+    given:
+    HandOffQueue queue = new HandOffQueue(4, overflow)
+
+    when:
+    (1..10).each { queue.offer(it) }
+
+    then:
+    queue.dropped() == dropped
+    drain(queue) == remaining
+    queue.size() == 0
+
+    where:
+    overflow    || dropped | remaining
+    drop_oldest || 6       | [7, 8, 9, 10]
+    conflate    || 8       | [9, 10]
+  }
+
+  def 'stamps travel with the elements'() {
+    given:
+    HandOffQueue queue = new HandOffQueue(4, drop_oldest)
+    (1..6).each { queue.offer(it, it * 1000L) }
+
+    expect:
+    [3, 4, 5, 6].every { queue.poll() == it && queue.stamp() == it * 1000L }
+  }
+
+  def 'capacity is rounded up to a power of two'() {
+    expect:
+    new HandOffQueue(5, drop_oldest).capacity() == 8
+  }
+
+  def 'block waits for the consumer and is released by close'() {
+    given:
+    HandOffQueue queue = new HandOffQueue(2, block)
+    queue.offer(1)
+    queue.offer(2)
+    List results = Collections.synchronizedList([])
+
+    when:
+    Thread producer = Thread.start {
+      results << queue.offer(3)
+      results << queue.offer(4)
+    }
+    Thread.sleep(50)
+
+    then:
+    results.isEmpty()
+
+    when:
+    queue.poll()
+    Thread.sleep(50)
+    queue.close()
+    producer.join(1000)
+
+    then:
+    results == [true, false]
+    queue.dropped() == 0
+    drain(queue) == [2, 3]
+  }
+
+  @Unroll
+  def 'one producer and one consumer thread with #overflow'() {
+    given:
+    int total = 200000
+    HandOffQueue queue = new HandOffQueue(16, overflow)
+    List received = []
+
+    when:
+    Thread producer = Thread.start {
+      for(int i = 1; i <= total; i++)
+        queue.offer(i)
+    }
+    while(producer.alive || queue.size() > 0) {
+      def e = queue.poll()
+      if(e != null)
+        received << e
+    }
+
+    then:
+    received.size() + queue.dropped() == total
+    received.last() == total
+    (1..<received.size()).every { received[it - 1] < received[it] }
+
+    where:
+    overflow << [drop_oldest, conflate, block]
+  }
+}
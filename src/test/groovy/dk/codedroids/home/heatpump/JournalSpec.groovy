@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2017 CodeDroids ApS (http://www.codedroids.dk)
+ *
+ * This file is part of the HeatPump Vert.x example
+ *
+ * The HeatPump Vert.x example is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * The HeatPump Vert.x example is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the HeatPump Vert.x example. If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.codedroids.home.heatpump
+
+import io.vertx.core.buffer.Buffer
+import spock.lang.Specification
+
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+
+/**
+ * @author Claus Priisholm.
+ */
+class JournalSpec extends Specification {
+
+  Path directory
+
+  def setup() {
+    directory = Files.createTempDirectory('journal')
+  }
+
+  def cleanup() {
+    directory.toFile().deleteDir()
+  }
+
+  List<String> readAll(Journal journal, int max = Integer.MAX_VALUE) {
+    List<String> records = []
+    journal.read(max) { type, payload -> records << "$type:${payload.toString()}".toString() }
+    return records
+  }
+
+  List<String> segmentFiles() {
+    directory.toFile().list().findAll { it.endsWith('.seg') }.sort()
+  }
+
+  def 'records are read back in order, and again after a rewind'() {
+    given:
+    Journal journal = new Journal(directory, 1024, false)
+
+    when:
+    journal.append((byte) 1, Buffer.buffer('one'))
+    journal.append((byte) 2, Buffer.buffer('two'))
+    journal.append((byte) 1, Buffer.buffer('three'))
+
+    then:
+    journal.uncommitted() == 3
+    readAll(journal, 2) == ['1:one', '2:two']
+    readAll(journal) == ['1:three']
+    readAll(journal) == []
+
+    when:
+    journal.rewind()
+
+    then:
+    readAll(journal) == ['1:one', '2:two', '1:three']
+
+    cleanup:
+    journal.close()
+  }
+
+  def 'only records after the checkpoint are there when opened again'() {
+    given:
+    Journal journal = new Journal(directory, 1024, false)
+    (1..5).each { journal.append((byte) 1, Buffer.buffer("r$it")) }
+    readAll(journal, 2)
+    journal.commit(2)
+    journal.close()
+
+    when:
+    journal = new Journal(directory, 1024, false)
+
+    then:
+    journal.uncommitted() == 3
+    readAll(journal) == ['1:r3', '1:r4', '1:r5']
+
+    when: 'appending goes on after the recovered records'
+    journal.append((byte) 1, Buffer.buffer('r6'))
+
+    then:
+    readAll(journal) == ['1:r6']
+
+    cleanup:
+    journal.close()
+  }
+
+  def 'segments are rotated and deleted once committed'() {
+    given:
+    Journal journal = new Journal(directory, 1024, false)
+    String payload = 'x' * 100 // 109 bytes per record, 9 records per segment
+
+    when:
+    (1..20).each { journal.append((byte) 1, Buffer.buffer(payload)) }
+
+    then:
+    segmentFiles() == ['00000001.seg', '00000002.seg', '00000003.seg']
+
+    when:
+    readAll(journal, 10)
+    journal.commit(10)
+
+    then:
+    segmentFiles() == ['00000002.seg', '00000003.seg']
+    readAll(journal).size() == 10
+
+    when:
+    journal.commit(10)
+    journal.close()
+    journal = new Journal(directory, 1024, false)
+
+    then:
+    journal.uncommitted() == 0
+    readAll(journal) == []
+
+    cleanup:
+    journal.close()
+  }
+
+  def 'a torn record at the end is dropped when opened again'() {
+    given:
+    Journal journal = new Journal(directory, 1024, false)
+    journal.append((byte) 1, Buffer.buffer('good'))
+    journal.append((byte) 1, Buffer.buffer('torn'))
+    journal.close()
+    FileChannel channel = FileChannel.open(directory.resolve('00000001.seg'), StandardOpenOption.WRITE)
+    channel.write(ByteBuffer.wrap('X'.bytes), 8 + 5 + 8 + 1) // into the payload of the second record
+    channel.close()
+
+    when:
+    journal = new Journal(directory, 1024, false)
+
+    then:
+    journal.uncommitted() == 1
+    readAll(journal) == ['1:good']
+
+    when:
+    journal.append((byte) 1, Buffer.buffer('next'))
+    journal.close()
+    journal = new Journal(directory, 1024, false)
+
+    then:
+    readAll(journal) == ['1:good', '1:next']
+
+    cleanup:
+    journal.close()
+  }
+
+  def 'a record larger than a segment is refused'() {
+    given:
+    Journal journal = new Journal(directory, 1024, false)
+
+    when:
+    journal.append((byte) 1, Buffer.buffer('x' * 1024))
+
+    then:
+    thrown(IOException)
+    journal.uncommitted() == 0
+
+    cleanup:
+    journal.close()
+  }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2017 CodeDroids ApS (http://www.codedroids.dk)
+ *
+ * This file is part of the HeatPump Vert.x example
+ *
+ * The HeatPump Vert.x example is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * The HeatPump Vert.x example is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the HeatPump Vert.x example. If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.codedroids.home.heatpump
+
+import io.vertx.core.DeploymentOptions
+import io.vertx.core.Vertx
+import io.vertx.core.json.JsonArray
+import io.vertx.core.json.JsonObject
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+import java.text.SimpleDateFormat
+
+/**
+ * @author Claus Priisholm.
+ */
+class LineIndexSpec extends Specification {
+
+  static final long START = 1500000000000L
+
+  Path directory
+  Path recording
+
+  def setup() {
+    directory = Files.createTempDirectory('index')
+    recording = directory.resolve('capture.txt')
+  }
+
+  def cleanup() {
+    directory.toFile().deleteDir()
+  }
+
+  /** A data set like the ReplayVerticle sends with pace max */
+  static String line(long ts) {
+    new JsonArray()
+      .add(new JsonObject().put('t', 'temp').put('g', 'fyr').put('s', 'tank').put('d', 40.0d).put('ts', ts))
+      .add(new JsonObject().put('t', 'powr').put('g', 'pump').put('s', 'l1').put('d', 1.2d).put('ts', ts))
+      .encode()
+  }
+
+  void append(String text) {
+    Files.write(recording, text.getBytes('UTF-8'), StandardOpenOption.CREATE, StandardOpenOption.APPEND)
+  }
+
+  /** Offset of the line with the timestamp */
+  long offsetOf(long ts) {
+    new String(Files.readAllBytes(recording), 'UTF-8').indexOf(line(ts))
+  }
+
+  def 'the first line at or after the timestamp is found'() {
+    given: 'lines 10 seconds apart, with a line without a timestamp now and then'
+    (0..<1000).each { i ->
+      append(line(START + i * 10000L) + '\n')
+      if(i % 100 == 50)
+        append('["no timestamp"]\n')
+    }
+
+    expect:
+    LineIndex.update(recording, 64) == 16 // ceil(1000 / 64)
+    LineIndex.seek(recording, START, 64) == 0
+    LineIndex.seek(recording, START - 1, 64) == 0
+    LineIndex.seek(recording, START + 123 * 10000L, 64) == offsetOf(START + 123 * 10000L)
+    LineIndex.seek(recording, START + 123 * 10000L + 1, 64) == offsetOf(START + 124 * 10000L)
+    LineIndex.seek(recording, START + 640 * 10000L, 64) == offsetOf(START + 640 * 10000L) // an entry
+    LineIndex.seek(recording, START + 999 * 10000L, 64) == offsetOf(START + 999 * 10000L)
+    LineIndex.seek(recording, START + 1000 * 10000L, 64) == Files.size(recording)
+  }
+
+  def 'the index is extended as lines are added, a line is indexed once it has a newline'() {
+    given:
+    (0..<100).each { append(line(START + it * 10000L) + '\n') }
+    LineIndex.update(recording, 10)
+    long indexSize = Files.size(LineIndex.indexPath(recording))
+
+    when: 'lines are added, the last still being written'
+    (100..<150).each { append(line(START + it * 10000L) + '\n') }
+    append(line(START + 150 * 10000L))
+
+    then: 'the partial line is found, but not indexed'
+    LineIndex.seek(recording, START + 150 * 10000L, 10) == offsetOf(START + 150 * 10000L)
+    LineIndex.update(recording, 10) == 15
+    Files.size(LineIndex.indexPath(recording)) == indexSize + 5 * 16
+
+    when:
+    append('\n')
+    (151..<161).each { append(line(START + it * 10000L) + '\n') }
+
+    then:
+    LineIndex.update(recording, 10) == 17
+    LineIndex.seek(recording, START + 155 * 10000L, 10) == offsetOf(START + 155 * 10000L)
+  }
+
+  def 'the index is rebuilt for another recording or interval'() {
+    given:
+    (0..<100).each { append(line(START + it * 10000L) + '\n') }
+    LineIndex.update(recording, 10)
+
+    when: 'the recording is replaced by one shifted by a day'
+    Files.delete(recording)
+    (0..<100).each { append(line(START + 86400000L + it * 10000L) + '\n') }
+
+    then:
+    LineIndex.seek(recording, START + 86400000L + 42 * 10000L, 10) == offsetOf(START + 86400000L + 42 * 10000L)
+    LineIndex.update(recording, 25) == 4
+    LineIndex.seek(recording, START + 86400000L + 42 * 10000L, 25) == offsetOf(START + 86400000L + 42 * 10000L)
+  }
+
+  def 'a recording without timestamps cannot be seeked'() {
+    given:
+    Files.copy(new File('src/test/resources/two-hours-of-bus-msgs.txt').toPath(), recording)
+
+    expect:
+    LineIndex.seek(recording, START, 10) == -1
+  }
+
+  def 'a text file is replayed from the start_time'() {
+    given:
+    Vertx vertx = Vertx.vertx()
+    long start = new SimpleDateFormat('yyyy-MM-dd HH:mm:ss').parse('2017-07-14 02:40:00').time
+    (0..<500).each { append(line(start - 2000000L + it * 10000L) + '\n') }
+    List<Long> replayed = []
+    vertx.eventBus().consumer('home.heatpump.replay.index') { message ->
+      replayed << new JsonArray(message.body().toString()).getJsonObject(0).getLong('ts')
+      message.reply(null)
+    }
+
+    when:
+    vertx.deployVerticle(ReplayVerticle.name, new DeploymentOptions().setConfig(new JsonObject()
+      .put('event_bus', 'home.heatpump.replay.index')
+      .put('text_file', recording.toString())
+      .put('start_time', '2017-07-14 02:40:00')
+      .put('index_interval', 50)
+      .put('pace', 'max')))
+
+    then:
+    new PollingConditions(timeout: 10).eventually { assert replayed.size() == 300 }
+    replayed == (200..<500).collect { start - 2000000L + it * 10000L }
+    Files.exists(LineIndex.indexPath(recording))
+
+    cleanup:
+    vertx.close()
+  }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2017 CodeDroids ApS (http://www.codedroids.dk)
+ *
+ * This file is part of the HeatPump Vert.x example
+ *
+ * The HeatPump Vert.x example is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * The HeatPump Vert.x example is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the HeatPump Vert.x example. If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.codedroids.home.heatpump
+
+import io.vertx.core.DeploymentOptions
+import io.vertx.core.Vertx
+import io.vertx.core.buffer.Buffer
+import io.vertx.core.json.JsonObject
+import spock.lang.Shared
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.TimeUnit
+import java.util.zip.GZIPOutputStream
+import java.util.zip.ZipException
+
+/**
+ * @author Claus Priisholm.
+ */
+class LineReaderSpec extends Specification {
+  @Shared Vertx vertx = Vertx.vertx()
+
+  Path directory
+
+  def setup() {
+    directory = Files.createTempDirectory('lines')
+  }
+
+  def cleanup() {
+    directory.toFile().deleteDir()
+  }
+
+  def cleanupSpec() {
+    vertx.close()
+  }
+
+  byte[] gzip(String text) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream()
+    new GZIPOutputStream(bytes).withCloseable { it.write(text.getBytes('UTF-8')) }
+    return bytes.toByteArray()
+  }
+
+  Path write(String name, byte[] content) {
+    Path path = directory.resolve(name)
+    Files.write(path, content)
+    return path
+  }
+
+  /** All lines (and null at the end) read on a context, or the failure */
+  List<String> readAll(Path path) {
+    CompletableFuture<List<String>> result = new CompletableFuture<>()
+    vertx.runOnContext {
+      LineReader reader = new LineReader(vertx, path.toString())
+      List<String> lines = []
+      Closure next
+      next = {
+        reader.readLine { ar ->
+          if(ar.failed()) {
+            reader.close()
+            result.completeExceptionally(ar.cause())
+          } else {
+            lines << ar.result()
+            if(ar.result() == null) {
+              reader.close()
+              result.complete(lines)
+            } else
+              vertx.runOnContext { next() } // lines already parsed are handed over right away, so not to recurse
+          }
+        }
+      }
+      next()
+    }
+    try {
+      return result.get(10, TimeUnit.SECONDS)
+    } catch(java.util.concurrent.ExecutionException e) {
+      throw e.cause
+    }
+  }
+
+  def 'lines are read in order, with or without a newline at the end'() {
+    expect:
+    readAll(write('a.txt', text.getBytes('UTF-8'))) == lines
+
+    where:
+    text                      | lines
+    ''                        | [null]
+    'one'                     | ['one', null]
+    'one\ntwo\n'              | ['one', 'two', null]
+    'one\r\n\r\nthree æøå\r\n' | ['one', '', 'three æøå', null]
+  }
+
+  def 'a big file is read through a small buffer of lines'() {
+    given: 'more lines than fit in a read buffer'
+    List<String> expected = (0..<20000).collect { "line $it of the big file".toString() }
+    Path path = write('big.txt', (expected.join('\n') + '\n').getBytes('UTF-8'))
+
+    expect:
+    readAll(path) == expected + [null]
+  }
+
+  def 'gzip files are inflated on the fly, also when they have several members'() {
+    given:
+    List<String> expected = (0..<20000).collect { "line $it of the big file".toString() }
+    ByteArrayOutputStream members = new ByteArrayOutputStream()
+    members.write(gzip(expected.subList(0, 15000).join('\n') + '\n'))
+    members.write(gzip(expected.subList(15000, 20000).join('\n')))
+
+    expect:
+    readAll(write('big.txt.gz', members.toByteArray())) == expected + [null]
+  }
+
+  def 'truncated or corrupt gzip files fail'() {
+    given:
+    byte[] content = gzip((0..<1000).collect { "line $it" }.join('\n'))
+
+    when:
+    readAll(write('truncated.gz', Arrays.copyOf(content, content.length - 4)))
+    then:
+    thrown(ZipException)
+
+    when:
+    content[content.length - 8] ^= 1 // the CRC
+    readAll(write('corrupt.gz', content))
+    then:
+    thrown(ZipException)
+
+    when:
+    readAll(write('plain.gz', 'not compressed\n'.getBytes('UTF-8')))
+    then:
+    thrown(ZipException)
+  }
+
+  def 'the optional fields of the gzip header are skipped'() {
+    given: 'a header with FEXTRA, FNAME, FCOMMENT and FHCRC'
+    Buffer header = Buffer.buffer()
+      .appendUnsignedByte((short) 0x1f).appendUnsignedByte((short) 0x8b).appendByte((byte) 8).appendByte((byte) (4 | 8 | 16 | 2))
+      .appendBytes(new byte[6])
+      .appendUnsignedShortLE(3).appendString('xyz')
+      .appendString('name').appendByte((byte) 0)
+      .appendString('comment').appendByte((byte) 0)
+      .appendBytes(new byte[2])
+
+    expect:
+    (1..<header.length()).every { LineReader.headerLength(header.getBuffer(0, it)) == -1 }
+    LineReader.headerLength(header) == 10 + 5 + 5 + 8 + 2
+  }
+
+  def 'a gzip recording is replayed as fast as acknowledged'() {
+    given:
+    List<String> recorded = new File('src/test/resources/two-hours-of-bus-msgs.txt').readLines()
+    Path path = write('bus-msgs.txt.gz', gzip(recorded.join('\n') + '\n'))
+    List<String> replayed = []
+    vertx.eventBus().consumer('home.heatpump.replay.gz') { message ->
+      replayed << message.body().toString()
+      message.reply(null)
+    }
+
+    when:
+    String replayId = null
+    vertx.deployVerticle(ReplayVerticle.name, new DeploymentOptions().setConfig(new JsonObject()
+      .put('event_bus', 'home.heatpump.replay.gz')
+      .put('text_file', path.toString())
+      .put('pace', 'max')
+      .put('in_flight', 10))) { ar -> replayId = ar.result() }
+
+    then:
+    new PollingConditions(timeout: 10).eventually { assert replayed.size() == recorded.size() }
+    replayed == recorded
+
+    cleanup:
+    vertx.undeploy(replayId)
+  }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2017 CodeDroids ApS (http://www.codedroids.dk)
+ *
+ * This file is part of the HeatPump Vert.x example
+ *
+ * The HeatPump Vert.x example is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * The HeatPump Vert.x example is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the HeatPump Vert.x example. If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.codedroids.home.heatpump
+
+import io.vertx.core.json.JsonObject
+import spock.lang.Specification
+
+/**
+ * A short run of the load harness, mostly to keep it working.
+ *
+ * @author Claus Priisholm.
+ */
+class LoadHarnessSpec extends Specification {
+
+  def 'lines flow from the load devices to the database and the panel clients'() {
+    given:
+    LoadHarness.Settings settings = new LoadHarness.Settings()
+    settings.devices = 4
+    settings.rate = 20
+    settings.warmup = 1
+    settings.seconds = 2
+    settings.clients = 2
+    settings.loggers = 2
+    settings.batchSize = 10
+    settings.quiet = true
+
+    when:
+    JsonObject report = new LoadHarness(settings).run()
+
+    then:
+    report.getDouble('lines_per_second') > 0
+    report.getDouble('rows_per_second') > 0
+    report.getDouble('panel_messages_per_second') > 0
+    report.getDouble('panel_latency_p99_ms') > 0
+    report.getLong('failed_batches') == 0
+  }
+}
@@ -0,0 +1,849 @@
+/*
+ * Copyright (c) 2017 CodeDroids ApS (http://www.codedroids.dk)
+ *
+ * This file is part of the HeatPump Vert.x example
+ *
+ * The HeatPump Vert.x example is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * The HeatPump Vert.x example is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the HeatPump Vert.x example. If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.codedroids.home.heatpump
+
+import io.vertx.core.DeploymentOptions
+import io.vertx.core.Vertx
+import io.vertx.core.json.JsonArray
+import io.vertx.core.json.JsonObject
+import spock.lang.Shared
+import spock.lang.Specification
+import spock.lang.Unroll
+import spock.util.concurrent.PollingConditions
+
+import java.sql.Connection
+import java.sql.DriverManager
+import java.nio.file.Files
+import java.nio.file.Path
+import java.text.SimpleDateFormat
+
+/**
+ * Runs the LoggerVerticle against an in-memory HSQLDB with the tables from create-tables.sql.
+ *
+ * @author Claus Priisholm.
+ */
+class LoggerVerticleSpec extends Specification {
+  @Shared Vertx vertx
+  @Shared String url = 'jdbc:hsqldb:mem:logger'
+  @Shared Connection connection
+  @Shared String eventBusAddress = 'home.heatpump.data.logger'
+
+  def setupSpec() {
+    connection = DriverManager.getConnection(url, 'SA', '')
+    new File('src/test/resources/create-tables.sql').text.split(';').findAll { it.trim() }.each { sql ->
+      connection.createStatement().execute(sql)
+    }
+
+    vertx = Vertx.vertx()
+    JsonObject config = new JsonObject()
+      .put('event_bus', eventBusAddress)
+      .put('database', new JsonObject()
+        .put('url', url)
+        .put('user', 'SA')
+        .put('password', '')
+        .put('driver_class', 'org.hsqldb.jdbcDriver'))
+    String deploymentId = null
+    vertx.deployVerticle(LoggerVerticle.name, new DeploymentOptions().setConfig(config)) { ar -> deploymentId = ar.result() }
+    new PollingConditions(timeout: 5).eventually { assert deploymentId }
+  }
+
+  def cleanupSpec() {
+    vertx.close()
+    connection.createStatement().execute('shutdown')
+  }
+
+  List<List> rows(String table) {
+    def result = connection.createStatement().executeQuery("select ts, sensor, data from $table order by ts, sensor")
+    List<List> rows = []
+    while(result.next())
+      rows << [result.getTimestamp(1).time, result.getString(2), result.getDouble(3)]
+    return rows
+  }
+
+  def setup() {
+    connection.createStatement().execute('delete from pump_temperature')
+    connection.createStatement().execute('delete from pump_current')
+  }
+
+  def 'rows are stamped with the time the reading arrived'() {
+    given:
+    long arrived = new SimpleDateFormat('yyyy-MM-dd HH:mm:ss').parse('2017-01-16 12:00:00').time
+    Reading reading = new Reading()
+    new SerialVerticle().decodeCsv('-0.7,37.2,28.6,8.8,33.7,1.2,1.2,1.2', reading)
+    reading.setTimestamp(arrived)
+
+    when:
+    vertx.eventBus().publish(eventBusAddress, reading)
+
+    then:
+    new PollingConditions(timeout: 5).eventually {
+      assert rows('pump_temperature').size() == 5
+      assert rows('pump_current').size() == 3
+    }
+    (rows('pump_temperature') + rows('pump_current')).every { it[0] == arrived }
+    rows('pump_temperature').find { it[1] == 'tank' }[2] == 33.7d
+  }
+
+  def 'absent values are not stored'() {
+    given:
+    Reading reading = new Reading()
+    reading.clear()
+    reading.set(Sensor.l1.order() - 1, 2.0d)
+    reading.setTimestamp(IngestClock.now())
+
+    when:
+    vertx.eventBus().publish(eventBusAddress, reading)
+
+    then:
+    new PollingConditions(timeout: 5).eventually {
+      assert rows('pump_current').collect { it[1] } == ['l1']
+    }
+    rows('pump_temperature').isEmpty()
+  }
+
+  def 'data sets are written in batches of batch_size and the rest when stopped'() {
+    given:
+    String address = eventBusAddress + '.batch'
+    JsonObject config = new JsonObject()
+      .put('event_bus', address)
+      .put('batch_size', 10)
+      .put('batch_delay', 60000)
+      .put('database', new JsonObject()
+        .put('url', url)
+        .put('user', 'SA')
+        .put('password', '')
+        .put('driver_class', 'org.hsqldb.jdbcDriver'))
+    String deploymentId = null
+    vertx.deployVerticle(LoggerVerticle.name, new DeploymentOptions().setConfig(config)) { ar -> deploymentId = ar.result() }
+    new PollingConditions(timeout: 5).eventually { assert deploymentId }
+    long start = IngestClock.now()
+
+    when:
+    (0..<25).each { i ->
+      Reading reading = new Reading()
+      new SerialVerticle().decodeCsv('-0.7,37.2,28.6,8.8,33.7,1.2,1.2,1.2', reading)
+      reading.setTimestamp(start + i * 1000L)
+      vertx.eventBus().publish(address, reading)
+    }
+
+    then: 'two full batches are written right away, the rest waits for the delay'
+    new PollingConditions(timeout: 5).eventually {
+      assert rows('pump_current').size() == 20 * 3
+    }
+    Thread.sleep(200)
+    rows('pump_current').size() == 20 * 3
+
+    when:
+    vertx.undeploy(deploymentId)
+
+    then: 'the rest is written when the verticle stops'
+    new PollingConditions(timeout: 5).eventually {
+      assert rows('pump_current').size() == 25 * 3
+      assert rows('pump_temperature').size() == 25 * 5
+    }
+  }
+
+  def 'the data sets of the last batch are acknowledged or failed when stopped'() {
+    given:
+    String address = eventBusAddress + '.stop'
+    String deploymentId = null
+    vertx.deployVerticle(LoggerVerticle.name, new DeploymentOptions().setConfig(new JsonObject()
+      .put('event_bus', address)
+      .put('batch_size', 10)
+      .put('batch_delay', 60000)
+      .put('database', new JsonObject()
+        .put('url', url)
+        .put('user', 'SA')
+        .put('password', '')
+        .put('driver_class', 'org.hsqldb.jdbcDriver')))) { ar -> deploymentId = ar.result() }
+    new PollingConditions(timeout: 5).eventually { assert deploymentId }
+    long start = new SimpleDateFormat('yyyy-MM-dd HH:mm:ss').parse('2017-01-18 13:00:00').time
+
+    when: 'data sets waiting for the batch delay, the last a duplicate'
+    Map<Integer, Boolean> acknowledged = [:].asSynchronized()
+    [0, 1, 1].eachWithIndex { i, n ->
+      Reading reading = new Reading()
+      new SerialVerticle().decodeCsv("-0.7,37.2,28.6,8.8,${30 + i},1.2,1.2,1.2", reading)
+      reading.setTimestamp(start + i * 10000L)
+      vertx.eventBus().send(address, reading) { ar -> acknowledged[n] = ar.succeeded() }
+    }
+    Thread.sleep(200)
+    Throwable undeployFailure = null
+    boolean undeployed = false
+    vertx.undeploy(deploymentId) { ar ->
+      undeployFailure = ar.cause()
+      undeployed = true
+    }
+
+    then: 'each is answered as it is written, and the stop fails as a data set was lost'
+    new PollingConditions(timeout: 5).eventually {
+      assert undeployed
+      assert acknowledged.size() == 3
+    }
+    acknowledged == [0: true, 1: true, 2: false]
+    undeployFailure.message.startsWith('1 of 3 data set(s) lost')
+    rows('pump_temperature').findAll { it[1] == 'tank' }.collect { it[2] } == [30.0d, 31.0d]
+  }
+
+  def 'data sets are kept in the journal while the database is unavailable'() {
+    given: 'a database without the tables, so the inserts fail'
+    String journalUrl = 'jdbc:hsqldb:mem:journal'
+    Connection journalDb = DriverManager.getConnection(journalUrl, 'SA', '')
+    Path directory = Files.createTempDirectory('journal')
+    String address = eventBusAddress + '.journal'
+    JsonObject config = new JsonObject()
+      .put('event_bus', address)
+      .put('batch_size', 5)
+      .put('batch_delay', 100)
+      .put('journal', new JsonObject()
+        .put('directory', directory.toString())
+        .put('segment_size', 1024)
+        .put('retry_delay', 200))
+      .put('database', new JsonObject()
+        .put('url', journalUrl)
+        .put('user', 'SA')
+        .put('password', '')
+        .put('driver_class', 'org.hsqldb.jdbcDriver'))
+    String deploymentId = null
+    vertx.deployVerticle(LoggerVerticle.name, new DeploymentOptions().setConfig(config)) { ar -> deploymentId = ar.result() }
+    new PollingConditions(timeout: 5).eventually { assert deploymentId }
+    long start = IngestClock.now()
+
+    when:
+    (0..<40).each { i ->
+      Reading reading = new Reading()
+      new SerialVerticle().decodeCsv('-0.7,37.2,28.6,8.8,33.7,1.2,1.2,1.2', reading)
+      reading.setTimestamp(start + i * 1000L)
+      vertx.eventBus().publish(address, reading)
+    }
+    Thread.sleep(500)
+
+    then: 'they are in the journal, more than one segment of it'
+    directory.toFile().list().findAll { it.endsWith('.seg') }.size() > 1
+
+    when: 'the database is back'
+    new File('src/test/resources/create-tables.sql').text.split(';').findAll { it.trim() }.each { sql ->
+      journalDb.createStatement().execute(sql)
+    }
+
+    then: 'all of them are written and the journal is drained'
+    new PollingConditions(timeout: 5).eventually {
+      def result = journalDb.createStatement().executeQuery('select count(*) from pump_current')
+      result.next()
+      assert result.getInt(1) == 40 * 3
+      assert directory.toFile().list().findAll { it.endsWith('.seg') }.size() == 1
+    }
+
+    cleanup:
+    vertx.undeploy(deploymentId)
+    Thread.sleep(200)
+    journalDb.createStatement().execute('shutdown')
+    directory.toFile().deleteDir()
+  }
+
+  def 'a data set in the journal the database will not take is lost, not retried'() {
+    given:
+    Path directory = Files.createTempDirectory('journal')
+    String address = eventBusAddress + '.journal.duplicate'
+    String deploymentId = null
+    vertx.deployVerticle(LoggerVerticle.name, new DeploymentOptions().setConfig(new JsonObject()
+      .put('event_bus', address)
+      .put('batch_size', 4)
+      .put('batch_delay', 100)
+      .put('journal', new JsonObject()
+        .put('directory', directory.toString())
+        .put('retry_delay', 60000))
+      .put('database', new JsonObject()
+        .put('url', url)
+        .put('user', 'SA')
+        .put('password', '')
+        .put('driver_class', 'org.hsqldb.jdbcDriver')))) { ar -> deploymentId = ar.result() }
+    new PollingConditions(timeout: 5).eventually { assert deploymentId }
+    long start = new SimpleDateFormat('yyyy-MM-dd HH:mm:ss').parse('2017-01-18 14:00:00').time
+    def publish = { int i ->
+      Reading reading = new Reading()
+      new SerialVerticle().decodeCsv("-0.7,37.2,28.6,8.8,${30 + i},1.2,1.2,1.2", reading)
+      reading.setTimestamp(start + i * 10000L)
+      vertx.eventBus().publish(address, reading)
+    }
+
+    when: 'the second data set is stored already, e.g. written before a failed checkpoint'
+    connection.createStatement().execute("insert into pump_current (ts, sensor, data) values ('2017-01-18 14:00:10', 'l1', 1.2)")
+    (0..<4).each { publish(it) }
+
+    then: 'the other data sets are written'
+    new PollingConditions(timeout: 5).eventually {
+      assert rows('pump_temperature').findAll { it[1] == 'tank' }.collect { it[2] } == [30.0d, 32.0d, 33.0d]
+    }
+
+    when: 'more data sets arrive'
+    (4..<6).each { publish(it) }
+
+    then: 'they are not held up behind it'
+    new PollingConditions(timeout: 5).eventually {
+      assert rows('pump_temperature').findAll { it[1] == 'tank' }.collect { it[2] } == [30.0d, 32.0d, 33.0d, 34.0d, 35.0d]
+    }
+
+    cleanup:
+    vertx.undeploy(deploymentId)
+    Thread.sleep(200)
+    directory.toFile().deleteDir()
+  }
+
+  def 'with storage tsdb the values are stored as time series the ReplayVerticle can replay'() {
+    given:
+    Path directory = Files.createTempDirectory('tsdb')
+    String address = eventBusAddress + '.tsdb'
+    JsonObject config = new JsonObject()
+      .put('event_bus', address)
+      .put('storage', 'tsdb')
+      .put('tsdb', new JsonObject().put('directory', directory.toString()).put('block_points', 4))
+      .put('batch_size', 5)
+    String deploymentId = null
+    vertx.deployVerticle(LoggerVerticle.name, new DeploymentOptions().setConfig(config)) { ar -> deploymentId = ar.result() }
+    new PollingConditions(timeout: 5).eventually { assert deploymentId }
+    long start = new SimpleDateFormat('yyyy-MM-dd HH:mm:ss').parse('2017-01-16 12:00:00').time
+
+    when:
+    (0..<12).each { i ->
+      Reading reading = new Reading()
+      new SerialVerticle().decodeCsv("-0.7,37.2,28.6,8.8,${30 + i},1.2,1.2,1.2", reading)
+      reading.setTimestamp(start + i * 10000L)
+      vertx.eventBus().publish(address, reading)
+    }
+    boolean undeployed = false
+    Thread.sleep(200)
+    vertx.undeploy(deploymentId) { undeployed = true }
+    new PollingConditions(timeout: 5).eventually { assert undeployed }
+
+    then:
+    Files.size(directory.resolve('tank.blk')) < 12 * 8
+
+    when:
+    String replayAddress = address + '.replay'
+    List<JsonArray> dataSets = []
+    vertx.eventBus().consumer(replayAddress) { message -> dataSets << new JsonArray(message.body().toString()) }
+    vertx.deployVerticle(ReplayVerticle.name, new DeploymentOptions().setConfig(new JsonObject()
+      .put('event_bus', replayAddress)
+      .put('tsdb', directory.toString())
+      .put('start_time', '2017-01-16 12:00:10')
+      .put('sample_interval', 1))) { ar -> deploymentId = ar.result() }
+
+    then:
+    new PollingConditions(timeout: 5).eventually {
+      assert dataSets.size() >= 2
+    }
+    dataSets[0].size() == 8
+    dataSets[0].find { it.getString('s') == 'tank' }.getDouble('d') == 31.0d
+    dataSets[1].find { it.getString('s') == 'tank' }.getDouble('d') == 32.0d
+    dataSets[0].find { it.getString('s') == 'l3' }.getString('t') == 'powr'
+
+    cleanup:
+    vertx.undeploy(deploymentId)
+    Thread.sleep(200)
+    directory.toFile().deleteDir()
+  }
+
+  def 'rollups are written as the periods close and can be rebuilt from the rows'() {
+    given:
+    ['pump_rollup_1m', 'pump_rollup_1h', 'pump_rollup_1d'].each { connection.createStatement().execute("delete from $it") }
+    String address = eventBusAddress + '.rollups'
+    JsonObject config = new JsonObject()
+      .put('event_bus', address)
+      .put('rollups', true)
+      .put('batch_size', 4)
+      .put('database', new JsonObject()
+        .put('url', url)
+        .put('user', 'SA')
+        .put('password', '')
+        .put('driver_class', 'org.hsqldb.jdbcDriver'))
+    String deploymentId = null
+    vertx.deployVerticle(LoggerVerticle.name, new DeploymentOptions().setConfig(config)) { ar -> deploymentId = ar.result() }
+    new PollingConditions(timeout: 5).eventually { assert deploymentId }
+    long start = new SimpleDateFormat('yyyy-MM-dd HH:mm:ss').parse('2017-01-16 12:00:00').time
+    def rollups = { String table ->
+      def result = connection.createStatement().executeQuery("select ts, min_data, max_data, sum_data, cnt from $table where sensor = 'tank' order by ts")
+      List<List> rows = []
+      while(result.next())
+        rows << [result.getTimestamp(1).time, result.getDouble(2), result.getDouble(3), result.getDouble(4), result.getInt(5)]
+      rows
+    }
+
+    when: 'two minutes of readings'
+    (0..<12).each { i ->
+      Reading reading = new Reading()
+      new SerialVerticle().decodeCsv("-0.7,37.2,28.6,8.8,${30 + i},1.2,1.2,1.2", reading)
+      reading.setTimestamp(start + i * 10000L)
+      vertx.eventBus().publish(address, reading)
+    }
+
+    then: 'the first minute is written once it is over'
+    new PollingConditions(timeout: 5).eventually {
+      assert rollups('pump_rollup_1m') == [[start, 30.0d, 35.0d, 195.0d, 6]]
+    }
+
+    when: 'stopped, the periods not over yet are written as well'
+    boolean undeployed = false
+    vertx.undeploy(deploymentId) { undeployed = true }
+    new PollingConditions(timeout: 5).eventually { assert undeployed }
+
+    then:
+    rollups('pump_rollup_1m') == [[start, 30.0d, 35.0d, 195.0d, 6], [start + 60000L, 36.0d, 41.0d, 231.0d, 6]]
+    rollups('pump_rollup_1h') == [[start, 30.0d, 41.0d, 426.0d, 12]]
+
+    when: 'the hour is lost and the day is rebuilt'
+    connection.createStatement().execute('delete from pump_rollup_1h')
+    vertx.deployVerticle(LoggerVerticle.name, new DeploymentOptions().setConfig(config)) { ar -> deploymentId = ar.result() }
+    JsonObject reply = null
+    new PollingConditions(timeout: 5).eventually {
+      assert deploymentId
+      vertx.eventBus().send(address + '.backfill', new JsonObject().put('from', '2017-01-16').put('to', '2017-01-17').encode()) { ar ->
+        if(ar.succeeded())
+          reply = ar.result().body()
+      }
+      Thread.sleep(100)
+      assert reply
+    }
+
+    then:
+    reply == new JsonObject().put('days', 1).put('rollups', 8 * 4)
+    rollups('pump_rollup_1h') == [[start, 30.0d, 41.0d, 426.0d, 12]]
+    rollups('pump_rollup_1m').size() == 2
+    rollups('pump_rollup_1d').collect { it[4] } == [12]
+
+    cleanup:
+    vertx.undeploy(deploymentId)
+  }
+
+  def 'with ingest shared each data set is written by one of the instances'() {
+    given:
+    ['pump_rollup_1m', 'pump_rollup_1h', 'pump_rollup_1d'].each { connection.createStatement().execute("delete from $it") }
+    String address = eventBusAddress + '.shared'
+    JsonObject config = new JsonObject()
+      .put('event_bus', address)
+      .put('ingest', 'shared')
+      .put('rollups', true)
+      .put('batch_size', 2)
+      .put('database', new JsonObject()
+        .put('url', url)
+        .put('user', 'SA')
+        .put('password', '')
+        .put('driver_class', 'org.hsqldb.jdbcDriver')
+        .put('dialect', 'merge'))
+    List<String> deploymentIds = []
+    3.times {
+      vertx.deployVerticle(LoggerVerticle.name, new DeploymentOptions().setConfig(config)) { ar -> deploymentIds << ar.result() }
+    }
+    new PollingConditions(timeout: 5).eventually { assert deploymentIds.size() == 3 }
+    long start = new SimpleDateFormat('yyyy-MM-dd HH:mm:ss').parse('2017-01-18 10:00:00').time
+
+    when:
+    (0..<30).each { i ->
+      Reading reading = new Reading()
+      new SerialVerticle().decodeCsv("-0.7,37.2,28.6,8.8,${30 + i},1.2,1.2,1.2", reading)
+      reading.setTimestamp(start + i * 10000L)
+      vertx.eventBus().publish(address, reading)
+    }
+
+    then: 'every data set written once'
+    new PollingConditions(timeout: 5).eventually {
+      assert rows('pump_current').size() == 30 * 3
+    }
+    rows('pump_temperature').findAll { it[1] == 'tank' }.collect { it[2] } == (30..<60).collect { it as double }
+    vertx.sharedData().getLocalMap(LoggerVerticle.name).size() == 3
+
+    when: 'stopped, the rollups of each instance are merged'
+    deploymentIds.each { vertx.undeploy(it) }
+    def hour = {
+      def result = connection.createStatement().executeQuery("select min_data, max_data, sum_data, cnt from pump_rollup_1h where sensor = 'tank'")
+      List<List> rows = []
+      while(result.next())
+        rows << [result.getDouble(1), result.getDouble(2), result.getDouble(3), result.getInt(4)]
+      rows
+    }
+
+    then:
+    new PollingConditions(timeout: 5).eventually {
+      assert hour() == [[30.0d, 59.0d, (30..<60).sum() as double, 30]]
+    }
+    vertx.sharedData().getLocalMap(LoggerVerticle.name).isEmpty()
+  }
+
+  def 'with the plain dialect a duplicate row in a batch only loses its own data set'() {
+    given:
+    String address = eventBusAddress + '.duplicate'
+    String deploymentId = null
+    vertx.deployVerticle(LoggerVerticle.name, new DeploymentOptions().setConfig(new JsonObject()
+      .put('event_bus', address)
+      .put('batch_size', 4)
+      .put('batch_delay', 60000)
+      .put('database', new JsonObject()
+        .put('url', url)
+        .put('user', 'SA')
+        .put('password', '')
+        .put('driver_class', 'org.hsqldb.jdbcDriver')))) { ar -> deploymentId = ar.result() }
+    new PollingConditions(timeout: 5).eventually { assert deploymentId }
+    long start = new SimpleDateFormat('yyyy-MM-dd HH:mm:ss').parse('2017-01-18 12:00:00').time
+
+    when: 'the second data set twice in one batch'
+    Map<Integer, Boolean> acknowledged = [:].asSynchronized()
+    [0, 1, 1, 2].eachWithIndex { i, n ->
+      Reading reading = new Reading()
+      new SerialVerticle().decodeCsv("-0.7,37.2,28.6,8.8,${30 + i},1.2,1.2,1.2", reading)
+      reading.setTimestamp(start + i * 10000L)
+      vertx.eventBus().send(address, reading) { ar -> acknowledged[n] = ar.succeeded() }
+    }
+
+    then: 'the other data sets are written, only the duplicate fails'
+    new PollingConditions(timeout: 5).eventually { assert acknowledged.size() == 4 }
+    acknowledged == [0: true, 1: true, 2: false, 3: true]
+    rows('pump_current').size() == 3 * 3
+    rows('pump_temperature').findAll { it[1] == 'tank' }.collect { it[2] } == [30.0d, 31.0d, 32.0d]
+
+    cleanup:
+    vertx.undeploy(deploymentId)
+  }
+
+  def 'with a dialect rows already there are ignored'() {
+    given:
+    ['pump_rollup_1m', 'pump_rollup_1h', 'pump_rollup_1d'].each { connection.createStatement().execute("delete from $it") }
+    String address = eventBusAddress + '.dialect'
+    String deploymentId = null
+    vertx.deployVerticle(LoggerVerticle.name, new DeploymentOptions().setConfig(new JsonObject()
+      .put('event_bus', address)
+      .put('batch_size', 2)
+      .put('rollups', true)
+      .put('database', new JsonObject()
+        .put('url', url)
+        .put('user', 'SA')
+        .put('password', '')
+        .put('driver_class', 'org.hsqldb.jdbcDriver')
+        .put('dialect', 'merge')))) { ar -> deploymentId = ar.result() }
+    new PollingConditions(timeout: 5).eventually { assert deploymentId }
+    long start = new SimpleDateFormat('yyyy-MM-dd HH:mm:ss').parse('2017-01-18 11:00:00').time
+
+    when: 'the first data set twice, in separate batches'
+    [0, 1, 0, 2].each { i ->
+      Reading reading = new Reading()
+      new SerialVerticle().decodeCsv("-0.7,37.2,28.6,8.8,${30 + i},1.2,1.2,1.2", reading)
+      reading.setTimestamp(start + i * 10000L)
+      vertx.eventBus().publish(address, reading)
+    }
+
+    then: 'the batch with it is written all the same'
+    new PollingConditions(timeout: 5).eventually {
+      assert rows('pump_current').size() == 3 * 3
+    }
+    rows('pump_temperature').findAll { it[1] == 'tank' }.collect { it[2] } == [30.0d, 31.0d, 32.0d]
+
+    when: 'stopped, so the rollups are written'
+    boolean undeployed = false
+    vertx.undeploy(deploymentId) { undeployed = true }
+    new PollingConditions(timeout: 5).eventually { assert undeployed }
+    def result = connection.createStatement().executeQuery("select min_data, max_data, sum_data, cnt from pump_rollup_1m where sensor = 'tank'")
+    result.next()
+
+    then: 'the row written twice is counted once'
+    [result.getDouble(1), result.getDouble(2), result.getDouble(3), result.getInt(4)] == [30.0d, 32.0d, 93.0d, 3]
+  }
+
+  @Unroll
+  def 'the database is replayed a sample per period, with prefetch #prefetch'() {
+    given: 'five periods, spread over three chunks of two periods, and a second sample in one of them'
+    long start = new SimpleDateFormat('yyyy-MM-dd HH:mm:ss').parse('2017-01-18 08:00:00').time
+    (0..<5).each { i ->
+      Reading reading = new Reading()
+      new SerialVerticle().decodeCsv("-0.7,37.2,28.6,8.8,${40 + i},${i},1.2,1.2", reading)
+      reading.setTimestamp(start + i * 10000L + 3000L)
+      vertx.eventBus().publish(eventBusAddress, reading)
+    }
+    Reading later = new Reading()
+    new SerialVerticle().decodeCsv('-0.7,37.2,28.6,8.8,99,9,1.2,1.2', later)
+    later.setTimestamp(start + 2 * 10000L + 6000L)
+    vertx.eventBus().publish(eventBusAddress, later)
+    new PollingConditions(timeout: 5).eventually { assert rows('pump_current').size() == 6 * 3 }
+    String address = eventBusAddress + '.prefetch' + prefetch
+    List<JsonArray> dataSets = []
+    vertx.eventBus().consumer(address) { message -> dataSets << new JsonArray(message.body().toString()) }
+
+    when:
+    String replayId = null
+    vertx.deployVerticle(ReplayVerticle.name, new DeploymentOptions().setConfig(new JsonObject()
+      .put('event_bus', address)
+      .put('database', new JsonObject()
+        .put('url', url)
+        .put('user', 'SA')
+        .put('password', '')
+        .put('driver_class', 'org.hsqldb.jdbcDriver'))
+      .put('start_time', '2017-01-18 08:00:00')
+      .put('prefetch', prefetch)
+      .put('sample_interval', 1))) { ar -> replayId = ar.result() }
+
+    then: 'a data set per period, the first sample in it'
+    new PollingConditions(timeout: 10).eventually {
+      assert dataSets.size() >= 6
+    }
+    dataSets[0..<5].collect { set -> set.find { it.getString('s') == 'tank' }.getDouble('d') } == [40.0d, 41.0d, 42.0d, 43.0d, 44.0d]
+    dataSets[0..<5].every { it.size() == 5 + 6 } // the l1 hack adds l1, l2 and l3 again, see dataSet()
+    dataSets[3].find { it.getString('s') == 'l1' }.getDouble('d') == 3.0d
+    dataSets[5].isEmpty()
+
+    cleanup:
+    vertx.undeploy(replayId)
+
+    where:
+    prefetch << [20, 0]
+  }
+
+  def 'with pace max the data sets are sent as fast as acknowledged, in order and with in_flight at most'() {
+    given: 'four samples with a gap, and a consumer that takes its time to acknowledge'
+    long start = new SimpleDateFormat('yyyy-MM-dd HH:mm:ss').parse('2017-01-19 08:00:00').time
+    [0, 1, 2, 30].each { i ->
+      Reading reading = new Reading()
+      new SerialVerticle().decodeCsv("-0.7,37.2,28.6,8.8,${40 + i},1.2,1.2,1.2", reading)
+      reading.setTimestamp(start + i * 10000L + 3000L)
+      vertx.eventBus().publish(eventBusAddress, reading)
+    }
+    new PollingConditions(timeout: 5).eventually { assert rows('pump_current').size() == 4 * 3 }
+    String address = eventBusAddress + '.max'
+    List<JsonArray> dataSets = []
+    int unacknowledged = 0
+    int maxUnacknowledged = 0
+    vertx.eventBus().consumer(address) { message ->
+      dataSets << new JsonArray(message.body().toString())
+      maxUnacknowledged = Math.max(maxUnacknowledged, ++unacknowledged)
+      vertx.setTimer(50) { unacknowledged--; message.reply(null) }
+    }
+
+    when:
+    String replayId = null
+    vertx.deployVerticle(ReplayVerticle.name, new DeploymentOptions().setConfig(new JsonObject()
+      .put('event_bus', address)
+      .put('database', new JsonObject()
+        .put('url', url)
+        .put('user', 'SA')
+        .put('password', '')
+        .put('driver_class', 'org.hsqldb.jdbcDriver'))
+      .put('start_time', '2017-01-19 08:00:00')
+      .put('end_time', '2017-01-19 08:10:00')
+      .put('prefetch', 120)
+      .put('pace', 'max')
+      .put('in_flight', 2))) { ar -> replayId = ar.result() }
+
+    then: 'the empty periods are skipped, and each data set has the start of its period'
+    new PollingConditions(timeout: 5).eventually {
+      assert dataSets.size() == 4
+      assert unacknowledged == 0
+    }
+    dataSets.collect { set -> set.find { it.getString('s') == 'tank' }.getDouble('d') } == [40.0d, 41.0d, 42.0d, 70.0d]
+    dataSets.collect { it.getJsonObject(0).getLong('ts') } == [start, start + 10000L, start + 20000L, start + 300000L]
+    dataSets.every { set -> set.every { it.getLong('ts') == set.getJsonObject(0).getLong('ts') } }
+    maxUnacknowledged == 2
+
+    cleanup:
+    vertx.undeploy(replayId)
+  }
+
+  def 'with pace max a data set not acknowledged is sent again, one failed by the consumer is not'() {
+    given: 'a consumer that ignores the first c and fails d'
+    Path textFile = Files.createTempFile('replay', '.txt')
+    textFile.text = 'a\nb\nc\nd\ne\n'
+    String address = eventBusAddress + '.resend'
+    List<String> received = []
+    vertx.eventBus().consumer(address) { message ->
+      String body = message.body().toString()
+      received << body
+      if(body == 'd')
+        message.fail(500, 'bad data set')
+      else if(body != 'c' || received.count('c') > 1)
+        message.reply(null)
+    }
+
+    when:
+    String replayId = null
+    vertx.deployVerticle(ReplayVerticle.name, new DeploymentOptions().setConfig(new JsonObject()
+      .put('event_bus', address)
+      .put('text_file', textFile.toString())
+      .put('pace', 'max')
+      .put('in_flight', 1)
+      .put('send_timeout', 200))) { ar -> replayId = ar.result() }
+
+    then: 'c is sent again before going on'
+    new PollingConditions(timeout: 5).eventually { assert received.contains('e') }
+    received == ['a', 'b', 'c', 'c', 'd', 'e']
+
+    cleanup:
+    vertx.undeploy(replayId)
+    Files.delete(textFile)
+  }
+
+  def 'with pace max a backfill goes no faster than the LoggerVerticle writes'() {
+    given: 'three samples in the narrow schema, and a LoggerVerticle writing the wide schema'
+    connection.createStatement().execute('delete from pump_sample')
+    long start = new SimpleDateFormat('yyyy-MM-dd HH:mm:ss').parse('2017-01-20 08:00:00').time
+    (0..<3).each { i ->
+      Reading reading = new Reading()
+      new SerialVerticle().decodeCsv("-0.7,37.2,28.6,8.8,${40 + i},1.2,1.2,1.2", reading)
+      reading.setTimestamp(start + i * 10000L)
+      vertx.eventBus().publish(eventBusAddress, reading)
+    }
+    new PollingConditions(timeout: 5).eventually { assert rows('pump_current').size() == 3 * 3 }
+    JsonObject database = new JsonObject()
+      .put('url', url)
+      .put('user', 'SA')
+      .put('password', '')
+      .put('driver_class', 'org.hsqldb.jdbcDriver')
+    String address = eventBusAddress + '.backfill-max'
+    String loggerId = null
+    vertx.deployVerticle(LoggerVerticle.name, new DeploymentOptions().setConfig(new JsonObject()
+      .put('event_bus', address)
+      .put('schema', 'wide')
+      .put('batch_size', 2)
+      .put('batch_delay', 60000)
+      .put('database', database))) { ar -> loggerId = ar.result() }
+    new PollingConditions(timeout: 5).eventually { assert loggerId }
+
+    when:
+    String replayId = null
+    vertx.deployVerticle(ReplayVerticle.name, new DeploymentOptions().setConfig(new JsonObject()
+      .put('event_bus', address)
+      .put('database', database)
+      .put('start_time', '2017-01-20 08:00:00')
+      .put('end_time', '2017-01-20 08:01:00')
+      .put('pace', 'max')
+      .put('in_flight', 2))) { ar -> replayId = ar.result() }
+
+    then: 'the first batch is written once full, and acknowledged, the last one is left waiting for batch_delay'
+    new PollingConditions(timeout: 5).eventually {
+      def result = connection.createStatement().executeQuery('select ts, tank from pump_sample order by ts')
+      List<List> samples = []
+      while(result.next())
+        samples << [result.getTimestamp(1).time, result.getDouble(2)]
+      assert samples == [[start, 40.0d], [start + 10000L, 41.0d]]
+    }
+
+    when: 'the logger is stopped, writing the rest'
+    vertx.undeploy(loggerId)
+
+    then:
+    new PollingConditions(timeout: 5).eventually {
+      def result = connection.createStatement().executeQuery('select count(*) from pump_sample')
+      result.next()
+      assert result.getInt(1) == 3
+    }
+
+    cleanup:
+    vertx.undeploy(replayId)
+  }
+
+  def 'prefetch must be a multiple of the periods'() {
+    when:
+    Throwable failure = null
+    vertx.deployVerticle(ReplayVerticle.name, new DeploymentOptions().setConfig(new JsonObject()
+      .put('database', new JsonObject().put('url', url).put('driver_class', 'org.hsqldb.jdbcDriver'))
+      .put('prefetch', 15))) { ar -> failure = ar.cause() }
+
+    then:
+    new PollingConditions(timeout: 5).eventually {
+      assert failure instanceof IllegalArgumentException
+    }
+  }
+
+  def 'the wide schema is filled by the migration, written and replayed a sample per row'() {
+    given: 'three samples in the narrow schema'
+    connection.createStatement().execute('delete from pump_sample')
+    long start = new SimpleDateFormat('yyyy-MM-dd HH:mm:ss').parse('2017-01-17 08:00:00').time
+    (0..<3).each { i ->
+      Reading reading = new Reading()
+      new SerialVerticle().decodeCsv("-0.7,37.2,28.6,8.8,${40 + i},1.2,1.2,1.2", reading)
+      reading.setTimestamp(start + i * 10000L)
+      vertx.eventBus().publish(eventBusAddress, reading)
+    }
+    new PollingConditions(timeout: 5).eventually { assert rows('pump_current').size() == 3 * 3 }
+    JsonObject database = new JsonObject()
+      .put('url', url)
+      .put('user', 'SA')
+      .put('password', '')
+      .put('driver_class', 'org.hsqldb.jdbcDriver')
+    def samples = {
+      def result = connection.createStatement().executeQuery('select ts, tank, l3 from pump_sample order by ts')
+      List<List> rows = []
+      while(result.next())
+        rows << [result.getTimestamp(1).time, result.getDouble(2), result.getDouble(3)]
+      rows
+    }
+
+    when: 'migrated in chunks of a minute'
+    String migrationId = null
+    vertx.deployVerticle(MigrationVerticle.name, new DeploymentOptions().setConfig(new JsonObject()
+      .put('database', database)
+      .put('chunk_minutes', 1))) { ar -> migrationId = ar.result() }
+
+    then: 'it is done, and gone'
+    new PollingConditions(timeout: 5).eventually {
+      assert migrationId
+      assert !vertx.deploymentIDs().contains(migrationId)
+    }
+    samples() == [[start, 40.0d, 1.2d], [start + 10000L, 41.0d, 1.2d], [start + 20000L, 42.0d, 1.2d]]
+
+    when: 'written with the wide schema'
+    String address = eventBusAddress + '.wide'
+    String deploymentId = null
+    vertx.deployVerticle(LoggerVerticle.name, new DeploymentOptions().setConfig(new JsonObject()
+      .put('event_bus', address)
+      .put('schema', 'wide')
+      .put('batch_size', 1)
+      .put('database', database))) { ar -> deploymentId = ar.result() }
+    new PollingConditions(timeout: 5).eventually { assert deploymentId }
+    Reading reading = new Reading()
+    reading.clear()
+    reading.set(Sensor.tank.order() - 1, 43.0d)
+    reading.setTimestamp(start + 30000L)
+    vertx.eventBus().publish(address, reading)
+
+    then:
+    new PollingConditions(timeout: 5).eventually {
+      assert samples().size() == 4
+    }
+    samples()[3] == [start + 30000L, 43.0d, 0.0d] // null
+
+    when: 'replayed'
+    String replayAddress = address + '.replay'
+    List<JsonArray> dataSets = []
+    vertx.eventBus().consumer(replayAddress) { message -> dataSets << new JsonArray(message.body().toString()) }
+    String replayId = null
+    vertx.deployVerticle(ReplayVerticle.name, new DeploymentOptions().setConfig(new JsonObject()
+      .put('event_bus', replayAddress)
+      .put('schema', 'wide')
+      .put('database', database)
+      .put('start_time', '2017-01-17 08:00:10')
+      .put('sample_interval', 1))) { ar -> replayId = ar.result() }
+
+    then:
+    new PollingConditions(timeout: 5).eventually {
+      assert dataSets.size() >= 3
+    }
+    dataSets[0].size() == 8
+    dataSets[0].find { it.getString('s') == 'tank' }.getDouble('d') == 41.0d
+    dataSets[2].collect { it.getString('s') } == ['tank']
+
+    cleanup:
+    [deploymentId, replayId].findAll().each { vertx.undeploy(it) }
+  }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2017 CodeDroids ApS (http://www.codedroids.dk)
+ *
+ * This file is part of the HeatPump Vert.x example
+ *
+ * The HeatPump Vert.x example is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * The HeatPump Vert.x example is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the HeatPump Vert.x example. If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.codedroids.home.heatpump
+
+import spock.lang.Specification
+
+/**
+ * @author Claus Priisholm.
+ */
+class MetricsSpec extends Specification {
+
+  def 'every value falls in a bucket within 25% of it'() {
+    expect:
+    [0L, 1L, 3L, 4L, 5L, 7L, 8L, 1000L, 1023L, 1024L, 123456789L, Long.MAX_VALUE >> 2].every { long value ->
+      int bucket = Metrics.Histogram.bucket(value)
+      long upper = Metrics.Histogram.upperBound(bucket)
+      value < upper && (bucket == 0 || Metrics.Histogram.upperBound(bucket - 1) <= value) && upper - value <= Math.max(1L, value.intdiv(4))
+    }
+    Metrics.Histogram.bucket(Long.MAX_VALUE) == Metrics.Histogram.BUCKETS - 1
+  }
+
+  def 'percentiles are the upper bounds of the buckets'() {
+    given:
+    Metrics.Histogram histogram = Metrics.histogram('test_percentile_seconds', 'Test')
+
+    when:
+    (1..100).each { histogram.record(it * 1000000L) } // 1 to 100 ms
+
+    then:
+    histogram.count() == 100
+    histogram.percentile(50) >= 50000000L
+    histogram.percentile(50) <= 50000000L * 1.25
+    histogram.percentile(99) >= 99000000L
+    histogram.percentile(100) <= 100000000L * 1.25
+  }
+
+  def 'the metrics are served in the Prometheus text format'() {
+    given:
+    Metrics.Counter counter = Metrics.counter('test_prometheus_total', 'Things counted')
+    Metrics.Histogram histogram = Metrics.histogram('test_prometheus_seconds', 'Things timed')
+
+    when:
+    counter.add(3)
+    histogram.record(1500L) // 1.5 us
+    histogram.record(3000000000L) // 3 s
+    List<String> lines = Metrics.prometheus().readLines()
+
+    then:
+    lines.containsAll(['# HELP test_prometheus_total Things counted', '# TYPE test_prometheus_total counter', 'test_prometheus_total 3'])
+    lines.contains('# TYPE test_prometheus_seconds histogram')
+    lines.contains('test_prometheus_seconds_bucket{le="1.024E-6"} 0')
+    lines.contains('test_prometheus_seconds_bucket{le="2.048E-6"} 1')
+    lines.contains('test_prometheus_seconds_bucket{le="2.147483648"} 1')
+    lines.contains('test_prometheus_seconds_bucket{le="4.294967296"} 2')
+    lines.contains('test_prometheus_seconds_bucket{le="+Inf"} 2')
+    lines.contains('test_prometheus_seconds_count 2')
+    lines.contains('test_prometheus_seconds_sum 3.0000015')
+  }
+
+  def 'a name is registered once'() {
+    expect:
+    Metrics.counter('test_once_total', 'Test').is(Metrics.counter('test_once_total', 'Test'))
+
+    when:
+    Metrics.gauge('test_once_total', 'Test')
+
+    then:
+    thrown(IllegalArgumentException)
+  }
+
+  def 'CRC failures of the serial input are counted'() {
+    given:
+    Metrics.Counter failures = Metrics.counter('heatpump_serial_crc_failures_total', '')
+    long before = failures.get()
+
+    when:
+    new SerialVerticle().verifiedInput('-0.7,37.2,28.6,8.8,33.7,1.2,1.2,1.2,99')
+
+    then:
+    failures.get() == before + 1
+  }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2017 CodeDroids ApS (http://www.codedroids.dk)
+ *
+ * This file is part of the HeatPump Vert.x example
+ *
+ * The HeatPump Vert.x example is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * The HeatPump Vert.x example is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the HeatPump Vert.x example. If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.codedroids.home.heatpump
+
+import spock.lang.Specification
+
+import java.time.ZoneId
+import java.time.ZonedDateTime
+
+/**
+ * @author Claus Priisholm.
+ */
+class RollupSpec extends Specification {
+
+  ZoneId zone = ZoneId.of('Europe/Copenhagen')
+
+  long at(String time) {
+    ZonedDateTime.parse(time + '+01:00[Europe/Copenhagen]').toInstant().toEpochMilli()
+  }
+
+  def 'buckets are closed when a value for a later bucket arrives'() {
+    given:
+    Rollup rollup = new Rollup(zone)
+
+    when:
+    rollup.add('tank', at('2017-01-16T12:00:00'), 40.0d)
+    rollup.add('tank', at('2017-01-16T12:00:30'), 42.0d)
+    rollup.add('l1', at('2017-01-16T12:00:30'), 1.0d)
+
+    then:
+    rollup.closed().isEmpty()
+
+    when:
+    rollup.add('tank', at('2017-01-16T12:01:00'), 41.0d)
+    List<Rollup.Bucket> closed = rollup.closed()
+
+    then:
+    closed.size() == 1
+    with(closed[0]) {
+      resolution == Rollup.Resolution.minute
+      sensor == 'tank'
+      start == at('2017-01-16T12:00:00')
+      min == 40.0d
+      max == 42.0d
+      sum == 82.0d
+      count == 2
+    }
+
+    when:
+    rollup.add('tank', at('2017-01-16T13:00:00'), 43.0d)
+    closed = rollup.closed()
+
+    then:
+    closed.collect { it.resolution } == [Rollup.Resolution.minute, Rollup.Resolution.hour]
+    closed[1].count == 3
+    closed[1].sum == 123.0d
+  }
+
+  def 'late values get buckets of their own, to be merged'() {
+    given:
+    Rollup rollup = new Rollup(zone)
+    rollup.add('tank', at('2017-01-16T12:05:00'), 40.0d)
+
+    when:
+    rollup.add('tank', at('2017-01-16T12:04:50'), 39.0d)
+    List<Rollup.Bucket> closed = rollup.closed()
+
+    then:
+    closed.size() == 1
+    closed[0].start == at('2017-01-16T12:04:00')
+    closed[0].count == 1
+
+    when: 'all that is open, hour and day got both values'
+    closed = rollup.closeAll()
+
+    then:
+    closed.collect { [it.resolution, it.count] } == [[Rollup.Resolution.minute, 1], [Rollup.Resolution.hour, 2], [Rollup.Resolution.day, 2]]
+  }
+
+  def 'days follow the local time, also when the clock is changed'() {
+    given:
+    Rollup rollup = new Rollup(zone)
+
+    when: 'the day of the change to summer time has 23 hours'
+    rollup.add('tank', ZonedDateTime.parse('2017-03-26T00:30:00+01:00[Europe/Copenhagen]').toInstant().toEpochMilli(), 1.0d)
+    rollup.add('tank', ZonedDateTime.parse('2017-03-26T23:30:00+02:00[Europe/Copenhagen]').toInstant().toEpochMilli(), 2.0d)
+    rollup.add('tank', ZonedDateTime.parse('2017-03-27T00:00:00+02:00[Europe/Copenhagen]').toInstant().toEpochMilli(), 3.0d)
+    Rollup.Bucket day = rollup.closed().find { it.resolution == Rollup.Resolution.day }
+
+    then:
+    day.start == ZonedDateTime.parse('2017-03-26T00:00:00+01:00[Europe/Copenhagen]').toInstant().toEpochMilli()
+    day.count == 2
+  }
+}
@@ -20,6 +20,7 @@ package dk.codedroids.home.heatpump
 
 import io.vertx.core.DeploymentOptions
 import io.vertx.core.Vertx
+import io.vertx.core.buffer.Buffer
 import io.vertx.core.eventbus.EventBus
 import io.vertx.core.json.JsonObject
 import spock.lang.Specification
@@ -104,6 +105,97 @@ class SerialVerticleSpec extends Specification {
     thrown(AssertionError)
   }
 
+  def 'crc8 of a range agrees with the controller algorithm on random data'() {
+    given:
+    SerialVerticle holder = new SerialVerticle()
+    Random random = new Random(seed)
+
+    expect:
+    (0..<500).every {
+      byte[] data = new byte[random.nextInt(200)]
+      random.nextBytes(data)
+      int offset = data.length > 0 ? random.nextInt(data.length) : 0
+      int length = data.length > 0 ? random.nextInt(data.length - offset + 1) : 0
+      byte[] range = Arrays.copyOfRange(data, offset, offset + length)
+      SerialVerticle.crc8(data, offset, length) == holder.crc8(range)
+    }
+
+    where:
+    seed << [1L, 42L, 4711L]
+  }
+
+  def 'verifiedLength works on a range of raw bytes with line terminator'() {
+    given:
+    SerialVerticle holder = new SerialVerticle()
+    String line = 'garbage' + csvTestData[0][0] + '\r\n'
+    byte[] bytes = line.getBytes('US-ASCII')
+
+    expect:
+    holder.verifiedLength(bytes, 7, bytes.length - 7) == csvTestData[0][1].length()
+    holder.verifiedLength(bytes, 6, bytes.length - 6) == -1
+  }
+
+  def 'COBS encoding round trips and removes all zero bytes'() {
+    given:
+    Random random = new Random(42)
+
+    expect:
+    [0, 1, 253, 254, 255, 600].every { length ->
+      byte[] data = new byte[length]
+      random.nextBytes(data)
+      if(length > 300)
+        Arrays.fill(data, 10, 300, (byte) 7) // a run longer than 254 non-zero bytes
+      byte[] encoded = new byte[Cobs.maxEncodedLength(length)]
+      int encodedLength = Cobs.encode(data, 0, length, encoded, 0)
+      byte[] decoded = new byte[length]
+      !encoded[0..<encodedLength].contains((byte) 0) &&
+        Cobs.decode(encoded, 0, encodedLength, decoded, 0) == length && decoded == data
+    }
+  }
+
+  /** Binary frame as sent by ControllerBinaryExample.ino, without the zero delimiter */
+  static byte[] binaryFrame(List<Double> values) {
+    byte[] frame = new byte[2 + 2 * values.size()]
+    frame[0] = (byte) values.size()
+    values.eachWithIndex { value, i ->
+      int tenths = Math.round(value * 10)
+      frame[1 + 2 * i] = (byte) (tenths >> 8)
+      frame[2 + 2 * i] = (byte) tenths
+    }
+    frame[frame.length - 1] = (byte) SerialVerticle.crc8(frame, 0, frame.length - 1)
+    byte[] encoded = new byte[Cobs.maxEncodedLength(frame.length)]
+    return Arrays.copyOf(encoded, Cobs.encode(frame, 0, frame.length, encoded, 0))
+  }
+
+  def 'binary frames decode to the same values as the CSV lines'() {
+    given:
+    SerialVerticle instance = new SerialVerticle()
+
+    expect:
+    csvTestData.every { line, data ->
+      Reading fromCsv = new Reading()
+      Reading fromFrame = new Reading()
+      byte[] frame = binaryFrame(data.split(',').collect { Double.parseDouble(it) })
+      int length = instance.verifiedFrameLength(frame, 0, frame.length)
+      instance.decodeCsv(data, fromCsv) && length > 0 && instance.decodeBinary(frame, 0, length, fromFrame) &&
+        fromFrame.encode() == fromCsv.encode()
+    }
+  }
+
+  def 'binary frames that are corrupted or do not match the schema are rejected'() {
+    given:
+    SerialVerticle instance = new SerialVerticle()
+    byte[] corrupted = binaryFrame([13.5d, -0.7d])
+    corrupted[2]++
+    byte[] tooShort = binaryFrame([13.5d, -0.7d])
+    int length = instance.verifiedFrameLength(tooShort, 0, tooShort.length)
+
+    expect:
+    instance.verifiedFrameLength(corrupted, 0, corrupted.length) == -1
+    length == 5
+    !instance.decodeBinary(tooShort, 0, length, new Reading())
+  }
+
   def 'jsonFromCsv on serial data test input'() {
     given:
     SerialVerticle instance = new SerialVerticle()
@@ -126,6 +218,135 @@ class SerialVerticleSpec extends Specification {
     thrown(AssertionError)
   }
 
+  def 'decodeCsv gives the same values as Double.parseDouble'() {
+    given:
+    SerialVerticle instance = new SerialVerticle()
+    Reading reading = new Reading()
+
+    expect:
+    instance.decodeCsv(data, reading.values())
+    Sensor.values().every { s -> reading.get(s) == Double.parseDouble(data.split(',')[s.order()-1]) }
+
+    where:
+    data << csvTestData.collect { it[1] }
+  }
+
+  @Unroll
+  def 'decodeCsv on invalid data: #desc'() {
+    given:
+    SerialVerticle instance = new SerialVerticle()
+
+    expect:
+    !instance.decodeCsv(data, new Reading().values())
+
+    where:
+    desc              | data
+    'too few columns' | '37.2,28.6,8.8,33.7,1.2,1.2,1.2'
+    'too many columns'| '-0.7,37.2,28.6,8.8,33.7,1.2,1.2,1.2,37'
+    'empty column'    | '-0.7,,28.6,8.8,33.7,1.2,1.2,1.2'
+    'non-numeric'     | '-0.7,37.2,28.6,8.8,33.7,1.2,1.2,x'
+    'two points'      | '-0.7,37.2,28.6,8.8,33.7,1.2,1.2,1.2.3'
+  }
+
+  def 'Reading encode matches toJson().encode()'() {
+    given:
+    SerialVerticle instance = new SerialVerticle()
+    Reading reading = new Reading()
+    instance.decodeCsv(csvTestData[3][1], reading.values())
+
+    expect:
+    reading.encode() == reading.toJson().encode()
+  }
+
+  def 'absent values are left out of the JSON form'() {
+    given:
+    Reading reading = new Reading()
+    reading.clear()
+    reading.set(Sensor.tank.order() - 1, 33.7d)
+    reading.setSource('pump1')
+
+    expect:
+    reading.encode() == '[{"t":"temp","g":"bry","s":"tank","d":33.7,"src":"pump1"}]'
+    reading.encode() == reading.toJson().encode()
+    !reading.isEmpty()
+  }
+
+  def 'readings cross the cluster wire unchanged'() {
+    given:
+    SerialVerticle instance = new SerialVerticle()
+    ReadingCodec codec = new ReadingCodec()
+    Reading reading = new Reading()
+    instance.decodeCsv(csvTestData[5][1], reading.values())
+    reading.setSource(source)
+    reading.setTimestamp(timestamp)
+    Buffer wire = Buffer.buffer().appendString('header')
+
+    when:
+    codec.encodeToWire(wire, reading)
+    Reading decoded = codec.decodeFromWire(6, wire)
+
+    then:
+    decoded.values() == reading.values()
+    decoded.source() == source
+    decoded.timestamp() == timestamp
+    decoded.encode() == reading.encode()
+
+    where:
+    source  | timestamp
+    null    | 0L
+    'pump1' | 0L
+    'pump1' | 1484521200123L
+  }
+
+  def 'ingest clock follows the wall clock and does not go backwards'() {
+    when:
+    List<Long> times = (1..1000).collect { IngestClock.now() }
+
+    then:
+    (1..<times.size()).every { times[it - 1] <= times[it] }
+    Math.abs(times.last() - System.currentTimeMillis()) < 1000
+  }
+
+  def 'configured schema decides order and scale, and crosses the wire'() {
+    given:
+    SerialVerticle instance = new SerialVerticle()
+    SensorSchema schema = SensorSchema.fromConfig(new JsonArray()
+      .add(new JsonObject().put('order', 2).put('name', 'feed').put('type', 'temp').put('group', 'fyr'))
+      .add(new JsonObject().put('order', 1).put('name', 'l1').put('type', 'powr').put('group', 'pump').put('scale', 0.1d)))
+    Reading reading = new Reading(schema)
+    ReadingCodec codec = new ReadingCodec()
+    Buffer wire = Buffer.buffer()
+
+    when:
+    boolean decoded = instance.decodeCsv('123,37.2', reading)
+    codec.encodeToWire(wire, reading)
+    Reading first = codec.decodeFromWire(0, wire)
+    Reading second = codec.decodeFromWire(0, wire)
+
+    then:
+    decoded
+    reading.get(Sensor.l1) == 12.3d
+    reading.get(Sensor.feed) == 37.2d
+    Double.isNaN(reading.get(Sensor.pump))
+    first.encode() == reading.encode()
+    first.schema().is(second.schema())
+  }
+
+  def 'sensor names must fit the sensor column of the tables'() {
+    expect:
+    SensorSchema.fromConfig(new JsonArray().add(new JsonObject().put('name', 'outd').put('type', 'temp').put('group', 'outdoor')))
+
+    when:
+    SensorSchema.fromConfig(new JsonArray().add(new JsonObject().put('name', name).put('type', 'temp').put('group', 'fyr')))
+
+    then:
+    IllegalArgumentException e = thrown()
+    e.message.contains("'name'")
+
+    where:
+    name << ['outdoor', '', 'o-1']
+  }
+
   AsyncConditions conditions
   def 'serial csv input to event bus json message'() {
     setup:
@@ -150,6 +371,73 @@ class SerialVerticleSpec extends Specification {
   }
 
 
+  def 'schema can be swapped while running'() {
+    setup:
+    conditions = new AsyncConditions(1)
+    EventBus eventBus = vertx.eventBus()
+    JsonArray sensors = SensorSchema.DEFAULT.toConfig().add(new JsonObject().put('name', 'out').put('type', 'temp').put('group', 'fyr'))
+    String data = '-0.7,37.2,28.6,8.8,33.7,1.2,1.2,1.2,-5.5'
+    String line = data + ',' + SerialVerticle.crc8(data.getBytes('US-ASCII'), 0, data.length())
+    def consumer = eventBus.localConsumer(eventBusAddress, { message ->
+      conditions.evaluate {
+        JsonArray json = new JsonArray(message.body().toString())
+        assert json.size() == 9
+        assert json.getJsonObject(8).getDouble('d') == -5.5d
+      }
+    })
+
+    when:
+    eventBus.send(eventBusAddress + '.schema', new JsonObject().put('sensors', sensors), { reply ->
+      mock.acceptInput(line)
+    })
+
+    then:
+    conditions.await(1d)
+
+    cleanup:
+    consumer.unregister()
+    eventBus.send(eventBusAddress + '.schema', new JsonObject().put('sensors', SensorSchema.DEFAULT.toConfig()))
+  }
+
+  static String withCrc(String data) {
+    return data + ',' + SerialVerticle.crc8(data.getBytes('US-ASCII'), 0, data.length())
+  }
+
+  def 'with a deadband only values that moved beyond it are published'() {
+    setup:
+    AsyncConditions deadbandConditions = new AsyncConditions(1)
+    String address = 'home.heatpump.data.deadband'
+    MockSerialInput input = new MockSerialInput()
+    List<List<String>> published = []
+    vertx.eventBus().localConsumer(address, { message ->
+      published << new JsonArray(message.body().toString()).collect { it.getString('s') + '=' + it.getDouble('d') }
+      if(published.size() == 3)
+        deadbandConditions.evaluate {
+          assert published[0].size() == 8
+          assert published[1] == ['pump=0.0']
+          assert published[2] == ['tank=38.7', 'l1=2.0']
+        }
+    })
+    String deploymentId = null
+    vertx.deployVerticle(new SerialVerticle(input), new DeploymentOptions().setConfig(new JsonObject()
+      .put('event_bus', address)
+      .put('deadband', new JsonObject().put('pump', 0.5d).put('tank', 1.0d).put('l1', 0.5d))
+      .put('heartbeat', 3600)), { ar ->
+      deploymentId = ar.result()
+      input.acceptInput(withCrc('-0.7,37.2,28.6,8.8,33.7,1.2,1.2,1.2'))
+      input.acceptInput(withCrc('-0.4,37.2,28.6,8.8,34.5,1.2,1.2,1.2')) // within deadband, nothing published
+      input.acceptInput(withCrc('0.0,37.2,28.6,8.8,34.5,1.2,1.2,1.2'))  // pump moved 0.7 since published
+      input.acceptInput(withCrc('0.0,37.2,28.6,8.8,38.7,2.0,1.2,1.2'))
+    })
+
+    expect:
+    deadbandConditions.await(2d)
+
+    cleanup:
+    if(deploymentId)
+      vertx.undeploy(deploymentId)
+  }
+
   /**
    * JsonArray equals() does not do what we want, this method compares the elements
    * independent of the order in which they appear - as long all elements of the first
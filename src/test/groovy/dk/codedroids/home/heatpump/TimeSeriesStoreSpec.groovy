@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2017 CodeDroids ApS (http://www.codedroids.dk)
+ *
+ * This file is part of the HeatPump Vert.x example
+ *
+ * The HeatPump Vert.x example is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * The HeatPump Vert.x example is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the HeatPump Vert.x example. If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.codedroids.home.heatpump
+
+import spock.lang.Specification
+
+import java.nio.file.Files
+import java.nio.file.Path
+
+/**
+ * @author Claus Priisholm.
+ */
+class TimeSeriesStoreSpec extends Specification {
+
+  Path directory
+  long start = 1484521200000L // 2017-01-16 00:00:00 +01:00
+
+  def setup() {
+    directory = Files.createTempDirectory('tsdb')
+  }
+
+  def cleanup() {
+    directory.toFile().deleteDir()
+  }
+
+  List<List> readAll(TimeSeriesStore store, String sensor, long from, long to) {
+    List<List> points = []
+    store.read(sensor, from, to) { ts, value -> points << [ts, value] }
+    return points
+  }
+
+  def 'gorilla blocks decode to the points encoded'() {
+    given:
+    Random random = new Random(42)
+    List<List> points = []
+    long ts = 1484521200L
+    double value = 20.0d
+    (0..<1000).each { i ->
+      ts += [10, 10, 10, 11, 9, 100, 5000, 100000][random.nextInt(8)]
+      value = [value, value + 0.1d, -value, Math.round(value * 10) / 10.0d, Double.NaN, 0.0d, Double.MAX_VALUE][random.nextInt(7)]
+      points << [ts, value]
+    }
+    Gorilla.Encoder encoder = new Gorilla.Encoder()
+
+    when:
+    points.each { encoder.add(it[0], it[1]) }
+    Gorilla.Decoder decoder = new Gorilla.Decoder(Arrays.copyOf(encoder.bytes(), encoder.length()), 0, encoder.count())
+    List<List> decoded = []
+    while(decoder.next())
+      decoded << [decoder.timestamp(), decoder.value()]
+
+    then:
+    decoded.size() == points.size()
+    (0..<points.size()).every { i ->
+      decoded[i][0] == points[i][0] && Double.doubleToRawLongBits(decoded[i][1]) == Double.doubleToRawLongBits(points[i][1])
+    }
+  }
+
+  def 'a day of slowly changing 10 second samples takes a couple of bytes per value'() {
+    given:
+    Gorilla.Encoder encoder = new Gorilla.Encoder()
+
+    when:
+    (0..<8640).each { i -> encoder.add(1484521200L + i * 10, 20.0d + Math.round(Math.sin(i / 500.0d) * 50) / 10.0d) }
+
+    then:
+    encoder.length() < 8640 * 2
+  }
+
+  def 'points are read back by period across blocks and after reopening'() {
+    given:
+    TimeSeriesStore store = new TimeSeriesStore(directory, 10, false)
+    (0..<95).each { i -> store.append('tank', start + i * 10000L, 40.0d + i / 10.0d) }
+    store.append('l1', start, 1.2d)
+    store.flush()
+
+    expect:
+    readAll(store, 'tank', start, start + 30000L) == [[start, 40.0d], [start + 10000L, 40.1d], [start + 20000L, 40.2d]]
+    readAll(store, 'tank', start + 905000L, start + 2000000L).collect { it[0] } == (91..94).collect { start + it * 10000L }
+    readAll(store, 'tank', start, start + 2000000L).size() == 95
+    readAll(store, 'l1', start, start + 1000L) == [[start, 1.2d]]
+    readAll(store, 'pump', start, start + 1000L) == []
+
+    when: 'reopened, the last block is continued'
+    store.close()
+    store = new TimeSeriesStore(directory, 10, false)
+    store.append('tank', start + 95 * 10000L, 99.0d)
+    store.flush()
+
+    then:
+    readAll(store, 'tank', start, start + 2000000L).size() == 96
+    readAll(store, 'tank', start + 940000L, start + 2000000L) == [[start + 940000L, 49.4d], [start + 950000L, 99.0d]]
+    Files.size(directory.resolve('tank.idx')) == 9 * 24
+
+    cleanup:
+    store.close()
+  }
+
+  def 'points not later than the last of the series are dropped'() {
+    given:
+    TimeSeriesStore store = new TimeSeriesStore(directory, 10, false)
+
+    expect:
+    store.append('tank', start, 40.0d)
+    !store.append('tank', start + 500L, 41.0d) // same second
+    !store.append('tank', start - 10000L, 39.0d)
+    store.append('tank', start + 10000L, 42.0d)
+
+    cleanup:
+    store.close()
+  }
+
+  def 'a read only store sees what is flushed by the writer'() {
+    given:
+    TimeSeriesStore writer = new TimeSeriesStore(directory, 10, false)
+    TimeSeriesStore reader = new TimeSeriesStore(directory, 10, true)
+    (0..<5).each { i -> writer.append('tank', start + i * 10000L, 40.0d) }
+    writer.flush()
+
+    expect:
+    readAll(reader, 'tank', start, start + 1000000L).size() == 5
+
+    when:
+    (5..<25).each { i -> writer.append('tank', start + i * 10000L, 41.0d) }
+    writer.flush()
+
+    then:
+    readAll(reader, 'tank', start, start + 1000000L).size() == 25
+
+    cleanup:
+    writer.close()
+    reader.close()
+  }
+}
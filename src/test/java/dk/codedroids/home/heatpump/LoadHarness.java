@@ -0,0 +1,298 @@
+/*
+ * Copyright (c) 2017 CodeDroids ApS (http://www.codedroids.dk)
+ *
+ * This file is part of the HeatPump Vert.x example
+ *
+ * The HeatPump Vert.x example is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * The HeatPump Vert.x example is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the HeatPump Vert.x example. If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.codedroids.home.heatpump;
+
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.WebSocket;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Drives the whole pipeline in one JVM to find where it saturates: virtual devices (see LoadSerialInput) emit lines
+ * into the SerialVerticle, the readings are written by the LoggerVerticle to an in-process HSQLDB with the tables of
+ * create-tables.sql, and sent by the PanelVerticle to a number of SockJS (raw WebSocket) clients.
+ *
+ * <p>Once a second the lines, panel messages and rows of the last second are printed. At the end the sustained
+ * rates over the measured period (after the warm-up) and the latencies are reported: from a line being emitted to a
+ * client receiving the reading (the panel sends the timestamps), and from the first data set of a batch arriving at
+ * the logger to the batch being written (see Metrics).</p>
+ *
+ * <p>Run with e.g. {@code ./gradlew loadTest -Pargs="--devices 100 --rate 10 --seconds 60"}, see {@link #main}
+ * for the options.</p>
+ *
+ * @author Claus Priisholm.
+ */
+public class LoadHarness {
+
+  /** The options of a run, with the defaults */
+  public static class Settings {
+    int devices = 10;
+    double rate = 1.0; // lines per second per device
+    int seconds = 30;
+    int warmup = 5;
+    int clients = 2;
+    int loggers = 1; // LoggerVerticle instances, sharing the ingest if more than one
+    int eventLoops = 1; // of the SerialVerticle
+    int batchSize = 50;
+    int httpPort = 9099;
+    String linesFile = null; // synthetic lines
+    boolean quiet = false;
+  }
+
+  private static final String ADDRESS = "home.heatpump.load";
+
+  private final Settings settings;
+  private final LongAdder panelMessages = new LongAdder();
+  private final List<CompletableFuture<Void>> registered = new ArrayList<>(); // per client, on the first probe
+  private volatile Metrics.Histogram panelLatency = new Metrics.Histogram("load_panel_latency_seconds", "");
+
+  public LoadHarness(Settings settings) {
+    this.settings = settings;
+  }
+
+  /**
+   * Runs the load and waits for it to finish.
+   *
+   * @return the report, see class description
+   */
+  public JsonObject run() throws Exception {
+    String url = "jdbc:hsqldb:mem:load" + System.nanoTime();
+    Connection db = DriverManager.getConnection(url, "SA", "");
+    createTables(db);
+    Vertx vertx = Vertx.vertx();
+    List<WebSocket> clients = new ArrayList<>();
+    try {
+      String panelId = deploy(vertx, PanelVerticle.class, new JsonObject()
+        .put("event_bus", ADDRESS)
+        .put("http_port", settings.httpPort)
+        .put("timestamps", true), 1);
+      String bridgeAddress = ADDRESS + ".panel." + panelId;
+      for(int i = 0; i < settings.clients; i++)
+        clients.add(connect(vertx, bridgeAddress));
+      awaitRegistered(vertx, bridgeAddress);
+
+      deploy(vertx, LoggerVerticle.class, new JsonObject()
+        .put("event_bus", ADDRESS)
+        .put("ingest", settings.loggers > 1 ? "shared" : "each")
+        .put("batch_size", settings.batchSize)
+        .put("database", new JsonObject()
+          .put("url", url)
+          .put("user", "SA")
+          .put("password", "")
+          .put("driver_class", "org.hsqldb.jdbcDriver")
+          .put("dialect", "merge") // the devices share the tables, and the rows of a second would collide
+          .put("pool_size", settings.loggers + 1)), settings.loggers);
+
+      JsonArray ports = new JsonArray();
+      for(int i = 0; i < settings.devices; i++)
+        ports.add("load" + i);
+      JsonObject serialConfig = new JsonObject()
+        .put("event_bus", ADDRESS)
+        .put("driver", "load")
+        .put("rate", settings.rate)
+        .put("serial_ports", ports)
+        .put("event_loops", settings.eventLoops);
+      if(settings.linesFile != null)
+        serialConfig.put("lines_file", settings.linesFile);
+
+      String serialId = deploy(vertx, SerialVerticle.class, serialConfig, 1);
+      // Registered by the verticles by now, so these are theirs
+      Metrics.Counter lines = Metrics.counter("heatpump_serial_lines_total", "");
+      Metrics.Counter rows = Metrics.counter("heatpump_logger_rows_total", "");
+      Metrics.Counter failed = Metrics.counter("heatpump_logger_failed_batches_total", "");
+      Metrics.Histogram batchLatency = Metrics.histogram("heatpump_logger_batch_latency_seconds", "");
+
+      long[] start = null; // lines, panel messages, rows, failed batches and nanos at the end of the warm-up
+      long[] last = snapshot(lines, rows, failed);
+      for(int second = 1; second <= settings.warmup + settings.seconds; second++) {
+        Thread.sleep(1000);
+        long[] now = snapshot(lines, rows, failed);
+        if(!settings.quiet)
+          System.out.println(String.format("%s %3d s: %8d lines/s %8d panel messages/s per client %8d rows/s",
+            second <= settings.warmup ? "warm-up " : "measured", second, now[0] - last[0],
+            settings.clients == 0 ? 0 : (now[1] - last[1]) / settings.clients, now[2] - last[2]));
+        last = now;
+        if(second == settings.warmup) {
+          start = now;
+          panelLatency = new Metrics.Histogram("load_panel_latency_seconds", "");
+        }
+      }
+      if(start == null)
+        start = snapshot(lines, rows, failed);
+      long[] end = last;
+      double elapsed = (end[4] - start[4]) / 1e9;
+
+      undeploy(vertx, serialId);
+      return new JsonObject()
+        .put("devices", settings.devices)
+        .put("offered_lines_per_second", settings.devices * settings.rate)
+        .put("lines_per_second", (end[0] - start[0]) / elapsed)
+        .put("panel_messages_per_second", settings.clients == 0 ? 0 : (end[1] - start[1]) / elapsed / settings.clients)
+        .put("rows_per_second", (end[2] - start[2]) / elapsed)
+        .put("failed_batches", end[3] - start[3])
+        .put("panel_latency_p50_ms", panelLatency.percentile(50) / 1e6)
+        .put("panel_latency_p99_ms", panelLatency.percentile(99) / 1e6)
+        .put("logger_batch_latency_p50_ms", batchLatency.percentile(50) / 1e6)
+        .put("logger_batch_latency_p99_ms", batchLatency.percentile(99) / 1e6);
+    } finally {
+      clients.forEach(WebSocket::close);
+      CompletableFuture<Void> closed = new CompletableFuture<>();
+      vertx.close(ar -> closed.complete(null));
+      closed.get(30, TimeUnit.SECONDS);
+      db.createStatement().execute("shutdown");
+    }
+  }
+
+  private long[] snapshot(Metrics.Counter lines, Metrics.Counter rows, Metrics.Counter failed) {
+    return new long[] { lines.get(), panelMessages.sum(), rows.get(), failed.get(), System.nanoTime() };
+  }
+
+  private static void createTables(Connection db) throws IOException, SQLException {
+    try(InputStream in = LoadHarness.class.getResourceAsStream("/create-tables.sql");
+        Statement statement = db.createStatement()) {
+      if(in == null)
+        throw new IOException("create-tables.sql not found on the classpath");
+      for(String sql : new Scanner(in, StandardCharsets.UTF_8.name()).useDelimiter("\\A").next().split(";"))
+        if(!sql.trim().isEmpty())
+          statement.execute(sql);
+    }
+  }
+
+  private static String deploy(Vertx vertx, Class<?> verticle, JsonObject config, int instances) throws Exception {
+    CompletableFuture<String> deployed = new CompletableFuture<>();
+    List<String> ids = Collections.synchronizedList(new ArrayList<>()); // the callbacks run on the event loops
+    for(int i = 0; i < instances; i++) {
+      vertx.deployVerticle(verticle.getName(), new DeploymentOptions().setConfig(config), ar -> {
+        if(ar.failed())
+          deployed.completeExceptionally(ar.cause());
+        else {
+          ids.add(ar.result());
+          if(ids.size() == instances)
+            deployed.complete(ids.get(0));
+        }
+      });
+    }
+    return deployed.get(30, TimeUnit.SECONDS);
+  }
+
+  private static void undeploy(Vertx vertx, String deploymentId) throws Exception {
+    CompletableFuture<Void> undeployed = new CompletableFuture<>();
+    vertx.undeploy(deploymentId, ar -> undeployed.complete(null));
+    undeployed.get(30, TimeUnit.SECONDS);
+  }
+
+  /** A client of the event bus bridge, recording the latency of each data set from its timestamp */
+  private WebSocket connect(Vertx vertx, String bridgeAddress) throws Exception {
+    HttpClient client = vertx.createHttpClient();
+    CompletableFuture<WebSocket> connected = new CompletableFuture<>();
+    CompletableFuture<Void> probed = new CompletableFuture<>();
+    registered.add(probed);
+    client.websocket(settings.httpPort, "localhost", "/eventbus/websocket", ws -> {
+      ws.handler(frame -> received(frame.toString(StandardCharsets.UTF_8), probed));
+      ws.writeTextMessage(new JsonObject().put("type", "register").put("address", bridgeAddress).encode());
+      long pinger = vertx.setPeriodic(5000, tid -> ws.writeTextMessage("{\"type\":\"ping\"}")); // or the bridge closes it
+      ws.closeHandler(v -> vertx.cancelTimer(pinger));
+      connected.complete(ws);
+    }, connected::completeExceptionally);
+    return connected.get(10, TimeUnit.SECONDS);
+  }
+
+  private void received(String frame, CompletableFuture<Void> probed) {
+    Object body = new JsonObject(frame).getValue("body");
+    if(!(body instanceof String) || !((String) body).startsWith("[")) {
+      probed.complete(null);
+      return;
+    }
+    JsonArray dataSet = new JsonArray((String) body);
+    panelMessages.increment();
+    if(!dataSet.isEmpty() && dataSet.getJsonObject(0).containsKey("ts"))
+      panelLatency.record(TimeUnit.MILLISECONDS.toNanos(IngestClock.now() - dataSet.getJsonObject(0).getLong("ts")));
+  }
+
+  /** Publishes probes until every client got one, then the clients are registered and will get every data set */
+  private void awaitRegistered(Vertx vertx, String bridgeAddress) throws Exception {
+    CompletableFuture<Void> all = CompletableFuture.allOf(registered.toArray(new CompletableFuture[registered.size()]));
+    long timerId = vertx.setPeriodic(50, tid -> vertx.eventBus().publish(bridgeAddress, "probe"));
+    try {
+      all.get(10, TimeUnit.SECONDS);
+    } finally {
+      vertx.cancelTimer(timerId);
+    }
+  }
+
+  /**
+   * Runs the load from the command line and prints the report.
+   */
+  public static void main(String[] args) throws Exception {
+    Options opts = new Options()
+      .addOption(Option.builder().longOpt("devices").hasArg().desc("Number of virtual devices, default 10").build())
+      .addOption(Option.builder().longOpt("rate").hasArg().desc("Lines per second per device, default 1").build())
+      .addOption(Option.builder().longOpt("seconds").hasArg().desc("Seconds measured, default 30").build())
+      .addOption(Option.builder().longOpt("warmup").hasArg().desc("Seconds before measuring, default 5").build())
+      .addOption(Option.builder().longOpt("clients").hasArg().desc("Number of panel clients, default 2").build())
+      .addOption(Option.builder().longOpt("loggers").hasArg().desc("Number of LoggerVerticle instances, default 1").build())
+      .addOption(Option.builder().longOpt("event-loops").hasArg().desc("Event loops of the SerialVerticle, default 1").build())
+      .addOption(Option.builder().longOpt("batch-size").hasArg().desc("Batch size of the LoggerVerticle, default 50").build())
+      .addOption(Option.builder().longOpt("http-port").hasArg().desc("Port of the PanelVerticle, default 9099").build())
+      .addOption(Option.builder().longOpt("lines-file").hasArg().desc("Recorded lines, default synthetic lines").build());
+    Settings settings = new Settings();
+    try {
+      CommandLine cli = new DefaultParser().parse(opts, args);
+      settings.devices = Integer.parseInt(cli.getOptionValue("devices", "10"));
+      settings.rate = Double.parseDouble(cli.getOptionValue("rate", "1"));
+      settings.seconds = Integer.parseInt(cli.getOptionValue("seconds", "30"));
+      settings.warmup = Integer.parseInt(cli.getOptionValue("warmup", "5"));
+      settings.clients = Integer.parseInt(cli.getOptionValue("clients", "2"));
+      settings.loggers = Integer.parseInt(cli.getOptionValue("loggers", "1"));
+      settings.eventLoops = Integer.parseInt(cli.getOptionValue("event-loops", "1"));
+      settings.batchSize = Integer.parseInt(cli.getOptionValue("batch-size", "50"));
+      settings.httpPort = Integer.parseInt(cli.getOptionValue("http-port", "9099"));
+      settings.linesFile = cli.getOptionValue("lines-file");
+    } catch(ParseException | NumberFormatException e) {
+      System.err.println(e.getMessage());
+      new HelpFormatter().printHelp("LoadHarness", opts, true);
+      System.exit(1);
+    }
+    System.out.println(new LoadHarness(settings).run().encodePrettily());
+    System.exit(0);
+  }
+}
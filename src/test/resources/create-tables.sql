@@ -10,3 +10,42 @@ create table pump_current (
   data    float not null,
   primary key (ts,sensor)
 );
+create table pump_rollup_1m (
+  ts        timestamp not null,
+  sensor    varchar(4) not null,
+  min_data  float not null,
+  max_data  float not null,
+  sum_data  double not null,
+  cnt       int not null,
+  primary key (ts,sensor)
+);
+create table pump_rollup_1h (
+  ts        timestamp not null,
+  sensor    varchar(4) not null,
+  min_data  float not null,
+  max_data  float not null,
+  sum_data  double not null,
+  cnt       int not null,
+  primary key (ts,sensor)
+);
+create table pump_rollup_1d (
+  ts        timestamp not null,
+  sensor    varchar(4) not null,
+  min_data  float not null,
+  max_data  float not null,
+  sum_data  double not null,
+  cnt       int not null,
+  primary key (ts,sensor)
+);
+create table pump_sample (
+  ts      timestamp not null,
+  pump    float,
+  feed    float,
+  ret     float,
+  box     float,
+  tank    float,
+  l1      float,
+  l2      float,
+  l3      float,
+  primary key (ts)
+);